@@ -0,0 +1,71 @@
+package utils;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Dense scoring loops over the widest vectors of the machine, with the plain loops for the tail of each row.
+ * Compiled and run with --add-modules jdk.incubator.vector, and loaded by DenseKernels only when the module is
+ * present. The float dot product is accumulated lane by lane, so it is summed in a different order from the plain
+ * loops.
+ */
+class VectorDenseKernels implements DenseKernels
+{
+	private static final VectorSpecies<Integer> INTS = IntVector.SPECIES_PREFERRED;
+	private static final VectorSpecies<Float> FLOATS = FloatVector.SPECIES_PREFERRED;
+
+	@Override
+	public int dot(int[] a, int aFrom, int[] b, int bFrom, int length)
+	{
+		IntVector sums = IntVector.zero(INTS);
+		int i = 0;
+		for (int bound = INTS.loopBound(length); i < bound; i += INTS.length())
+		{
+			sums = IntVector.fromArray(INTS, a, aFrom + i).mul(IntVector.fromArray(INTS, b, bFrom + i)).add(sums);
+		}
+		int sum = sums.reduceLanes(VectorOperators.ADD);
+		for (; i < length; i++)
+		{
+			sum += a[aFrom + i] * b[bFrom + i];
+		}
+		return sum;
+	}
+
+	@Override
+	public float dot(float[] a, int aFrom, float[] b, int bFrom, int length)
+	{
+		FloatVector sums = FloatVector.zero(FLOATS);
+		int i = 0;
+		for (int bound = FLOATS.loopBound(length); i < bound; i += FLOATS.length())
+		{
+			sums = FloatVector.fromArray(FLOATS, a, aFrom + i).fma(FloatVector.fromArray(FLOATS, b, bFrom + i), sums);
+		}
+		float sum = sums.reduceLanes(VectorOperators.ADD);
+		for (; i < length; i++)
+		{
+			sum += a[aFrom + i] * b[bFrom + i];
+		}
+		return sum;
+	}
+
+	@Override
+	public void scaleAdd(float scale, int[] x, int xFrom, float[] y, int length)
+	{
+		int i = 0;
+		if (INTS.length() == FLOATS.length()) //Ints convert to floats lane for lane
+		{
+			for (int bound = FLOATS.loopBound(length); i < bound; i += FLOATS.length())
+			{
+				FloatVector scaled = ((FloatVector) IntVector.fromArray(INTS, x, xFrom + i).convert(VectorOperators.I2F, 0))
+						.mul(scale);
+				scaled.add(FloatVector.fromArray(FLOATS, y, i)).intoArray(y, i);
+			}
+		}
+		for (; i < length; i++)
+		{
+			y[i] += scale * x[xFrom + i];
+		}
+	}
+}
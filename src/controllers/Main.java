@@ -9,7 +9,6 @@ import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.Scanner;
-import java.util.Set;
 
 import com.google.common.base.Optional;
 
@@ -18,7 +17,10 @@ import edu.princeton.cs.introcs.StdOut;
 import models.Movie;
 import models.Rating;
 import models.User;
+import utils.BinarySerializer;
+import utils.MutationLog;
 import utils.Serializer;
+import utils.StaxXMLSerializer;
 import utils.XMLSerializer;
 
 /**
@@ -34,32 +36,113 @@ public class Main
 	User loggedInUser;								//Stores the current logged in user
 	boolean authenticated = false;		//Checks if a user has been authenticated 
 	Scanner input = new Scanner(System.in);
+	static final int NEIGHBOURS = 20; //Similar users whose ratings make up a recommendation
+	static final int RECOMMENDATIONS = 10; //Movies recommended at a time
+	static final int CACHED_USERS = 1000; //Users whose recommendations are kept between requests
 
 
 	public Main() throws Exception
 	{
-		File datastore = new File("datastore.xml"); //The main datastore
+		this("xml");
+	}
+
+	/**
+	 * Creates the system using the given datastore format
+	 * @param format Either "xml" (datastore.xml), "binary" or "normalized" (datastore.bin)
+	 * or "stream" (datastore-stream.xml)
+	 * @throws Exception
+	 */
+	public Main(String format) throws Exception
+	{
+		this(format, new File("././data/data_movieLens"));
+	}
+
+	/**
+	 * Creates the system using the given datastore format, seeded from the given MovieLens release
+	 * when there is no datastore yet
+	 * @param format
+	 * @param rawData Directory of a MovieLens 100K, 1M, 10M or 20M/25M release
+	 * @throws Exception
+	 */
+	public Main(String format, File rawData) throws Exception
+	{
+		File datastore;
+		Serializer serializer;
+
+		if (format.equalsIgnoreCase("binary") || format.equalsIgnoreCase("normalized"))
+		{
+			boolean normalized = format.equalsIgnoreCase("normalized"); //Store each rating once
+			datastore = new File("datastore.bin"); //The main datastore
+			File legacyDatastore = new File("datastore.xml");
+			if (!datastore.isFile() && legacyDatastore.isFile()) //One-shot migration of an existing xml datastore
+			{
+				StdOut.println("Migrating datastore.xml to datastore.bin");
+				migrate(legacyDatastore, new BinarySerializer(datastore, normalized));
+			}
+			serializer = new BinarySerializer(datastore, normalized);
+		}
+		else if (format.equalsIgnoreCase("stream"))
+		{
+			datastore = new File("datastore-stream.xml"); //The main datastore, read and written element by element
+			File legacyDatastore = new File("datastore.xml");
+			if (!datastore.isFile() && legacyDatastore.isFile())
+			{
+				StdOut.println("Migrating datastore.xml to datastore-stream.xml");
+				migrate(legacyDatastore, new StaxXMLSerializer(datastore));
+			}
+			serializer = new StaxXMLSerializer(datastore);
+		}
+		else
+		{
+			datastore = new File("datastore.xml"); //The main datastore
+			serializer = new XMLSerializer(datastore);
+		}
+		//Changes made since the last snapshot, named after it so each format replays only its own changes
+		MutationLog mutationLog = new MutationLog(new File(datastore.getPath() + ".log"));
 
 		if (datastore.isFile()) //If the file exists
 		{
 			StdOut.println("File present");
-			Serializer serializer = new XMLSerializer(datastore);
-			recommenderAPI = new RecommenderAPI(serializer); 
+			recommenderAPI = new RecommenderAPI(serializer, mutationLog); 
 			recommenderAPI.load();
 		}
 		else
 		{
 			StdOut.println("File not present");
-			Serializer newSerializer = new XMLSerializer(new File("datastore.xml")); //Creating a new xml file
-			recommenderAPI = new RecommenderAPI(newSerializer); 
-			recommenderAPI.loadRawData(); //Load and store raw data into datastore.xml
+			recommenderAPI = new RecommenderAPI(serializer, mutationLog); 
+			recommenderAPI.setParallelIngestion(true);
+			recommenderAPI.setMemoryMappedIngestion(true);
+			recommenderAPI.loadRawData(rawData); //Load and store raw data into the datastore
+			StdOut.println(recommenderAPI.getIngestReport());
 			recommenderAPI.load();
 		}
+		recommenderAPI.enableNeighbourhoodIndex(NEIGHBOURS); //Precompute neighbours in parallel
+		recommenderAPI.setKnnMode(NEIGHBOURS, RECOMMENDATIONS);
+		recommenderAPI.enableRecommendationCache(CACHED_USERS);
+		recommenderAPI.enableColdStartLists(RECOMMENDATIONS); //Popular movies for users yet to rate any
+		recommenderAPI.enableItemSimilarities(NEIGHBOURS, new File("datastore-items.bin")); //Saved with the datastore
+	}
+
+	/**
+	 * One-shot migration of an xml datastore, with the changes committed to its log since its last snapshot
+	 * @param legacyDatastore
+	 * @param to Serializer of the new datastore
+	 * @throws Exception
+	 */
+	static void migrate(File legacyDatastore, Serializer to) throws Exception
+	{
+		File legacyLog = new File(legacyDatastore.getPath() + ".log");
+		try (MutationLog mutationLog = legacyLog.isFile() ? new MutationLog(legacyLog) : null)
+		{
+			RecommenderAPI legacy = new RecommenderAPI(new XMLSerializer(legacyDatastore), mutationLog);
+			legacy.load();
+			legacy.migrate(to);
+		}
 	}
 
 	public static void main(String[] args) throws Exception
 	{
-		Main main = new Main();
+		Main main = args.length > 1 ? new Main(args[0], new File(args[1])) : new Main(args.length > 0 ? args[0] : "xml");
 		main.loginRun();
 	}
 
@@ -253,10 +336,13 @@ public class Main
 		if (loggedInUser.ratedMovies.size() > 0)
 		{
 			StdOut.println(recommenderAPI.getUserRecommendations(loggedInUser.userId));
+			StdOut.println("Movies similar to the ones you rated:");
+			StdOut.println(recommenderAPI.getItemRecommendations(loggedInUser.userId, RECOMMENDATIONS));
 		}
 		else
 		{
-			StdOut.println("No recommendations for you at the moment. We suggest you to rate more movies");
+			StdOut.println("Popular with users like you. We suggest you to rate more movies for personal recommendations:");
+			StdOut.println(recommenderAPI.getUserRecommendations(loggedInUser.userId));
 		}
 
 	}
@@ -339,7 +425,7 @@ public class Main
 		String password = StdIn.readString();
 
 		User addedUser = recommenderAPI.addUser(firstName, lastName, age, gender, occupation, username, password);
-		recommenderAPI.store();
+		recommenderAPI.commit();
 		StdOut.println("Your details have been logged!");
 		addLoginRating(addedUser); //Calling the login movie rating system
 	}
@@ -371,8 +457,9 @@ public class Main
 
 	/**
 	 * Method to add a rating of a specific movie indicated by the movie id
+	 * @throws Exception
 	 */
-	public void addARating()
+	public void addARating() throws Exception
 	{
 		long mvId = 0L; //The movie id
 		int rating = 0;
@@ -429,6 +516,7 @@ public class Main
 		}
 		StdOut.println("Successfully rated!");
 		recommenderAPI.addRating(loggedInUser.userId, mvId, rating);
+		recommenderAPI.commit();
 	}
 
 	/**
@@ -481,7 +569,7 @@ public class Main
 			}
 
 		}
-		recommenderAPI.store();
+		recommenderAPI.commit();
 	}
 
 	/**
@@ -533,7 +621,7 @@ public class Main
 			}
 
 		}
-		recommenderAPI.store();
+		recommenderAPI.commit();
 	}
 
 	/**
@@ -550,19 +638,13 @@ public class Main
 			Optional<User> user = Optional.fromNullable(recommenderAPI.getUserById(loggedInUser.userId));
 			if (user.isPresent()) 
 			{
-				Set<Long> ratedMoviesId = loggedInUser.ratedMovies.keySet();
-				for (Long movieId: ratedMoviesId) //Delete all the user's rated movies
-				{
-					Movie movie = recommenderAPI.getMovieById(movieId);
-					movie.userRatings.remove(loggedInUser.userId);
-				}
-				recommenderAPI.removeUser(loggedInUser.userId); //Remove the user entirely
+				recommenderAPI.removeUser(loggedInUser.userId); //Remove the user and their ratings entirely
 
 				loggedInUser = null; //Logs the user out of the system
 				StdOut.println("Account deleted");
 			}
 		}
-		recommenderAPI.store();
+		recommenderAPI.commit();
 	}
 
 	/**
@@ -651,7 +733,7 @@ public class Main
 		recommenderAPI.addRating(loggedInUser.userId, movie.movieId, rating);
 
 		StdOut.println("Movie added successfully!");
-		recommenderAPI.store();
+		recommenderAPI.commit();
 	}
 
 }
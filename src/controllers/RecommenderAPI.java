@@ -1,6 +1,8 @@
 package controllers;
 
+import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
@@ -8,23 +10,45 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
 
 import com.google.common.base.Preconditions;
 import com.google.common.base.Predicate;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Range;
+import com.google.common.primitives.Longs;
 
 import models.Movie;
 import models.Rating;
 import models.User;
+import utils.BatchRecommender;
+import utils.ColdStartLists;
+import utils.DenseRatingScorer;
+import utils.ItemSimilarityTable;
+import utils.KnnRecommender;
+import utils.LshIndex;
+import utils.MatrixFactorization;
+import utils.MinHashIndex;
 import utils.MovieAverageRatingComparator;
+import utils.MovieLeaderboard;
+import utils.MovieLensImporter;
+import utils.MutationLog;
+import utils.NeighbourhoodIndex;
 import utils.Parser;
+import utils.RatingMatrix;
+import utils.RecommendationCache;
 import utils.Serializer;
+import utils.SimilarityMeasure;
+import utils.UserSimilarityScorer;
 
 public class RecommenderAPI
 {
 	private Serializer serializer;
+	private MutationLog mutationLog;
+	int checkpointInterval = 1000; //Logged mutations which trigger a new snapshot
 
 	Map<Long, User> users = new HashMap<>();
 	Map<String, User> usersLogin = new HashMap<>();
@@ -32,6 +56,35 @@ public class RecommenderAPI
 	List<Rating> ratings = new ArrayList<>();
 	Parser parser = new Parser();
 	MovieAverageRatingComparator movieAvgComparator;
+	boolean parallelIngestion = false; //Parse raw rating data on a fork-join pool
+	String ingestReport; //Throughput of the last raw data load
+	RatingMatrix ratingMatrix; //Built on first use after users or movies change
+	Set<Long> changedUsers = new HashSet<>(); //Users whose ratings changed since the rating matrix was made
+	UserSimilarityScorer userScorer; //Scratch space sized to the current rating matrix
+	SimilarityMeasure similarityMeasure = SimilarityMeasure.DOT; //Similarity of users for user-based recommendations
+	KnnRecommender knnRecommender; //Follows the user scorer, and with it patches of the rating matrix
+	int[] neighbourScratch = new int[0], movieScratch = new int[0], candidateScratch = new int[0]; //Reused by k-NN queries
+	double[] weightScratch = new double[0];
+	long[] candidateIdScratch = new long[0];
+	boolean denseScoring = false; //Score users over dense rating rows when the rating matrix is small enough
+	DenseRatingScorer denseScorer; //Rebuilt on first use after the rating matrix changes
+	int knnNeighbours = 0; //Neighbours used by getUserRecommendations, 0 for the single most similar user
+	int knnResults = 10; //Movies returned by getUserRecommendations in k-NN mode
+	NeighbourhoodIndex neighbourhoodIndex; //Precomputed neighbours for k-NN mode, if enabled
+	int lshBands = 0, lshRows = 0; //Candidate neighbours from hash buckets for k-NN mode, if bands > 0
+	LshIndex lshIndex; //Rebuilt on first use after the rating matrix changes
+	MinHashIndex minHashIndex; //Signatures of the movies each user rated, kept up to date, if enabled
+	int minHashCandidates = 0; //Users scored exactly among those with the most similar signatures
+	RecommendationCache<List<Movie>> recommendationCache; //Results of getUserRecommendations, if enabled
+	ColdStartLists coldStartLists; //Top movies of each user segment for users with no ratings, if enabled
+	ItemSimilarityTable itemSimilarities; //Similar movies for item-based recommendations, if enabled
+	int itemNeighbours = 0; //Similar movies kept per movie
+	File itemSimilarityFile; //Saved after each snapshot of the datastore
+	ExecutorService itemRebuilder; //Rebuilds the item similarities after a snapshot, outside the API lock
+	Future<?> itemRebuild; //Rebuild submitted but not yet started, or null
+	int itemGeneration = 0; //Incremented by each table set on the calling thread, so older rebuilds are discarded
+	MatrixFactorization factorModel; //Latent factor model, if trained
+	MovieLeaderboard leaderboard; //Built on first use after a load, then kept up to date
 
 	public RecommenderAPI()
 	{}
@@ -43,39 +96,210 @@ public class RecommenderAPI
 		this.serializer = serializer;
 	}
 
+	/**
+	 * Persist mutations to an append-only log which is folded into a snapshot periodically
+	 * @param serializer
+	 * @param mutationLog
+	 * @throws Exception
+	 */
+	public RecommenderAPI(Serializer serializer, MutationLog mutationLog) throws Exception
+	{
+		this.serializer = serializer;
+		this.mutationLog = mutationLog;
+	}
+
 
 	public void loadRawData() throws Exception
 	{
-		String userDataPath = ("././data/data_movieLens/users.dat");
-		String movieDataPath = ("././data/data_movieLens/items.dat");
-		String ratingDataPath = ("././data/data_movieLens/ratings.dat");
+		loadRawData("././data/data_movieLens/users.dat", "././data/data_movieLens/items.dat", "././data/data_movieLens/ratings.dat");
+	}
 
+	/**
+	 * Loads raw MovieLens data from the given files and stores it
+	 * @param userDataPath
+	 * @param movieDataPath
+	 * @param ratingDataPath
+	 * @throws Exception
+	 */
+	public synchronized void loadRawData(String userDataPath, String movieDataPath, String ratingDataPath) throws Exception
+	{
 		users = parser.parseUserData(userDataPath);
 		movies = parser.parseMovieData(movieDataPath);
-		ratings = parser.parseRatingData(ratingDataPath);
+		ratings = parallelIngestion ? parser.parseRatingDataParallel(ratingDataPath) : parser.parseRatingData(ratingDataPath);
+		ingestReport = parser.getIngestReport();
+		dataReplaced();
+		store();
+	}
+
+	/**
+	 * Loads a MovieLens release (100K, 1M, 10M, 20M/25M) from its directory and stores it
+	 * @param directory
+	 * @throws Exception
+	 */
+	public synchronized void loadRawData(File directory) throws Exception
+	{
+		if (MovieLensImporter.detect(directory) == MovieLensImporter.Format.PIPE)
+		{
+			loadRawData(new File(directory, "users.dat").getPath(), new File(directory, "items.dat").getPath(),
+					new File(directory, "ratings.dat").getPath());
+			return;
+		}
+		MovieLensImporter importer = new MovieLensImporter();
+		importer.importDirectory(directory);
+		users = importer.getUsers();
+		movies = importer.getMovies();
+		ratings = importer.getRatings();
+		ingestReport = importer.report();
+		dataReplaced();
 		store();
 	}
 
 	@SuppressWarnings("unchecked")
-	public void load() throws Exception
+	public synchronized void load() throws Exception
 	{
 		serializer.read();
-		ratings = (List<Rating>) serializer.pop();
+		Object top = serializer.pop();
+		long snapshotLsn = 0; //Snapshots written without a mutation log hold no sequence number
+		if (top instanceof Long)
+		{
+			snapshotLsn = (Long) top;
+			top = serializer.pop();
+		}
+		ratings = (List<Rating>) top;
 		movies = (Map<Long, Movie>) serializer.pop();
 		usersLogin = (Map<String, User>) serializer.pop();
 		users = (Map<Long, User>) serializer.pop();
+		for (Movie movie: movies.values())
+		{
+			movie.recalculateAggregates();
+		}
+		for (User user: users.values())
+		{
+			user.recalculateAggregates();
+		}
+
+		if (mutationLog != null)
+		{
+			//Only the records after the snapshot are applied, so each is applied exactly once
+			mutationLog.replay(snapshotLsn, new MutationLog.Replayer()
+			{
+				public void addUser(User user)
+				{
+					putUser(user);
+				}
+
+				public void addMovie(Movie movie)
+				{
+					movies.put(movie.movieId, movie);
+				}
+
+				public void addRating(Rating rating)
+				{
+					putRating(rating);
+				}
+
+				public void removeUser(long userId)
+				{
+					deleteUser(userId);
+				}
+			});
+		}
+		dataReplaced();
+		if (itemNeighbours > 0)
+		{
+			loadItemSimilarities();
+		}
+	}
+
+	/**
+	 * Discards the structures derived from the previous data, and rebuilds the neighbourhood index
+	 */
+	private void dataReplaced()
+	{
+		ratingMatrix = null;
+		leaderboard = null;
+		clearRecommendationCache();
+		if (minHashIndex != null)
+		{
+			buildMinHashIndex(minHashIndex.getHashes());
+		}
+		if (coldStartLists != null)
+		{
+			coldStartLists.build(users.values());
+		}
+		if (neighbourhoodIndex != null)
+		{
+			neighbourhoodIndex.build(getRatingMatrix());
+		}
 	}
 
-	public void store() throws Exception
+	public synchronized void store() throws Exception
 	{
 		serializer.push(users);
 		serializer.push(usersLogin);
 		serializer.push(movies);
 		serializer.push(ratings);
+		if (mutationLog != null)
+		{
+			serializer.push(mutationLog.getLsn()); //Records up to it are part of the snapshot
+		}
 		serializer.write(); 
+		if (mutationLog != null)
+		{
+			mutationLog.truncate(); //The snapshot is on disk once written, and holds everything logged so far
+		}
+		if (itemNeighbours > 0)
+		{
+			rebuildItemSimilarities();
+		}
+	}
+
+	/**
+	 * Writes the loaded datastore, including the mutations replayed from its log, with another serializer, e.g. to
+	 * move it to another format. The snapshot holds no log position, as the target starts a log of its own, and
+	 * the source datastore and log are left as they are.
+	 * @param to
+	 * @throws Exception
+	 */
+	public synchronized void migrate(Serializer to) throws Exception
+	{
+		to.push(users);
+		to.push(usersLogin);
+		to.push(movies);
+		to.push(ratings);
+		to.write();
 	}
 
-	public User addUser(String firstName, String lastName, int age, char gender, String occupation, String username, String password)
+	/**
+	 * Makes the mutations since the last commit durable. With a mutation log this is a group commit
+	 * of the logged records, and a new snapshot is written once the log grows past the checkpoint interval.
+	 * Without one the full datastore is stored.
+	 * @throws Exception
+	 */
+	public synchronized void commit() throws Exception
+	{
+		if (mutationLog == null)
+		{
+			store();
+			return;
+		}
+		mutationLog.commit();
+		if (mutationLog.size() >= checkpointInterval)
+		{
+			checkpoint();
+		}
+	}
+
+	/**
+	 * Folds the mutation log into a new snapshot
+	 * @throws Exception
+	 */
+	public void checkpoint() throws Exception
+	{
+		store();
+	}
+
+	public synchronized User addUser(String firstName, String lastName, int age, char gender, String occupation, String username, String password)
 	{
 		Preconditions.checkNotNull(firstName);
 		Preconditions.checkNotNull(lastName);
@@ -96,132 +320,808 @@ public class RecommenderAPI
 		
 		long userId = highest + 1;
 		User user = new User(userId, firstName, lastName, age, gender, occupation, username, password);
+		putUser(user);
+		if (mutationLog != null)
+		{
+			mutationLog.logAddUser(user);
+		}
+		return user;
+	}
+
+	private void putUser(User user)
+	{
 		users.put(user.userId, user);
 		usersLogin.put(user.username, user);
-		return user;
+		ratingMatrix = null;
 	}
 
-	public void removeUser(long userId)
+	/**
+	 * Removes the user along with their ratings of movies
+	 * @param userId
+	 */
+	public synchronized void removeUser(long userId)
 	{
 		Preconditions.checkNotNull(userId);
+		deleteUser(userId);
+		if (mutationLog != null)
+		{
+			mutationLog.logRemoveUser(userId);
+		}
+	}
+
+	private void deleteUser(long userId)
+	{
 		User user = getUserById(userId);
+		if (coldStartLists != null)
+		{
+			coldStartLists.removeUser(user);
+			coldStartLists.rebuild();
+		}
+		Set<Long> coRaters = new HashSet<>(); //Users with a similarity to this user
+		for (Long movieId: user.ratedMovies.keySet()) //Delete all the user's rated movies
+		{
+			Movie movie = getMovieById(movieId);
+			if (movie != null)
+			{
+				movie.removeUserRating(user.userId);
+				coRaters.addAll(movie.userRatings.keySet());
+				if (leaderboard != null)
+				{
+					leaderboard.update(movie);
+				}
+			}
+		}
+		Set<Long> affected = coRaters;
+		if (!similarityMeasure.isUserLocal()) //The means of the user's movies moved, so their raters' vectors changed
+		{
+			affected = new HashSet<>();
+			for (long coRater: coRaters)
+			{
+				addCoRaters(getUserById(coRater), affected);
+			}
+		}
 		users.remove(user.userId);
 		usersLogin.remove(user.username);
+		ratingMatrix = null;
+		if (recommendationCache != null)
+		{
+			recommendationCache.invalidate(user.userId);
+			if (!similarityMeasure.isUserLocal()) //The similarities among the other users changed too
+			{
+				for (long affectedId: affected)
+				{
+					recommendationCache.invalidate(affectedId);
+				}
+			}
+		}
+		if (minHashIndex != null)
+		{
+			minHashIndex.remove(user.userId);
+		}
+		if (neighbourhoodIndex != null)
+		{
+			neighbourhoodIndex.remove(user.userId);
+			neighbourhoodIndex.markDirty(affected);
+			neighbourhoodIndex.repair(this::getRatingMatrix);
+		}
 	}
 
-	public Movie addMovie(String title, int year, String url)
+	public synchronized Movie addMovie(String title, int year, String url)
 	{
 		Preconditions.checkNotNull(title);
 		Preconditions.checkNotNull(year);
 		Preconditions.checkNotNull(url);
 
-		long movieId = movies.size() + 1;
+		//Imported releases leave gaps in the ids, so the count could name an existing movie
+		long highest = 0L;
+		for (Long key: movies.keySet())
+		{
+			if (key > highest)
+			{
+				highest = key;
+			}
+		}
+
+		long movieId = highest + 1;
 		Movie movie = new Movie(movieId, title, year, url);
 		movies.put(movieId, movie);
+		ratingMatrix = null;
+		if (leaderboard != null)
+		{
+			leaderboard.update(movie);
+		}
+		if (mutationLog != null)
+		{
+			mutationLog.logAddMovie(movie);
+		}
 		return movie;
 	}
 
-	public Rating addRating(long userId, long movieId, int rating)
+	public synchronized Rating addRating(long userId, long movieId, int rating)
 	{
 		Preconditions.checkNotNull(userId);
 		Preconditions.checkNotNull(movieId);
 		Preconditions.checkNotNull(rating);
 
 		Rating r = new Rating(userId, movieId, rating);
+		putRating(r);
+		if (mutationLog != null)
+		{
+			mutationLog.logAddRating(r);
+		}
+		return r;
+	}
+
+	private void putRating(Rating r)
+	{
 		User user = getUserById(r.userId);
 		Movie movie = getMovieById(r.movieId);
 
+		Rating previous = user.ratedMovies.get(movie.movieId);
 		user.addRatedMovies(movie.movieId, r);
 		movie.addUserRatings(user.userId, r);
 		ratings.add(r);
+		changedUsers.add(user.userId);
+		if (leaderboard != null)
+		{
+			leaderboard.update(movie);
+		}
+		Set<Long> affected = recommendationCache != null || neighbourhoodIndex != null ? affectedByRating(user, movie) : null;
+		if (recommendationCache != null) //Results of the affected users, and those computed from them
+		{
+			for (long affectedId: affected)
+			{
+				recommendationCache.invalidate(affectedId);
+			}
+		}
+		if (minHashIndex != null)
+		{
+			minHashIndex.add(user, movie.movieId);
+		}
+		if (coldStartLists != null)
+		{
+			coldStartLists.addRating(user, previous, r);
+			coldStartLists.rebuild();
+		}
+		if (neighbourhoodIndex != null)
+		{
+			neighbourhoodIndex.markDirty(affected);
+			neighbourhoodIndex.repair(this::getRatingMatrix);
+		}
+	}
 
-		return r;
+	/**
+	 * @return The users with a similarity to some other user which changed when the user rated the movie
+	 */
+	private Set<Long> affectedByRating(User user, Movie movie)
+	{
+		Set<Long> affected = new HashSet<>();
+		switch (similarityMeasure)
+		{
+		case DOT: //Only the products over the movie changed
+			affected.addAll(movie.userRatings.keySet());
+			break;
+		case ADJUSTED_COSINE: //The movie's mean moved, so the vector of every rater of it changed
+			for (long rater: movie.userRatings.keySet())
+			{
+				addCoRaters(getUserById(rater), affected);
+			}
+			break;
+		default: //The user's vector length, and under Pearson their mean, changed
+			addCoRaters(user, affected);
+		}
+		return affected;
 	}
 
-	public List<Movie> getTopTenMovies()
+	/**
+	 * Adds the user and every user who rated a movie in common with them
+	 */
+	private void addCoRaters(User user, Set<Long> coRaters)
 	{
-		List<Movie> topTen = new ArrayList<>(movies.values());
-		Preconditions.checkArgument(topTen.size() > 0);
-		Preconditions.checkNotNull(topTen);
-		movieAvgComparator = new MovieAverageRatingComparator();
-		Collections.sort(topTen, movieAvgComparator);
-		if (topTen.size() > 10)
+		coRaters.add(user.userId);
+		for (long movieId: user.ratedMovies.keySet())
 		{
-			return topTen.subList(0, 10);
+			coRaters.addAll(getMovieById(movieId).userRatings.keySet());
 		}
-		else
+	}
+
+	/**
+	 * The ratings as a compact sparse matrix, made on the first call after they change. It is rebuilt after users
+	 * or movies change, and patched with the rows of the users whose ratings changed otherwise.
+	 * @return
+	 */
+	public synchronized RatingMatrix getRatingMatrix()
+	{
+		if (ratingMatrix == null)
+		{
+			ratingMatrix = new RatingMatrix(users.values(), movies.values());
+		}
+		else if (!changedUsers.isEmpty())
+		{
+			List<User> changed = new ArrayList<>();
+			for (long userId: changedUsers)
+			{
+				changed.add(getUserById(userId));
+			}
+			ratingMatrix = new RatingMatrix(ratingMatrix, changed, movies);
+		}
+		changedUsers.clear();
+		return ratingMatrix;
+	}
+
+	private UserSimilarityScorer getUserScorer()
+	{
+		RatingMatrix matrix = getRatingMatrix();
+		if (userScorer == null || userScorer.getMeasure() != similarityMeasure
+				|| (userScorer.getMatrix() != matrix && !userScorer.update(matrix)))
 		{
-			return topTen;
+			userScorer = new UserSimilarityScorer(matrix, similarityMeasure);
 		}
+		return userScorer;
 	}
-	public List<Movie> getUserRecommendations(long userId)
+
+	private KnnRecommender getKnnRecommender()
+	{
+		UserSimilarityScorer scorer = getUserScorer();
+		if (knnRecommender == null || knnRecommender.getScorer() != scorer)
+		{
+			knnRecommender = new KnnRecommender(scorer);
+		}
+		return knnRecommender;
+	}
+
+	/**
+	 * @return The dense scorer, or null if dense scoring is disabled or the rating matrix is too large or too
+	 * sparse for it to pay off
+	 */
+	private DenseRatingScorer getDenseScorer()
+	{
+		RatingMatrix matrix = getRatingMatrix();
+		if (!denseScoring || !DenseRatingScorer.paysOff(matrix))
+		{
+			return null;
+		}
+		if (denseScorer == null || denseScorer.getMeasure() != similarityMeasure
+				|| (denseScorer.getMatrix() != matrix && !denseScorer.update(matrix)))
+		{
+			denseScorer = new DenseRatingScorer(matrix, similarityMeasure);
+		}
+		return denseScorer;
+	}
+
+	private LshIndex getLshIndex()
+	{
+		RatingMatrix matrix = getRatingMatrix();
+		if (lshIndex != null && lshIndex.getMatrix() != matrix && lshIndex.getMeasure() == similarityMeasure
+				&& similarityMeasure.isUserLocal() && matrix.changedSince(lshIndex.getMatrix()) != null)
+		{
+			lshIndex = new LshIndex(lshIndex, matrix); //Hash only the users whose ratings changed
+		}
+		if (lshIndex == null || lshIndex.getMatrix() != matrix || lshIndex.getMeasure() != similarityMeasure)
+		{
+			lshIndex = new LshIndex(matrix, similarityMeasure, lshBands, lshRows);
+		}
+		return lshIndex;
+	}
+
+	public synchronized List<Movie> getTopTenMovies()
+	{
+		List<Movie> topTen = getTopMovies(10);
+		Preconditions.checkArgument(topTen.size() > 0);
+		return topTen;
+	}
+
+	/**
+	 * @param n
+	 * @return Up to n movies with the highest average ratings, highest first
+	 */
+	public synchronized List<Movie> getTopMovies(int n)
+	{
+		Preconditions.checkArgument(n >= 0);
+		return getLeaderboard().top(n);
+	}
+
+	/**
+	 * @param movieId
+	 * @return The position of the movie by average rating counting from 1, or -1 if there is no such movie
+	 */
+	public synchronized int getMovieRank(long movieId)
+	{
+		return getLeaderboard().rank(movieId);
+	}
+
+	private MovieLeaderboard getLeaderboard()
+	{
+		if (leaderboard == null)
+		{
+			leaderboard = new MovieLeaderboard(movies.values());
+		}
+		return leaderboard;
+	}
+
+	/**
+	 * Recommends movies from the single most similar user, or from the k nearest neighbours in k-NN mode. Results
+	 * are served from the recommendation cache, if enabled, until the user or one of their neighbours changes. A
+	 * result from neighbours the neighbourhood index has yet to repair is not cached.
+	 * A user who has not rated any movies gets the cold-start list of their segment, if enabled.
+	 * @param userId
+	 * @return The recommended movies, or null if the user has not rated any movies and there are no cold-start lists
+	 */
+	public synchronized List<Movie> getUserRecommendations(long userId)
 	{
 		Preconditions.checkNotNull(userId);
+		if (coldStartLists != null && getUserById(userId).ratedMovies.isEmpty())
+		{
+			return coldStartRecommendations(getUserById(userId), coldStartLists.getListSize());
+		}
+
+		if (recommendationCache != null)
+		{
+			List<Movie> cached = recommendationCache.get(userId);
+			if (cached != null)
+			{
+				return new ArrayList<>(cached);
+			}
+		}
+		//Neighbours looked up in the index before its repair would be cached past it, so such a result is not kept
+		boolean current = knnNeighbours == 0 || neighbourhoodIndex == null || !neighbourhoodIndex.isStale(userId);
+		List<Long> neighbourIds = new ArrayList<>();
+		List<Movie> recommendedMoviesList = knnNeighbours > 0 
+				? knnRecommendations(userId, knnNeighbours, knnResults, neighbourIds) 
+				: mostSimilarRecommendations(userId, neighbourIds);
+		if (recommendationCache != null && recommendedMoviesList != null && current)
+		{
+			recommendationCache.put(userId, new ArrayList<>(recommendedMoviesList), Longs.toArray(neighbourIds));
+		}
+		return recommendedMoviesList;
+	}
 
+	private List<Movie> mostSimilarRecommendations(long userId, List<Long> neighbourIds)
+	{
 		User currentUser = getUserById(userId);
 		if (currentUser.ratedMovies.size() > 0) 
 		{
-			Set<Long> targetUsers = new HashSet<>();
+			//Dot product similarity with every user who rated a movie in common, in one pass over the postings
+			UserSimilarityScorer scorer = getUserScorer();
+			DenseRatingScorer dense = getDenseScorer();
+			RatingMatrix matrix = scorer.getMatrix();
+			int u = matrix.userIndex(currentUser.userId);
+			int mostSimilar = dense != null ? dense.mostSimilar(u) : scorer.mostSimilar(u);
 			
-			List<Rating> currentUserRatings = new ArrayList<>(currentUser.ratedMovies.values());
-
-			for (Rating currentUserRating: currentUserRatings)
+			User mostSimilarUser = mostSimilar >= 0 ? getUserById(matrix.userIds[mostSimilar]) : null;
+			List<Movie> recommendedMoviesList = new ArrayList<>();
+			if (mostSimilarUser != null) 
 			{
-				Movie movie = getMovieById(currentUserRating.movieId);
-				if (movie.userRatings.size() > 1)
+				neighbourIds.add(mostSimilarUser.userId);
+				for (Rating rating: mostSimilarUser.ratedMovies.values())
 				{
-					targetUsers.addAll(movie.userRatings.keySet());
+					if (rating.rating >=3 && !currentUser.ratedMovies.containsKey(rating.movieId))
+					{
+						recommendedMoviesList.add(getMovieById(rating.movieId));
+					}
 				}
 			}
-			
-			Long mostSimilar = 0L;
-			int totalSimilarity = 0;
-			targetUsers.remove(currentUser.userId);
-//			System.out.println(targetUsers);
-			if (targetUsers != null && targetUsers.size() > 0) 
+			movieAvgComparator = new MovieAverageRatingComparator();
+			Collections.sort(recommendedMoviesList, movieAvgComparator);
+			return recommendedMoviesList;
+		}
+		else
+		{
+			return null;
+		}
+	}
+
+	/**
+	 * Recommends the movies rated highest by the user's k most similar users, weighted by their similarity
+	 * @param userId
+	 * @param k Number of neighbours
+	 * @param n Maximum number of movies
+	 * @return Up to n movies the user has not rated, best first. A user who has not rated any movies gets up to n
+	 * movies of the cold-start list of their segment, or null if there are no cold-start lists.
+	 */
+	public synchronized List<Movie> getUserRecommendations(long userId, int k, int n)
+	{
+		Preconditions.checkArgument(k > 0);
+		Preconditions.checkArgument(n >= 0);
+		if (coldStartLists != null && getUserById(userId).ratedMovies.isEmpty())
+		{
+			return coldStartRecommendations(getUserById(userId), n);
+		}
+		return knnRecommendations(userId, k, n, new ArrayList<>());
+	}
+
+	/**
+	 * @return Up to n movies of the cold-start list of the user's segment
+	 */
+	private List<Movie> coldStartRecommendations(User user, int n)
+	{
+		List<Movie> recommendedMoviesList = new ArrayList<>();
+		for (long movieId: coldStartLists.get(user))
+		{
+			Movie movie = getMovieById(movieId);
+			if (movie != null && recommendedMoviesList.size() < n)
+			{
+				recommendedMoviesList.add(movie);
+			}
+		}
+		return recommendedMoviesList;
+	}
+
+	/**
+	 * @param neighbourIds Receives the ids of the neighbours used
+	 */
+	private List<Movie> knnRecommendations(long userId, int k, int n, List<Long> neighbourIds)
+	{
+		User currentUser = getUserById(userId);
+		if (currentUser.ratedMovies.size() > 0)
+		{
+			KnnRecommender recommender = getKnnRecommender();
+			DenseRatingScorer dense = getDenseScorer();
+			RatingMatrix matrix = recommender.getMatrix();
+			int u = matrix.userIndex(userId);
+			if (neighbourScratch.length < k)
+			{
+				neighbourScratch = new int[k];
+				weightScratch = new double[k];
+			}
+			int[] neighbours = neighbourScratch;
+			double[] weights = weightScratch;
+			int count = 0;
+
+			NeighbourhoodIndex.Neighbours indexed = neighbourhoodIndex != null && k <= neighbourhoodIndex.getNeighbourhoodSize()
+					? neighbourhoodIndex.get(userId) : null;
+			if (indexed != null) //Look up the neighbours rather than scoring every co-rater
 			{
-				for (Long targetId: targetUsers)
+				for (int i = 0; i < indexed.size() && count < k; i++)
 				{
-					User targetUser = getUserById(targetId);
-					int currentSimilarity = 0;
-					int targetRating = 0;
-					int currentRating = 0;
-					
-					for (Rating targetUserRating: targetUser.ratedMovies.values())
+					int v = matrix.userIndex(indexed.userIds[i]);
+					if (v >= 0)
 					{
-						Movie movie = getMovieById(targetUserRating.movieId);			
-						
-						if (currentUser.ratedMovies.containsKey(targetUserRating.movieId))
-						{
-							targetRating = targetUserRating.rating;
-							currentRating = currentUser.ratedMovies.get(movie.movieId).rating;
-							currentSimilarity += (currentRating * targetRating);
-						}
+						neighbours[count] = v;
+						weights[count++] = indexed.weights[i];
 					}
-					
-					if (currentSimilarity > totalSimilarity)
+				}
+			}
+			else if (lshBands > 0) //Score only the users sharing a hash bucket
+			{
+				count = getLshIndex().neighbours(u, k, neighbours, weights);
+			}
+			else if (minHashIndex != null) //Score only the users whose rated movies overlap the most
+			{
+				if (candidateScratch.length != minHashCandidates)
+				{
+					candidateIdScratch = new long[minHashCandidates];
+					candidateScratch = new int[minHashCandidates];
+				}
+				long[] candidateIds = candidateIdScratch;
+				int[] candidates = candidateScratch;
+				int found = minHashIndex.candidates(userId, minHashCandidates, candidateIds, null);
+				int candidateCount = 0;
+				for (int i = 0; i < found; i++)
+				{
+					int v = matrix.userIndex(candidateIds[i]);
+					if (v >= 0)
 					{
-						totalSimilarity = currentSimilarity;
-						mostSimilar = targetId;
-					}						
+						candidates[candidateCount++] = v;
+					}
 				}
+				count = recommender.getScorer().neighbours(u, candidates, candidateCount, k, neighbours, weights);
 			}
-			
-			User mostSimilarUser = getUserById(mostSimilar);
-			System.out.println(mostSimilarUser);
+			else if (dense != null)
+			{
+				count = dense.neighbours(u, k, neighbours, weights);
+			}
+			else
+			{
+				count = recommender.neighbours(u, k, neighbours, weights);
+			}
+			for (int i = 0; i < count; i++)
+			{
+				neighbourIds.add(matrix.userIds[neighbours[i]]);
+			}
+
+			if (movieScratch.length < n)
+			{
+				movieScratch = new int[n];
+			}
+			int[] movies = movieScratch;
+			int size = dense != null ? dense.recommend(u, neighbours, weights, count, n, movies)
+					: recommender.recommend(u, neighbours, weights, count, n, movies);
 			List<Movie> recommendedMoviesList = new ArrayList<>();
-			if (mostSimilarUser != null) 
+			for (int i = 0; i < size; i++)
 			{
-				for (Rating rating: mostSimilarUser.ratedMovies.values())
+				recommendedMoviesList.add(getMovieById(matrix.movieIds[movies[i]]));
+			}
+			return recommendedMoviesList;
+		}
+		else
+		{
+			return null;
+		}
+	}
+
+	/**
+	 * Caches the results of getUserRecommendations for up to capacity users. A user's result is dropped when a
+	 * rating or a removal changes their similarity to another user, or changes a neighbour it was computed from.
+	 * @param capacity Maximum number of users cached, or 0 to disable the cache
+	 */
+	public synchronized void enableRecommendationCache(int capacity)
+	{
+		Preconditions.checkArgument(capacity >= 0);
+		recommendationCache = capacity > 0 ? new RecommendationCache<>(capacity) : null;
+	}
+
+	/**
+	 * @return The recommendation cache with its hit, miss and eviction counters, or null if it is not enabled
+	 */
+	public synchronized RecommendationCache<List<Movie>> getRecommendationCache()
+	{
+		return recommendationCache;
+	}
+
+	/**
+	 * Drops every cached recommendation after a change to how they are computed
+	 */
+	private void clearRecommendationCache()
+	{
+		if (recommendationCache != null)
+		{
+			recommendationCache.clear();
+		}
+	}
+
+	/**
+	 * Precomputes the k most similar users of every user in parallel for k-NN recommendations. The index is
+	 * rebuilt after each load and repaired in the background when ratings change.
+	 * @param k Neighbours kept per user
+	 */
+	public synchronized void enableNeighbourhoodIndex(int k)
+	{
+		if (neighbourhoodIndex != null)
+		{
+			neighbourhoodIndex.close();
+		}
+		neighbourhoodIndex = new NeighbourhoodIndex(k, similarityMeasure);
+		neighbourhoodIndex.build(getRatingMatrix());
+		clearRecommendationCache();
+	}
+
+	/**
+	 * Writes the k-NN recommendations of every user to a file in parallel, for reading with BatchRecommender.read
+	 * @param file
+	 * @param k Number of neighbours
+	 * @param n Maximum number of movies per user
+	 * @return The number of users and users per second
+	 * @throws Exception
+	 */
+	public synchronized String writeRecommendations(File file, int k, int n) throws Exception
+	{
+		return writeRecommendations(file, k, n, Long.MIN_VALUE, Long.MAX_VALUE);
+	}
+
+	/**
+	 * Writes the k-NN recommendations of the users with ids in [fromUserId, toUserId] to a file in parallel
+	 * @param file
+	 * @param k Number of neighbours
+	 * @param n Maximum number of movies per user
+	 * @param fromUserId
+	 * @param toUserId
+	 * @return The number of users and users per second
+	 * @throws Exception
+	 */
+	public synchronized String writeRecommendations(File file, int k, int n, long fromUserId, long toUserId) throws Exception
+	{
+		Preconditions.checkArgument(k > 0);
+		Preconditions.checkArgument(n >= 0);
+		Preconditions.checkArgument(fromUserId <= toUserId);
+		RatingMatrix matrix = getRatingMatrix();
+		BatchRecommender batch = new BatchRecommender(matrix, k, n);
+		batch.setMeasure(similarityMeasure);
+		int from = firstIndexAtLeast(matrix.userIds, fromUserId);
+		int to = toUserId == Long.MAX_VALUE ? matrix.userCount() : firstIndexAtLeast(matrix.userIds, toUserId + 1);
+		batch.run(from, to, file);
+		return batch.report();
+	}
+
+	/**
+	 * @return The position of the first id not less than the id in the ascending ids
+	 */
+	private static int firstIndexAtLeast(long[] ids, long id)
+	{
+		int i = Arrays.binarySearch(ids, id);
+		return i >= 0 ? i : -i - 1;
+	}
+
+	/**
+	 * Makes k-NN recommendations search for neighbours among the users sharing a locality-sensitive hash bucket
+	 * rather than among every co-rater. Some true neighbours may be missed. The precomputed neighbourhood index
+	 * takes precedence when enabled.
+	 * @param bands Number of bands, or 0 to disable
+	 * @param rows Hyperplanes per band
+	 */
+	public synchronized void enableLshIndex(int bands, int rows)
+	{
+		Preconditions.checkArgument(bands >= 0);
+		Preconditions.checkArgument(bands == 0 || (rows > 0 && rows <= 32));
+		lshBands = bands;
+		lshRows = rows;
+		lshIndex = null;
+		clearRecommendationCache();
+	}
+
+	/**
+	 * Keeps the top n movies of every user segment, by age band, gender and occupation, for users who have not
+	 * rated any movies. The lists are built now and after each load, and ranked again on a background thread as
+	 * ratings change.
+	 * @param n Movies per list, or 0 to disable
+	 */
+	public synchronized void enableColdStartLists(int n)
+	{
+		Preconditions.checkArgument(n >= 0);
+		if (coldStartLists != null)
+		{
+			coldStartLists.close();
+			coldStartLists = null;
+		}
+		if (n > 0)
+		{
+			coldStartLists = new ColdStartLists(n);
+			coldStartLists.build(users.values());
+		}
+	}
+
+	/**
+	 * Makes k-NN recommendations score only the users whose sets of rated movies are estimated to overlap the
+	 * user's the most, from MinHash signatures, rather than every co-rater. The signatures are kept up to date
+	 * as ratings are added. Some true neighbours may be missed. The precomputed neighbourhood index and the hash
+	 * index take precedence when enabled.
+	 * @param hashes Hash functions per signature, or 0 to disable
+	 * @param candidates Users scored exactly per recommendation
+	 */
+	public synchronized void enableMinHashIndex(int hashes, int candidates)
+	{
+		Preconditions.checkArgument(hashes >= 0);
+		Preconditions.checkArgument(hashes == 0 || candidates > 0);
+		minHashCandidates = candidates;
+		if (hashes > 0)
+		{
+			buildMinHashIndex(hashes);
+		}
+		else
+		{
+			minHashIndex = null;
+		}
+		clearRecommendationCache();
+	}
+
+	private void buildMinHashIndex(int hashes)
+	{
+		minHashIndex = new MinHashIndex(hashes);
+		for (User user: users.values())
+		{
+			minHashIndex.add(user);
+		}
+	}
+
+	/**
+	 * Precomputes the k most similar movies of every movie for getItemRecommendations. The table is rebuilt on a
+	 * background thread after every snapshot of the datastore and saved to the file, and read back on load if it
+	 * was computed from the loaded ratings. Until a rebuild completes, recommendations come from the previous table.
+	 * @param k Similar movies kept per movie
+	 * @param file May be null to keep the table in memory only
+	 * @throws Exception
+	 */
+	public synchronized void enableItemSimilarities(int k, File file) throws Exception
+	{
+		Preconditions.checkArgument(k > 0);
+		itemNeighbours = k;
+		itemSimilarityFile = file;
+		if (itemRebuilder == null)
+		{
+			itemRebuilder = Executors.newSingleThreadExecutor(runnable ->
+			{
+				Thread thread = new Thread(runnable, "item-similarity-rebuild");
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+		loadItemSimilarities();
+	}
+
+	/**
+	 * Reads the saved item similarities, or computes them on the calling thread if there are none for the current
+	 * neighbourhood size and ratings. A file which cannot be read counts as none, as the table can be rebuilt.
+	 */
+	private void loadItemSimilarities() throws Exception
+	{
+		itemGeneration++;
+		if (itemSimilarityFile != null && itemSimilarityFile.isFile())
+		{
+			ItemSimilarityTable saved = null;
+			try
+			{
+				saved = ItemSimilarityTable.load(itemSimilarityFile);
+			}
+			catch (Exception e)
+			{
+				//Rebuilt below
+			}
+			if (saved != null && saved.getNeighbourhoodSize() == itemNeighbours && saved.isCurrent(getRatingMatrix()))
+			{
+				itemSimilarities = saved;
+				return;
+			}
+		}
+		itemSimilarities = ItemSimilarityTable.build(getRatingMatrix(), itemNeighbours);
+		if (itemSimilarityFile != null)
+		{
+			itemSimilarities.save(itemSimilarityFile);
+		}
+	}
+
+	/**
+	 * Computes the item similarities of the current ratings again on the background thread, unless a rebuild is
+	 * already waiting to run, which will include them. The rating matrix is taken under the API lock when the
+	 * rebuild starts, and the table is computed without holding it.
+	 * @return Completes when the table is published
+	 */
+	synchronized Future<?> rebuildItemSimilarities()
+	{
+		if (itemRebuild == null)
+		{
+			itemRebuild = itemRebuilder.submit(() ->
+			{
+				RatingMatrix matrix;
+				int generation, k;
+				synchronized (this)
 				{
-					if (rating.rating >=3 && !currentUser.ratedMovies.containsKey(rating.movieId))
+					itemRebuild = null;
+					matrix = getRatingMatrix();
+					generation = itemGeneration;
+					k = itemNeighbours;
+				}
+				ItemSimilarityTable table = ItemSimilarityTable.build(matrix, k);
+				synchronized (this)
+				{
+					if (generation != itemGeneration || k != itemNeighbours) //Replaced on the calling thread meanwhile
 					{
-						recommendedMoviesList.add(getMovieById(rating.movieId));
+						return null;
 					}
+					itemSimilarities = table;
+					if (itemSimilarityFile != null) //Saved under the lock, so never over a table being saved on load
+					{
+						table.save(itemSimilarityFile);
+					}
+				}
+				return null;
+			});
+		}
+		return itemRebuild;
+	}
+
+	/**
+	 * Recommends the movies most similar to the ones the user rated, using the precomputed item similarities
+	 * @param userId
+	 * @param n Maximum number of movies
+	 * @return Up to n movies the user has not rated, best first, or null if the user has not rated any movies
+	 */
+	public synchronized List<Movie> getItemRecommendations(long userId, int n)
+	{
+		Preconditions.checkState(itemSimilarities != null, "Item similarities are not enabled");
+		Preconditions.checkArgument(n >= 0);
+
+		User currentUser = getUserById(userId);
+		if (currentUser.ratedMovies.size() > 0)
+		{
+			List<Movie> recommendedMoviesList = new ArrayList<>();
+			for (long movieId: itemSimilarities.recommend(currentUser.ratedMovies, n))
+			{
+				Movie movie = getMovieById(movieId);
+				if (movie != null) //Skip movies no longer present
+				{
+					recommendedMoviesList.add(movie);
 				}
 			}
-			movieAvgComparator = new MovieAverageRatingComparator();
-			Collections.sort(recommendedMoviesList, movieAvgComparator);
 			return recommendedMoviesList;
 		}
 		else
@@ -230,6 +1130,98 @@ public class RecommenderAPI
 		}
 	}
 
+	/**
+	 * Trains a latent factor model of the current ratings in parallel for getFactorRecommendations
+	 * @param rank Number of latent factors
+	 * @param epochs Passes over the ratings
+	 * @return The RMSE and throughput of each epoch
+	 */
+	public synchronized String trainFactorModel(int rank, int epochs)
+	{
+		Preconditions.checkArgument(rank > 0);
+		Preconditions.checkArgument(epochs >= 0);
+		MatrixFactorization model = new MatrixFactorization(rank, epochs);
+		model.train(getRatingMatrix());
+		factorModel = model;
+		return model.report();
+	}
+
+	/**
+	 * Recommends the movies with the highest ratings predicted by the latent factor model
+	 * @param userId
+	 * @param n Maximum number of movies
+	 * @return Up to n movies the user has not rated, best first, or null if the user has not rated any movies
+	 */
+	public synchronized List<Movie> getFactorRecommendations(long userId, int n)
+	{
+		Preconditions.checkState(factorModel != null, "The factor model has not been trained");
+		Preconditions.checkArgument(n >= 0);
+
+		User currentUser = getUserById(userId);
+		if (currentUser.ratedMovies.size() > 0)
+		{
+			List<Movie> recommendedMoviesList = new ArrayList<>();
+			for (long movieId: factorModel.recommend(userId, currentUser.ratedMovies.keySet(), n))
+			{
+				Movie movie = getMovieById(movieId);
+				if (movie != null) //Skip movies no longer present
+				{
+					recommendedMoviesList.add(movie);
+				}
+			}
+			return recommendedMoviesList;
+		}
+		else
+		{
+			return null;
+		}
+	}
+
+	/**
+	 * Chooses how the similarity of two users is measured for user-based recommendations. The neighbourhood
+	 * index, if enabled, is rebuilt with the new measure.
+	 * @param measure
+	 */
+	public synchronized void setSimilarityMeasure(SimilarityMeasure measure)
+	{
+		Preconditions.checkNotNull(measure);
+		similarityMeasure = measure;
+		if (neighbourhoodIndex != null)
+		{
+			enableNeighbourhoodIndex(neighbourhoodIndex.getNeighbourhoodSize());
+		}
+		clearRecommendationCache();
+	}
+
+	/**
+	 * Makes user-based recommendations score users and movies over dense rows of every user's ratings rather
+	 * than over the sparse inverted index, on the Vector API when the jdk.incubator.vector module is present. The
+	 * sparse scorers are still used while the rating matrix is too large for dense rows, or too sparse for them to
+	 * be faster, as the bundled data is. The precomputed neighbourhood index and the hash index take precedence
+	 * for neighbours.
+	 * @param dense
+	 */
+	public synchronized void setDenseScoring(boolean dense)
+	{
+		denseScoring = dense;
+		denseScorer = null;
+		clearRecommendationCache();
+	}
+
+	/**
+	 * Makes getUserRecommendations use the k nearest neighbours rather than the single most similar user
+	 * @param k Number of neighbours, or 0 to use the single most similar user
+	 * @param n Maximum number of movies
+	 */
+	public synchronized void setKnnMode(int k, int n)
+	{
+		Preconditions.checkArgument(k >= 0);
+		Preconditions.checkArgument(n >= 0);
+		knnNeighbours = k;
+		knnResults = n;
+		clearRecommendationCache();
+	}
+
 	
 	
 	public boolean authenticate(String username, String password)
@@ -281,6 +1273,25 @@ public class RecommenderAPI
 		return source.stream().filter(item -> item.title.toLowerCase().startsWith(prefix.toLowerCase())).collect(Collectors.toList());
 	}
 	
+	public void setParallelIngestion(boolean parallelIngestion)
+	{
+		this.parallelIngestion = parallelIngestion;
+	}
+
+	/**
+	 * Parse raw data straight from memory-mapped files rather than through read buffers
+	 * @param memoryMapped
+	 */
+	public void setMemoryMappedIngestion(boolean memoryMapped)
+	{
+		parser.setMemoryMapped(memoryMapped);
+	}
+
+	public String getIngestReport()
+	{
+		return ingestReport;
+	}
+
 	public List<Rating> getRatings()
 	{
 		return ratings;
@@ -22,6 +22,12 @@ public class Movie
 	
 	public Map<Long, Rating> userRatings = new HashMap<>();
 
+	//Aggregates of userRatings, kept up to date as ratings are added, overwritten and removed.
+	//Not persisted: they are recalculated on first use after a load.
+	private transient long ratingSum, ratingSumOfSquares;
+	private transient int ratingCount;
+	private transient boolean aggregated;
+
 	public Movie(long movieId, String title, int year, String url)
 	{
 		this.movieId = movieId;
@@ -31,13 +37,35 @@ public class Movie
 	}
 
 	/**
-	 * Add a particular users rating of this movie
+	 * Add a particular users rating of this movie, replacing any previous rating by them
 	 * @param userId
 	 * @param rating
 	 */
 	public void addUserRatings(Long userId, Rating rating)
 	{
-		userRatings.put(userId, rating);
+		aggregate();
+		Rating previous = userRatings.put(userId, rating);
+		if (previous != null)
+		{
+			subtract(previous.rating);
+		}
+		add(rating.rating);
+	}
+
+	/**
+	 * Remove a particular users rating of this movie
+	 * @param userId
+	 * @return The removed rating, or null if the user had not rated this movie
+	 */
+	public Rating removeUserRating(Long userId)
+	{
+		aggregate();
+		Rating removed = userRatings.remove(userId);
+		if (removed != null)
+		{
+			subtract(removed.rating);
+		}
+		return removed;
 	}
 
 	/**
@@ -46,18 +74,77 @@ public class Movie
 	 */
 	public double getAverageRating()
 	{
-		double totalRating = 0.0; 
-		double averageRating = 0.0;
+		aggregate();
+		return ratingCount > 0 ? (double) ratingSum / ratingCount : 0.0;
+	}
+
+	/**
+	 * @return The number of users who rated this movie
+	 */
+	public int getRatingCount()
+	{
+		aggregate();
+		return ratingCount;
+	}
 
+	/**
+	 * @return The sum of the user ratings
+	 */
+	public long getRatingSum()
+	{
+		aggregate();
+		return ratingSum;
+	}
+
+	/**
+	 * @return The population variance of the user ratings
+	 */
+	public double getRatingVariance()
+	{
+		aggregate();
+		if (ratingCount == 0)
+		{
+			return 0.0;
+		}
+		double mean = (double) ratingSum / ratingCount;
+		return Math.max(0.0, (double) ratingSumOfSquares / ratingCount - mean * mean);
+	}
+
+	/**
+	 * Recalculates the aggregates from userRatings
+	 */
+	public void recalculateAggregates()
+	{
+		ratingSum = 0;
+		ratingSumOfSquares = 0;
+		ratingCount = 0;
+		aggregated = true;
 		for (Rating rating: userRatings.values())
 		{
-			totalRating += rating.rating;
+			add(rating.rating);
 		}
-		if (userRatings.size() > 0)
+	}
+
+	private void aggregate()
+	{
+		if (!aggregated)
 		{
-			return averageRating = totalRating/userRatings.size();
+			recalculateAggregates();
 		}
-		return averageRating;
+	}
+
+	private void add(int rating)
+	{
+		ratingSum += rating;
+		ratingSumOfSquares += rating * rating;
+		ratingCount++;
+	}
+
+	private void subtract(int rating)
+	{
+		ratingSum -= rating;
+		ratingSumOfSquares -= rating * rating;
+		ratingCount--;
 	}
 	
 	public String toString()
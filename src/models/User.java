@@ -23,6 +23,12 @@ public class User
 	
 	//Map of movie's and their rating. Using movie`id
 	public Map<Long, Rating> ratedMovies = new HashMap<>();
+
+	//Aggregates of ratedMovies for similarity norms and means, kept up to date as ratings are added and overwritten.
+	//Not persisted: they are recalculated on first use after a load.
+	private transient long ratingSum, ratingSumOfSquares;
+	private transient int ratingCount;
+	private transient boolean aggregated;
 	
 	public User(long userId, String firstName, String lastName, 
 							int age, char gender, String occupation, String username, String password)
@@ -38,13 +44,92 @@ public class User
 	}
 
 	/**
-	 * Add this users particular rating of a movie 
+	 * Add this users particular rating of a movie, replacing any previous rating of it
 	 * @param movieId
 	 * @param rating
 	 */
 	public void addRatedMovies(Long movieId, Rating rating)
 	{
-		ratedMovies.put(movieId, rating);
+		aggregate();
+		Rating previous = ratedMovies.put(movieId, rating);
+		if (previous != null)
+		{
+			subtract(previous.rating);
+		}
+		add(rating.rating);
+	}
+
+	/**
+	 * @return The number of movies this user rated
+	 */
+	public int getRatingCount()
+	{
+		aggregate();
+		return ratingCount;
+	}
+
+	/**
+	 * @return The sum of this user's ratings
+	 */
+	public long getRatingSum()
+	{
+		aggregate();
+		return ratingSum;
+	}
+
+	/**
+	 * @return The sum of the squares of this user's ratings, the squared length of their rating vector
+	 */
+	public long getRatingSumOfSquares()
+	{
+		aggregate();
+		return ratingSumOfSquares;
+	}
+
+	/**
+	 * @return The mean of this user's ratings, or 0 if they have not rated any movies
+	 */
+	public double getRatingMean()
+	{
+		aggregate();
+		return ratingCount > 0 ? (double) ratingSum / ratingCount : 0.0;
+	}
+
+	/**
+	 * Recalculates the aggregates from ratedMovies
+	 */
+	public void recalculateAggregates()
+	{
+		ratingSum = 0;
+		ratingSumOfSquares = 0;
+		ratingCount = 0;
+		aggregated = true;
+		for (Rating rating: ratedMovies.values())
+		{
+			add(rating.rating);
+		}
+	}
+
+	private void aggregate()
+	{
+		if (!aggregated)
+		{
+			recalculateAggregates();
+		}
+	}
+
+	private void add(int rating)
+	{
+		ratingSum += rating;
+		ratingSumOfSquares += rating * rating;
+		ratingCount++;
+	}
+
+	private void subtract(int rating)
+	{
+		ratingSum -= rating;
+		ratingSumOfSquares -= rating * rating;
+		ratingCount--;
 	}
 	
   public String toString()
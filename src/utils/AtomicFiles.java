@@ -0,0 +1,51 @@
+package utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Replaces files as a whole, so a crash leaves either the old or the new contents and never a partly written file.
+ * The new contents are written to a temporary file next to the target, which is forced to disk and then renamed
+ * over the target. The directory is forced as well, so the rename itself survives a crash.
+ */
+public class AtomicFiles
+{
+	private AtomicFiles()
+	{}
+
+	/**
+	 * @param file
+	 * @return The temporary file to write the new contents of the file to
+	 */
+	public static File temp(File file)
+	{
+		return new File(file.getPath() + ".tmp");
+	}
+
+	/**
+	 * Makes the temporary file durable and moves it over the file
+	 * @param temp The fully written temporary file
+	 * @param file The file to replace
+	 * @throws IOException
+	 */
+	public static void replace(File temp, File file) throws IOException
+	{
+		try (FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.WRITE))
+		{
+			channel.force(true);
+		}
+		Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		try (FileChannel directory = FileChannel.open(file.getAbsoluteFile().getParentFile().toPath(), StandardOpenOption.READ))
+		{
+			directory.force(true);
+		}
+		catch (IOException e)
+		{
+			//Some platforms cannot open a directory, and there the rename is as durable as it gets
+		}
+	}
+}
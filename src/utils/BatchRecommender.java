@@ -0,0 +1,256 @@
+package utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import utils.BinarySerializer.ChannelInput;
+
+/**
+ * Computes the k-nearest-neighbour recommendations of a range of users on a fork-join pool and streams them to
+ * a binary file. Each leaf task takes a scorer, recommender, result arrays and output buffer from a free list of
+ * the run and returns them when done, so the users are processed without allocating per user, no more sets are
+ * made than leaves run at once, and none outlive the run on the pool's threads. Each leaf task appends its
+ * encoded users to the file as soon as it finishes, so at most one leaf's output per worker is held in memory,
+ * and the records appear in no particular order.
+ *
+ * The file holds a header with the movie ids, then one record per user: the user id, the number of
+ * recommended movies and their movie indexes, best first.
+ */
+public class BatchRecommender
+{
+	static final int MAGIC = 0x4D4D4352; //"MMCR"
+	static final int VERSION = 1;
+	static final int LEAF_SIZE = 256; //Users per fork-join leaf task
+
+	private final RatingMatrix matrix;
+	private final int k, n;
+	private SimilarityMeasure measure = SimilarityMeasure.DOT;
+	private ForkJoinPool pool = ForkJoinPool.commonPool();
+	private String report;
+
+	/**
+	 * @param matrix
+	 * @param k Number of neighbours
+	 * @param n Maximum number of movies per user
+	 */
+	public BatchRecommender(RatingMatrix matrix, int k, int n)
+	{
+		if (k <= 0 || n < 0)
+		{
+			throw new IllegalArgumentException("Invalid neighbours or movies: " + k + ", " + n);
+		}
+		this.matrix = matrix;
+		this.k = k;
+		this.n = n;
+	}
+
+	/**
+	 * Writes the recommendations of every user
+	 * @param file
+	 * @return The number of users written
+	 * @throws Exception
+	 */
+	public int run(File file) throws Exception
+	{
+		return run(0, matrix.userCount(), file);
+	}
+
+	/**
+	 * Writes the recommendations of the users with index [from, to). Users with no ratings are written with
+	 * no movies.
+	 * @param from First user index
+	 * @param to User index after the last
+	 * @param file
+	 * @return The number of users written
+	 * @throws Exception
+	 */
+	public int run(int from, int to, File file) throws Exception
+	{
+		if (from < 0 || to > matrix.userCount() || from > to)
+		{
+			throw new IllegalArgumentException("Invalid user range: " + from + ", " + to);
+		}
+		long start = System.nanoTime();
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw"))
+		{
+			raf.setLength(0);
+			FileChannel channel = raf.getChannel();
+			ByteBuffer header = ByteBuffer.allocate(20 + 8 * matrix.movieCount());
+			header.putInt(MAGIC).putInt(VERSION).putInt(n).putInt(to - from).putInt(matrix.movieCount());
+			for (long movieId: matrix.movieIds)
+			{
+				header.putLong(movieId);
+			}
+			header.flip();
+			write(channel, header);
+
+			pool.invoke(new BatchTask(channel, new ConcurrentLinkedQueue<>(), from, to));
+			channel.force(false);
+		}
+		catch (UncheckedIOException e)
+		{
+			throw new Exception(e.getMessage(), e);
+		}
+		long elapsed = System.nanoTime() - start;
+		report = String.format("Recommended %d movies for each of %d users in %.1f ms, %.0f users/sec on %d threads",
+				n, to - from, elapsed / 1e6, (to - from) * 1e9 / Math.max(elapsed, 1), pool.getParallelism());
+		return to - from;
+	}
+
+	/**
+	 * @return The throughput of the last run
+	 */
+	public String report()
+	{
+		return report;
+	}
+
+	public void setMeasure(SimilarityMeasure measure)
+	{
+		this.measure = measure;
+	}
+
+	public void setPool(ForkJoinPool pool)
+	{
+		this.pool = pool;
+	}
+
+	/**
+	 * Reads a file written by run
+	 * @param file
+	 * @return Recommended movie ids by user id, best first
+	 * @throws Exception
+	 */
+	public static Map<Long, long[]> read(File file) throws Exception
+	{
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r"); ChannelInput in = new ChannelInput(raf.getChannel()))
+		{
+			if (in.getInt() != MAGIC)
+			{
+				throw new Exception("Not a recommendations file: " + file);
+			}
+			int version = in.getInt();
+			if (version != VERSION)
+			{
+				throw new Exception("Unsupported recommendations version: " + version);
+			}
+			int n = in.getInt();
+			int userCount = in.getInt();
+			long[] movieIds = in.getLongs(in.getInt());
+			Map<Long, long[]> recommendations = new HashMap<>(userCount * 2);
+			for (int i = 0; i < userCount; i++)
+			{
+				long userId = in.getLong();
+				int count = in.getInt();
+				if (count < 0 || count > n)
+				{
+					throw new IOException("Corrupt recommendations file: " + file);
+				}
+				long[] movies = new long[count];
+				for (int j = 0; j < count; j++)
+				{
+					movies[j] = movieIds[in.getInt()];
+				}
+				recommendations.put(userId, movies);
+			}
+			return recommendations;
+		}
+	}
+
+	private static void write(FileChannel channel, ByteBuffer buffer) throws IOException
+	{
+		synchronized (channel)
+		{
+			while (buffer.hasRemaining())
+			{
+				channel.write(buffer);
+			}
+		}
+	}
+
+	/**
+	 * Buffers reused by the leaf tasks of a run, one leaf at a time
+	 */
+	private class Scratch
+	{
+		final KnnRecommender recommender = new KnnRecommender(new UserSimilarityScorer(matrix, measure));
+		final int[] neighbours = new int[k];
+		final double[] weights = new double[k];
+		final int[] movies = new int[n];
+		final ByteBuffer output = ByteBuffer.allocate(LEAF_SIZE * (12 + 4 * n));
+	}
+
+	/**
+	 * Recommends for users [from, to), splitting the range until it is at most LEAF_SIZE
+	 */
+	private class BatchTask extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+
+		private final FileChannel channel;
+		private final Queue<Scratch> scratch; //Free buffers of the run
+		private final int from, to;
+
+		BatchTask(FileChannel channel, Queue<Scratch> scratch, int from, int to)
+		{
+			this.channel = channel;
+			this.scratch = scratch;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute()
+		{
+			if (to - from > LEAF_SIZE)
+			{
+				int middle = (from + to) >>> 1;
+				invokeAll(new BatchTask(channel, scratch, from, middle), new BatchTask(channel, scratch, middle, to));
+				return;
+			}
+			Scratch s = scratch.poll();
+			if (s == null)
+			{
+				s = new Scratch();
+			}
+			s.output.clear();
+			for (int u = from; u < to; u++)
+			{
+				int count = 0;
+				if (matrix.rowSize(u) > 0)
+				{
+					int neighbourCount = s.recommender.neighbours(u, k, s.neighbours, s.weights);
+					count = s.recommender.recommend(u, s.neighbours, s.weights, neighbourCount, n, s.movies);
+				}
+				s.output.putLong(matrix.userIds[u]).putInt(count);
+				for (int i = 0; i < count; i++)
+				{
+					s.output.putInt(s.movies[i]);
+				}
+			}
+			s.output.flip();
+			try
+			{
+				write(channel, s.output);
+			}
+			catch (IOException e)
+			{
+				throw new UncheckedIOException(e);
+			}
+			finally
+			{
+				scratch.offer(s);
+			}
+		}
+	}
+}
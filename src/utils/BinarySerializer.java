@@ -0,0 +1,525 @@
+package utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Stack;
+
+import models.Movie;
+import models.Rating;
+import models.User;
+
+/**
+ * Serializer which persists the datastore as compact binary columns instead of an XML object graph.
+ * Every string is written once to a shared string table and referenced by index, while ids, ratings
+ * and timestamps are written as primitive columns. Reading and writing go through buffered NIO channels.
+ *
+ * The stack is expected to hold the users, usersLogin, movies and ratings structures in the order
+ * they are pushed by the RecommenderAPI, optionally followed by the sequence number of the last mutation log
+ * record the snapshot includes. The sequence number is flagged in the version and written after it.
+ *
+ * In normalized mode only the user, movie and a single rating table are written, so each rating is
+ * stored once. The rated movies, user ratings and login indexes are rebuilt on read and the ratings
+ * list is restored from the rating table. Reading detects the mode from the file header.
+ */
+public class BinarySerializer implements Serializer
+{
+	static final int MAGIC = 0x4D4D4342; //"MMCB"
+	static final int VERSION = 1;
+	static final int VERSION_NORMALIZED = 2;
+	static final int LOG_POSITION = 0x100; //Version flag of a snapshot followed by a mutation log sequence number
+	static final int BUFFER_SIZE = 1 << 16;
+	static final int NO_RATING = Integer.MIN_VALUE; //Marks a Rating without a rating value
+
+	private Stack<Object> stack = new Stack<>();
+	private File file;
+	private boolean normalized;
+
+	public BinarySerializer(File file)
+	{
+		this(file, false);
+	}
+
+	public BinarySerializer(File file, boolean normalized)
+	{
+		this.file = file;
+		this.normalized = normalized;
+	}
+
+	@Override
+	public void push(Object o)
+	{
+		stack.push(o);
+	}
+
+	@Override
+	public Object pop()
+	{
+		return stack.pop();
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public void write() throws Exception
+	{
+		if (stack.size() != 4 && stack.size() != 5)
+		{
+			throw new Exception("Invalid datastore layout: " + stack.size());
+		}
+		Map<Long, User> users = (Map<Long, User>) stack.get(0);
+		Map<String, User> usersLogin = (Map<String, User>) stack.get(1);
+		Map<Long, Movie> movies = (Map<Long, Movie>) stack.get(2);
+		List<Rating> ratings = (List<Rating>) stack.get(3);
+		Long lsn = stack.size() == 5 ? (Long) stack.get(4) : null;
+		stack = new Stack<>(); //Emptied, so the next snapshot is pushed afresh
+
+		//Shared string table
+		Map<String, Integer> stringIndex = new HashMap<>();
+		List<String> strings = new ArrayList<>();
+		for (User user: users.values())
+		{
+			intern(user.firstName, stringIndex, strings);
+			intern(user.lastName, stringIndex, strings);
+			intern(user.occupation, stringIndex, strings);
+			intern(user.username, stringIndex, strings);
+			intern(user.password, stringIndex, strings);
+		}
+		for (Movie movie: movies.values())
+		{
+			intern(movie.title, stringIndex, strings);
+			intern(movie.url, stringIndex, strings);
+		}
+
+		File temp = AtomicFiles.temp(file);
+		try (RandomAccessFile raf = new RandomAccessFile(temp, "rw"); ChannelOutput out = new ChannelOutput(raf.getChannel()))
+		{
+			raf.setLength(0);
+			out.putInt(MAGIC);
+			int version = normalized ? VERSION_NORMALIZED : VERSION;
+			if (lsn != null)
+			{
+				out.putInt(version | LOG_POSITION);
+				out.putLong(lsn);
+			}
+			else
+			{
+				out.putInt(version);
+			}
+
+			out.putInt(strings.size());
+			for (String s: strings)
+			{
+				out.putString(s);
+			}
+
+			int n = users.size();
+			out.putInt(n);
+			for (User user: users.values()) out.putLong(user.userId);
+			for (User user: users.values()) out.putInt(stringIndex.get(user.firstName));
+			for (User user: users.values()) out.putInt(stringIndex.get(user.lastName));
+			for (User user: users.values()) out.putInt(user.age);
+			for (User user: users.values()) out.putChar(user.gender);
+			for (User user: users.values()) out.putInt(stringIndex.get(user.occupation));
+			for (User user: users.values()) out.putInt(stringIndex.get(user.username));
+			for (User user: users.values()) out.putInt(stringIndex.get(user.password));
+
+			if (normalized)
+			{
+				writeMovies(out, movies, stringIndex);
+				writeRatings(out, Normalizer.canonicalRatings(users));
+			}
+			else
+			{
+				//Only the ids are needed as the login map points at the same users
+				List<User> logins = new ArrayList<>();
+				for (User user: usersLogin.values())
+				{
+					if (users.get(user.userId) == user)
+					{
+						logins.add(user);
+					}
+				}
+				out.putInt(logins.size());
+				for (User user: logins) out.putLong(user.userId);
+
+				writeMovies(out, movies, stringIndex);
+				writeRatings(out, ratings);
+
+				List<Rating> ratedMovies = new ArrayList<>();
+				for (User user: users.values())
+				{
+					ratedMovies.addAll(user.ratedMovies.values());
+				}
+				writeRatings(out, ratedMovies);
+
+				List<Rating> userRatings = new ArrayList<>();
+				List<Long> userRatingsMovieIds = new ArrayList<>();
+				for (Movie movie: movies.values())
+				{
+					for (Rating rating: movie.userRatings.values())
+					{
+						userRatings.add(rating);
+						userRatingsMovieIds.add(movie.movieId);
+					}
+				}
+				writeRatings(out, userRatings);
+				for (Long movieId: userRatingsMovieIds) out.putLong(movieId);
+			}
+		}
+		AtomicFiles.replace(temp, file);
+	}
+
+	@Override
+	public void read() throws Exception
+	{
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r"); ChannelInput in = new ChannelInput(raf.getChannel()))
+		{
+			if (in.getInt() != MAGIC)
+			{
+				throw new Exception("Not a binary datastore: " + file);
+			}
+			int version = in.getInt();
+			Long lsn = (version & LOG_POSITION) != 0 ? in.getLong() : null;
+			version &= ~LOG_POSITION;
+			if (version != VERSION && version != VERSION_NORMALIZED)
+			{
+				throw new Exception("Unsupported datastore version: " + version);
+			}
+
+			String[] strings = new String[in.getInt()];
+			for (int i = 0; i < strings.length; i++)
+			{
+				strings[i] = in.getString();
+			}
+
+			int n = in.getInt();
+			long[] userIds = in.getLongs(n);
+			int[] firstNames = in.getInts(n);
+			int[] lastNames = in.getInts(n);
+			int[] ages = in.getInts(n);
+			char[] genders = in.getChars(n);
+			int[] occupations = in.getInts(n);
+			int[] usernames = in.getInts(n);
+			int[] passwords = in.getInts(n);
+
+			Map<Long, User> users = new HashMap<>();
+			for (int i = 0; i < n; i++)
+			{
+				User user = new User(userIds[i], strings[firstNames[i]], strings[lastNames[i]], ages[i], genders[i],
+						strings[occupations[i]], strings[usernames[i]], strings[passwords[i]]);
+				users.put(user.userId, user);
+			}
+
+			if (version == VERSION_NORMALIZED)
+			{
+				Map<Long, Movie> movies = readMovies(in, strings);
+				List<Rating> ratings = readRatings(in);
+				Normalizer.linkRatings(users, movies, ratings);
+				setStack(users, Normalizer.loginIndex(users), movies, ratings, lsn);
+				return;
+			}
+
+			Map<String, User> usersLogin = new HashMap<>();
+			for (long userId: in.getLongs(in.getInt()))
+			{
+				User user = users.get(userId);
+				usersLogin.put(user.username, user);
+			}
+
+			Map<Long, Movie> movies = readMovies(in, strings);
+			List<Rating> ratings = readRatings(in);
+
+			for (Rating rating: readRatings(in))
+			{
+				users.get(rating.userId).addRatedMovies(rating.movieId, rating);
+			}
+
+			List<Rating> userRatings = readRatings(in);
+			long[] userRatingsMovieIds = in.getLongs(userRatings.size());
+			for (int i = 0; i < userRatingsMovieIds.length; i++)
+			{
+				Rating rating = userRatings.get(i);
+				Movie movie = movies.get(userRatingsMovieIds[i]);
+
+				//Share the Rating object with the user side when both sides hold the same rating
+				User user = users.get(rating.userId);
+				if (user != null && rating.equals(user.ratedMovies.get(movie.movieId)))
+				{
+					rating = user.ratedMovies.get(movie.movieId);
+				}
+				movie.addUserRatings(rating.userId, rating);
+			}
+
+			setStack(users, usersLogin, movies, ratings, lsn);
+		}
+	}
+
+	private void setStack(Map<Long, User> users, Map<String, User> usersLogin, Map<Long, Movie> movies, List<Rating> ratings,
+			Long lsn)
+	{
+		stack = new Stack<>();
+		stack.push(users);
+		stack.push(usersLogin);
+		stack.push(movies);
+		stack.push(ratings);
+		if (lsn != null)
+		{
+			stack.push(lsn);
+		}
+	}
+
+	private static void intern(String s, Map<String, Integer> stringIndex, List<String> strings)
+	{
+		if (!stringIndex.containsKey(s))
+		{
+			stringIndex.put(s, strings.size());
+			strings.add(s);
+		}
+	}
+
+	private static void writeMovies(ChannelOutput out, Map<Long, Movie> movies, Map<String, Integer> stringIndex) throws IOException
+	{
+		out.putInt(movies.size());
+		for (Movie movie: movies.values()) out.putLong(movie.movieId);
+		for (Movie movie: movies.values()) out.putInt(stringIndex.get(movie.title));
+		for (Movie movie: movies.values()) out.putInt(movie.year);
+		for (Movie movie: movies.values()) out.putInt(stringIndex.get(movie.url));
+	}
+
+	private static Map<Long, Movie> readMovies(ChannelInput in, String[] strings) throws IOException
+	{
+		int m = in.getInt();
+		long[] movieIds = in.getLongs(m);
+		int[] titles = in.getInts(m);
+		int[] years = in.getInts(m);
+		int[] urls = in.getInts(m);
+
+		Map<Long, Movie> movies = new HashMap<>();
+		for (int i = 0; i < m; i++)
+		{
+			Movie movie = new Movie(movieIds[i], strings[titles[i]], years[i], strings[urls[i]]);
+			movies.put(movie.movieId, movie);
+		}
+		return movies;
+	}
+
+	private static void writeRatings(ChannelOutput out, List<Rating> ratings) throws IOException
+	{
+		out.putInt(ratings.size());
+		for (Rating r: ratings) out.putLong(r.userId);
+		for (Rating r: ratings) out.putLong(r.movieId);
+		for (Rating r: ratings) out.putInt(r.rating == null ? NO_RATING : r.rating);
+		for (Rating r: ratings) out.putLong(r.timestamp);
+	}
+
+	private static List<Rating> readRatings(ChannelInput in) throws IOException
+	{
+		int n = in.getInt();
+		long[] userIds = in.getLongs(n);
+		long[] movieIds = in.getLongs(n);
+		int[] values = in.getInts(n);
+		long[] timestamps = in.getLongs(n);
+
+		List<Rating> ratings = new ArrayList<>(n);
+		for (int i = 0; i < n; i++)
+		{
+			Integer value = values[i] == NO_RATING ? null : values[i];
+			ratings.add(new Rating(userIds[i], movieIds[i], value, timestamps[i]));
+		}
+		return ratings;
+	}
+
+	/**
+	 * Buffered writer over a FileChannel
+	 */
+	static class ChannelOutput implements AutoCloseable
+	{
+		private final FileChannel channel;
+		private ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+		ChannelOutput(FileChannel channel)
+		{
+			this.channel = channel;
+		}
+
+		private void ensure(int bytes) throws IOException
+		{
+			if (buffer.remaining() < bytes)
+			{
+				flush();
+				if (buffer.capacity() < bytes)
+				{
+					buffer = ByteBuffer.allocateDirect(bytes);
+				}
+			}
+		}
+
+		void putInt(int v) throws IOException
+		{
+			ensure(4);
+			buffer.putInt(v);
+		}
+
+		void putLong(long v) throws IOException
+		{
+			ensure(8);
+			buffer.putLong(v);
+		}
+
+		void putFloat(float v) throws IOException
+		{
+			ensure(4);
+			buffer.putFloat(v);
+		}
+
+		void putChar(char v) throws IOException
+		{
+			ensure(2);
+			buffer.putChar(v);
+		}
+
+		void putString(String s) throws IOException
+		{
+			if (s == null)
+			{
+				putInt(-1);
+				return;
+			}
+			byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+			ensure(4 + bytes.length);
+			buffer.putInt(bytes.length);
+			buffer.put(bytes);
+		}
+
+		void flush() throws IOException
+		{
+			buffer.flip();
+			while (buffer.hasRemaining())
+			{
+				channel.write(buffer);
+			}
+			buffer.clear();
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			flush();
+		}
+	}
+
+	/**
+	 * Buffered reader over a FileChannel
+	 */
+	static class ChannelInput implements AutoCloseable
+	{
+		private final FileChannel channel;
+		private ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+		ChannelInput(FileChannel channel)
+		{
+			this.channel = channel;
+			buffer.flip();
+		}
+
+		private void require(int bytes) throws IOException
+		{
+			if (buffer.remaining() >= bytes)
+			{
+				return;
+			}
+			if (buffer.capacity() < bytes)
+			{
+				ByteBuffer larger = ByteBuffer.allocateDirect(bytes);
+				larger.put(buffer);
+				buffer = larger;
+			}
+			else
+			{
+				buffer.compact();
+			}
+			while (buffer.position() < bytes)
+			{
+				if (channel.read(buffer) < 0)
+				{
+					throw new IOException("Unexpected end of datastore");
+				}
+			}
+			buffer.flip();
+		}
+
+		int getInt() throws IOException
+		{
+			require(4);
+			return buffer.getInt();
+		}
+
+		long getLong() throws IOException
+		{
+			require(8);
+			return buffer.getLong();
+		}
+
+		float getFloat() throws IOException
+		{
+			require(4);
+			return buffer.getFloat();
+		}
+
+		int[] getInts(int n) throws IOException
+		{
+			int[] values = new int[n];
+			for (int i = 0; i < n; i++)
+			{
+				values[i] = getInt();
+			}
+			return values;
+		}
+
+		long[] getLongs(int n) throws IOException
+		{
+			long[] values = new long[n];
+			for (int i = 0; i < n; i++)
+			{
+				values[i] = getLong();
+			}
+			return values;
+		}
+
+		char[] getChars(int n) throws IOException
+		{
+			char[] values = new char[n];
+			for (int i = 0; i < n; i++)
+			{
+				require(2);
+				values[i] = buffer.getChar();
+			}
+			return values;
+		}
+
+		String getString() throws IOException
+		{
+			int length = getInt();
+			if (length < 0)
+			{
+				return null;
+			}
+			require(length);
+			byte[] bytes = new byte[length];
+			buffer.get(bytes);
+			return new String(bytes, StandardCharsets.UTF_8);
+		}
+
+		@Override
+		public void close()
+		{
+		}
+	}
+}
@@ -0,0 +1,161 @@
+package utils;
+
+/**
+ * Keeps the k highest scored ids offered to it in a primitive min-heap, so selecting the top k of n
+ * costs O(n log k) and no objects per entry. Of two ids with the same score the lower id ranks higher.
+ */
+public class BoundedHeap
+{
+	private final int capacity;
+	private final int[] ids;
+	private final double[] scores;
+	private int size = 0;
+
+	public BoundedHeap(int capacity)
+	{
+		if (capacity < 0)
+		{
+			throw new IllegalArgumentException("Negative capacity: " + capacity);
+		}
+		this.capacity = capacity;
+		ids = new int[capacity];
+		scores = new double[capacity];
+	}
+
+	/**
+	 * Offers an id, which is kept if it ranks among the k highest so far
+	 * @param id
+	 * @param score
+	 * @return Whether the id was kept
+	 */
+	public boolean offer(int id, double score)
+	{
+		if (size < capacity)
+		{
+			ids[size] = id;
+			scores[size] = score;
+			siftUp(size++);
+			return true;
+		}
+		if (capacity == 0 || !lower(ids[0], scores[0], id, score))
+		{
+			return false;
+		}
+		ids[0] = id;
+		scores[0] = score;
+		siftDown(0);
+		return true;
+	}
+
+	public int size()
+	{
+		return size;
+	}
+
+	public int capacity()
+	{
+		return capacity;
+	}
+
+	public void clear()
+	{
+		size = 0;
+	}
+
+	/**
+	 * @return The lowest score kept, which an id must beat once the heap is full
+	 */
+	public double minScore()
+	{
+		return size == 0 ? Double.NEGATIVE_INFINITY : scores[0];
+	}
+
+	/**
+	 * Empties the heap into the arrays, highest ranked first
+	 * @param idsOut
+	 * @param scoresOut May be null
+	 * @return The number of ids written
+	 */
+	public int drain(int[] idsOut, double[] scoresOut)
+	{
+		int count = size;
+		while (size > 0) //Repeatedly remove the lowest into the last free position
+		{
+			int last = --size;
+			idsOut[last] = ids[0];
+			if (scoresOut != null)
+			{
+				scoresOut[last] = scores[0];
+			}
+			ids[0] = ids[last];
+			scores[0] = scores[last];
+			siftDown(0);
+		}
+		return count;
+	}
+
+	/**
+	 * @return The ids kept, highest ranked first, emptying the heap
+	 */
+	public int[] drain()
+	{
+		int[] result = new int[size];
+		drain(result, null);
+		return result;
+	}
+
+	/**
+	 * Whether (id1, score1) ranks below (id2, score2)
+	 */
+	private static boolean lower(int id1, double score1, int id2, double score2)
+	{
+		int c = Double.compare(score1, score2);
+		return c != 0 ? c < 0 : id1 > id2;
+	}
+
+	private void siftUp(int i)
+	{
+		while (i > 0)
+		{
+			int parent = (i - 1) >>> 1;
+			if (!lower(ids[i], scores[i], ids[parent], scores[parent]))
+			{
+				break;
+			}
+			swap(i, parent);
+			i = parent;
+		}
+	}
+
+	private void siftDown(int i)
+	{
+		while (true)
+		{
+			int child = 2 * i + 1;
+			if (child >= size)
+			{
+				break;
+			}
+			if (child + 1 < size && lower(ids[child + 1], scores[child + 1], ids[child], scores[child]))
+			{
+				child++;
+			}
+			if (!lower(ids[child], scores[child], ids[i], scores[i]))
+			{
+				break;
+			}
+			swap(i, child);
+			i = child;
+		}
+	}
+
+	private void swap(int i, int j)
+	{
+		int id = ids[i];
+		ids[i] = ids[j];
+		ids[j] = id;
+		double score = scores[i];
+		scores[i] = scores[j];
+		scores[j] = score;
+	}
+}
@@ -0,0 +1,331 @@
+package utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import models.Rating;
+import models.User;
+
+/**
+ * The top N movies of every user segment, for users who have not rated anything yet. Users are segmented by age
+ * band, gender and occupation, each on its own, and all users form one more segment. A movie's score in a segment
+ * is the total of the ratings users of the segment gave it, so it needs both many ratings and good ones.
+ *
+ * The totals are kept up to date as ratings are added and users removed, and the segments whose totals changed
+ * are marked dirty and ranked again on a background thread, with at most one rebuild waiting at a time. A lookup
+ * reads the last published lists, so it takes constant time and may lag the latest ratings until the rebuild
+ * completes. A user is given the list of the smallest of their segments with at least MIN_RATERS raters, or the
+ * list of all users.
+ */
+public class ColdStartLists
+{
+	static final int MIN_RATERS = 10; //Raters below which a segment's list is not trusted
+	static final String ALL = "all";
+	static final int[] AGE_BANDS = {18, 25, 35, 45, 50, 56}; //Lower bounds of the age bands after the first
+
+	/**
+	 * A published list of one segment
+	 */
+	private static class Ranking
+	{
+		final long[] movieIds; //Highest scoring first
+		final int raters;
+		final int version; //Of the totals it was ranked from
+
+		Ranking(long[] movieIds, int raters, int version)
+		{
+			this.movieIds = movieIds;
+			this.raters = raters;
+			this.version = version;
+		}
+	}
+
+	/**
+	 * The running totals of one segment
+	 */
+	private static class Totals
+	{
+		final Map<Long, Long> scores = new HashMap<>(); //Total rating of each movie
+		int raters = 0; //Users of the segment with at least one rating
+		int version = 0; //Incremented by each change
+	}
+
+	private final int n;
+	private final Map<String, Totals> totals = new HashMap<>(); //Also guards dirty
+	private final Set<String> dirty = new HashSet<>();
+	private int generation = 0; //Incremented by each build, so rebuilds started before it are discarded
+	private Future<?> pending; //Rebuild submitted but not yet started, or null
+	private final Map<String, Ranking> rankings = new ConcurrentHashMap<>();
+	private final ExecutorService rebuilder = Executors.newSingleThreadExecutor(runnable ->
+	{
+		Thread thread = new Thread(runnable, "cold-start-rebuild");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	/**
+	 * @param n Movies kept per segment
+	 */
+	public ColdStartLists(int n)
+	{
+		if (n <= 0)
+		{
+			throw new IllegalArgumentException("List size must be positive: " + n);
+		}
+		this.n = n;
+	}
+
+	/**
+	 * Replaces every list with one computed from the users' ratings, on the calling thread
+	 * @param users
+	 */
+	public void build(Collection<User> users)
+	{
+		synchronized (totals)
+		{
+			totals.clear();
+			dirty.clear();
+			rankings.clear();
+			generation++;
+			for (User user: users)
+			{
+				for (Rating rating: user.ratedMovies.values())
+				{
+					add(user, rating.movieId, rating.rating);
+				}
+				if (!user.ratedMovies.isEmpty())
+				{
+					addRater(user, 1);
+				}
+			}
+		}
+		rebuildNow();
+	}
+
+	/**
+	 * Adds a rating to the totals of the user's segments. The user must already hold the rating.
+	 * @param user
+	 * @param previous The user's previous rating of the movie, or null
+	 * @param rating
+	 */
+	public void addRating(User user, Rating previous, Rating rating)
+	{
+		synchronized (totals)
+		{
+			add(user, rating.movieId, rating.rating - (previous != null ? previous.rating : 0));
+			if (previous == null && user.ratedMovies.size() == 1)
+			{
+				addRater(user, 1);
+			}
+		}
+	}
+
+	/**
+	 * Removes the ratings of a user who is being removed. The user must still hold their ratings.
+	 * @param user
+	 */
+	public void removeUser(User user)
+	{
+		synchronized (totals)
+		{
+			for (Rating rating: user.ratedMovies.values())
+			{
+				add(user, rating.movieId, -rating.rating);
+			}
+			if (!user.ratedMovies.isEmpty())
+			{
+				addRater(user, -1);
+			}
+		}
+	}
+
+	/**
+	 * @param user
+	 * @return The top movie ids of the smallest of the user's segments with enough raters, highest scoring first
+	 */
+	public long[] get(User user)
+	{
+		Ranking best = rankings.get(ALL);
+		for (String segment: segments(user))
+		{
+			Ranking ranking = rankings.get(segment);
+			if (ranking != null && ranking.raters >= MIN_RATERS && (best == null || ranking.raters < best.raters))
+			{
+				best = ranking;
+			}
+		}
+		return best != null ? best.movieIds : new long[0];
+	}
+
+	/**
+	 * Ranks the dirty segments again on the background thread, unless a rebuild is already waiting to run, which
+	 * will include them, so a burst of ratings is ranked once
+	 * @return Completes when the lists are published
+	 */
+	public Future<?> rebuild()
+	{
+		synchronized (totals)
+		{
+			if (pending == null)
+			{
+				pending = rebuilder.submit(() ->
+				{
+					synchronized (totals)
+					{
+						pending = null;
+					}
+					rebuildNow();
+				});
+			}
+			return pending;
+		}
+	}
+
+	/**
+	 * Ranks the dirty segments again on the calling thread
+	 */
+	public void rebuildNow()
+	{
+		Map<String, Totals> snapshot = new HashMap<>();
+		int started;
+		synchronized (totals)
+		{
+			for (String segment: dirty)
+			{
+				Totals copy = new Totals();
+				copy.scores.putAll(totals.get(segment).scores);
+				copy.raters = totals.get(segment).raters;
+				copy.version = totals.get(segment).version;
+				snapshot.put(segment, copy);
+			}
+			dirty.clear();
+			started = generation;
+		}
+
+		Map<String, Ranking> ranked = new HashMap<>();
+		for (Map.Entry<String, Totals> entry: snapshot.entrySet())
+		{
+			//Ascending ids, so the heap breaks ties by lowest id
+			long[] movieIds = new long[entry.getValue().scores.size()];
+			int size = 0;
+			for (long movieId: entry.getValue().scores.keySet())
+			{
+				movieIds[size++] = movieId;
+			}
+			Arrays.sort(movieIds);
+			BoundedHeap heap = new BoundedHeap(n);
+			for (int i = 0; i < movieIds.length; i++)
+			{
+				long score = entry.getValue().scores.get(movieIds[i]);
+				if (score > 0)
+				{
+					heap.offer(i, score);
+				}
+			}
+			int[] top = new int[n];
+			int count = heap.drain(top, null);
+			long[] best = new long[count];
+			for (int i = 0; i < count; i++)
+			{
+				best[i] = movieIds[top[i]];
+			}
+			ranked.put(entry.getKey(), new Ranking(best, entry.getValue().raters, entry.getValue().version));
+		}
+
+		synchronized (totals)
+		{
+			if (started != generation)
+			{
+				return;
+			}
+			for (Map.Entry<String, Ranking> entry: ranked.entrySet())
+			{
+				Ranking published = rankings.get(entry.getKey());
+				if (published == null || published.version < entry.getValue().version) //Not overtaken by another rebuild
+				{
+					rankings.put(entry.getKey(), entry.getValue());
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return The number of segments waiting to be ranked again
+	 */
+	public int dirtyCount()
+	{
+		synchronized (totals)
+		{
+			return dirty.size();
+		}
+	}
+
+	public int getListSize()
+	{
+		return n;
+	}
+
+	/**
+	 * Stops the background thread
+	 */
+	public void close()
+	{
+		rebuilder.shutdown();
+	}
+
+	/**
+	 * @return The segments of the user other than all users: age band, gender and occupation
+	 */
+	static List<String> segments(User user)
+	{
+		int band = 0;
+		while (band < AGE_BANDS.length && user.age >= AGE_BANDS[band])
+		{
+			band++;
+		}
+		List<String> segments = new ArrayList<>();
+		segments.add("age:" + band);
+		segments.add("gender:" + Character.toUpperCase(user.gender));
+		segments.add("occupation:" + (user.occupation != null ? user.occupation.toLowerCase() : ""));
+		return segments;
+	}
+
+	private void add(User user, long movieId, int delta)
+	{
+		totals(ALL).scores.merge(movieId, (long) delta, Long::sum);
+		for (String segment: segments(user))
+		{
+			totals(segment).scores.merge(movieId, (long) delta, Long::sum);
+		}
+	}
+
+	private void addRater(User user, int delta)
+	{
+		totals(ALL).raters += delta;
+		for (String segment: segments(user))
+		{
+			totals(segment).raters += delta;
+		}
+	}
+
+	/**
+	 * @return The totals of the segment, which is marked dirty
+	 */
+	private Totals totals(String segment)
+	{
+		dirty.add(segment);
+		Totals segmentTotals = totals.computeIfAbsent(segment, s -> new Totals());
+		segmentTotals.version++;
+		return segmentTotals;
+	}
+}
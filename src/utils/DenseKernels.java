@@ -0,0 +1,50 @@
+package utils;
+
+/**
+ * The loops of dense scoring, over rows held in flat arrays. The plain implementation is written so the JIT can
+ * compile it to SIMD instructions where it is able to. VectorDenseKernels implements the same loops with the
+ * jdk.incubator.vector API, which uses the widest vectors of the machine whatever the JIT manages. It is kept in
+ * the separate src-vector folder since it only compiles, and only runs, with --add-modules jdk.incubator.vector.
+ */
+interface DenseKernels
+{
+	DenseKernels SCALAR = new ScalarDenseKernels();
+	DenseKernels PREFERRED = load(); //The vector kernels where they are available, otherwise the plain loops
+
+	/**
+	 * @return The sum of the products of a[aFrom .. aFrom + length) and b[bFrom .. bFrom + length)
+	 */
+	int dot(int[] a, int aFrom, int[] b, int bFrom, int length);
+
+	/**
+	 * As the int dot product. The products may be added in any order.
+	 */
+	float dot(float[] a, int aFrom, float[] b, int bFrom, int length);
+
+	/**
+	 * Adds scale times x[xFrom .. xFrom + length) to y[0 .. length)
+	 */
+	void scaleAdd(float scale, int[] x, int xFrom, float[] y, int length);
+
+	/**
+	 * @return The vector kernels if they were compiled and the jdk.incubator.vector module is present, or null
+	 */
+	static DenseKernels vector()
+	{
+		try
+		{
+			Class.forName("jdk.incubator.vector.IntVector");
+			return (DenseKernels) Class.forName("utils.VectorDenseKernels").getDeclaredConstructor().newInstance();
+		}
+		catch (ReflectiveOperationException | LinkageError e)
+		{
+			return null;
+		}
+	}
+
+	static DenseKernels load()
+	{
+		DenseKernels vector = vector();
+		return vector != null ? vector : SCALAR;
+	}
+}
@@ -0,0 +1,523 @@
+package utils;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reusable scanner over delimited text data which parses numbers straight from the input bytes.
+ * Only fields which are read as text allocate a String, other fields are parsed or skipped in place.
+ *
+ * The scanner works a line at a time: countFields() and the next* methods operate on the current line
+ * and nextLine() moves on to the following one.
+ *
+ * Files can be scanned through a read buffer (open) or memory-mapped (map), in which case the bytes are
+ * parsed straight from the page cache. Mapped files larger than the mapping window are mapped a window
+ * at a time.
+ *
+ * The delimiter may be several bytes long (e.g. "::"). In quoted mode a field starting with a double quote
+ * runs to the closing quote, as in CSV files, and a doubled quote inside it stands for a single one.
+ */
+public class FieldScanner implements AutoCloseable
+{
+	static final long MAP_WINDOW = 1L << 30;
+
+	private ReadableByteChannel channel; //Null when scanning a fixed buffer
+	private FileChannel mappedChannel; //Set when scanning a memory-mapped file
+	private long mappedOffset = 0; //File offset of the start of the mapped buffer
+	private long mapWindow = MAP_WINDOW; //Largest region of the file mapped at once
+	private ByteBuffer buffer;
+	private byte[] delimiter;
+	private boolean quoted = false;
+	private Charset charset = StandardCharsets.UTF_8;
+
+	private int position = 0; //Next byte of the current line to scan
+	private int lineEnd = -1; //Index just after the last byte of the current line, -1 if not located yet
+	private int nextLineStart = 0; //Index of the first byte after the line break of the current line
+	private boolean endOfInput = false;
+	private byte[] scratch = new byte[256]; //Copy of a field being decoded as text
+
+	/**
+	 * Scans the bytes remaining in a buffer
+	 * @param buffer
+	 * @param delimiter
+	 */
+	public FieldScanner(ByteBuffer buffer, char delimiter)
+	{
+		this(buffer, String.valueOf(delimiter));
+	}
+
+	public FieldScanner(ByteBuffer buffer, String delimiter)
+	{
+		this.buffer = buffer.slice();
+		this.delimiter = delimiter.getBytes(StandardCharsets.US_ASCII);
+		endOfInput = true;
+	}
+
+	/**
+	 * Scans a channel through a buffer which is refilled as lines are consumed
+	 * @param channel
+	 * @param delimiter
+	 */
+	public FieldScanner(ReadableByteChannel channel, char delimiter)
+	{
+		this(channel, String.valueOf(delimiter));
+	}
+
+	public FieldScanner(ReadableByteChannel channel, String delimiter)
+	{
+		this.channel = channel;
+		this.buffer = ByteBuffer.allocate(BinarySerializer.BUFFER_SIZE);
+		this.buffer.limit(0);
+		this.delimiter = delimiter.getBytes(StandardCharsets.US_ASCII);
+	}
+
+	/**
+	 * Memory-maps a file and scans it in place
+	 * @param path
+	 * @param delimiter
+	 * @return
+	 * @throws IOException
+	 */
+	public static FieldScanner map(String path, char delimiter) throws IOException
+	{
+		return map(path, String.valueOf(delimiter), MAP_WINDOW);
+	}
+
+	public static FieldScanner map(String path, String delimiter) throws IOException
+	{
+		return map(path, delimiter, MAP_WINDOW);
+	}
+
+	static FieldScanner map(String path, char delimiter, long mapWindow) throws IOException
+	{
+		return map(path, String.valueOf(delimiter), mapWindow);
+	}
+
+	static FieldScanner map(String path, String delimiter, long mapWindow) throws IOException
+	{
+		FileChannel channel = new RandomAccessFile(path, "r").getChannel();
+		long length = Math.min(channel.size(), mapWindow);
+		FieldScanner scanner = new FieldScanner(channel.map(MapMode.READ_ONLY, 0, length), delimiter);
+		scanner.mappedChannel = channel;
+		scanner.mapWindow = mapWindow;
+		scanner.endOfInput = length == channel.size();
+		return scanner;
+	}
+
+	/**
+	 * Opens a scanner over a file
+	 * @param path
+	 * @param delimiter
+	 * @return
+	 * @throws IOException
+	 */
+	public static FieldScanner open(String path, char delimiter) throws IOException
+	{
+		return new FieldScanner(new FileInputStream(path).getChannel(), delimiter);
+	}
+
+	/**
+	 * Treat fields starting with a double quote as quoted CSV fields
+	 * @param quoted
+	 */
+	public void setQuoted(boolean quoted)
+	{
+		this.quoted = quoted;
+	}
+
+	/**
+	 * Character set used to decode text fields, UTF-8 by default
+	 * @param charset
+	 */
+	public void setCharset(Charset charset)
+	{
+		this.charset = charset;
+	}
+
+	/**
+	 * @return Whether there is another line to scan
+	 * @throws IOException
+	 */
+	public boolean hasNextLine() throws IOException
+	{
+		return locateLine();
+	}
+
+	/**
+	 * @return Number of fields in the current line
+	 * @throws IOException
+	 */
+	public int countFields() throws IOException
+	{
+		locateLine();
+		int count = 1;
+		int end = fieldEnd(position);
+		while (end < lineEnd)
+		{
+			count++;
+			end = fieldEnd(end + delimiter.length);
+		}
+		return count;
+	}
+
+	/**
+	 * @return Length in bytes of the next field, without consuming it
+	 * @throws IOException
+	 */
+	public int fieldLength() throws IOException
+	{
+		locateLine();
+		return fieldEnd(position) - position;
+	}
+
+	public long nextLong() throws IOException
+	{
+		return nextLong(0);
+	}
+
+	/**
+	 * Parses the next field as a long, ignoring its first offset bytes
+	 * @param offset
+	 * @return
+	 * @throws IOException
+	 */
+	public long nextLong(int offset) throws IOException
+	{
+		locateLine();
+		int end = fieldEnd(position);
+		int i = Math.min(position + offset, end);
+		if (i < end && buffer.get(i) == '-')
+		{
+			i++;
+			long value = digits(i, end);
+			return -value;
+		}
+		return digits(i, end);
+	}
+
+	/**
+	 * Parses the next field as a decimal number such as 3.5
+	 * @return
+	 * @throws IOException
+	 */
+	public double nextDouble() throws IOException
+	{
+		locateLine();
+		int end = fieldEnd(position);
+		int i = position;
+		boolean negative = i < end && buffer.get(i) == '-';
+		if (negative)
+		{
+			i++;
+		}
+		if (i >= end)
+		{
+			throw new NumberFormatException("For input string: \"\"");
+		}
+		double value = 0;
+		double scale = 0;
+		for (; i < end; i++)
+		{
+			byte b = buffer.get(i);
+			if (b == '.' && scale == 0)
+			{
+				scale = 1;
+				continue;
+			}
+			int digit = b - '0';
+			if (digit < 0 || digit > 9)
+			{
+				throw new NumberFormatException("Invalid digit in field at byte " + i);
+			}
+			value = value * 10 + digit;
+			scale *= 10;
+		}
+		skipTo(end);
+		if (scale > 1)
+		{
+			value /= scale;
+		}
+		return negative ? -value : value;
+	}
+
+	public int nextInt() throws IOException
+	{
+		return (int) nextLong(0);
+	}
+
+	public int nextInt(int offset) throws IOException
+	{
+		return (int) nextLong(offset);
+	}
+
+	public char nextChar() throws IOException
+	{
+		locateLine();
+		int end = fieldEnd(position);
+		char c = position < end ? (char) (buffer.get(position) & 0xFF) : 0;
+		skipTo(end);
+		return c;
+	}
+
+	public String nextString() throws IOException
+	{
+		locateLine();
+		int end = fieldEnd(position);
+		int length = end - position;
+		if (scratch.length < length)
+		{
+			scratch = new byte[Math.max(length, scratch.length * 2)];
+		}
+		if (quoted && length > 0 && buffer.get(position) == '"')
+		{
+			//Copy the quoted text, turning doubled quotes into single ones
+			int n = 0;
+			for (int i = position + 1; i < end; i++)
+			{
+				byte b = buffer.get(i);
+				if (b == '"')
+				{
+					if (i + 1 < end && buffer.get(i + 1) == '"')
+					{
+						i++;
+					}
+					else
+					{
+						break;
+					}
+				}
+				scratch[n++] = b;
+			}
+			length = n;
+		}
+		else
+		{
+			for (int i = 0; i < length; i++)
+			{
+				scratch[i] = buffer.get(position + i);
+			}
+		}
+		skipTo(end);
+		return new String(scratch, 0, length, charset);
+	}
+
+	public void skipField() throws IOException
+	{
+		locateLine();
+		skipTo(fieldEnd(position));
+	}
+
+	/**
+	 * Discards the rest of the current line
+	 * @throws IOException
+	 */
+	public void nextLine() throws IOException
+	{
+		locateLine();
+		position = nextLineStart;
+		lineEnd = -1;
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		if (channel != null)
+		{
+			channel.close();
+		}
+		if (mappedChannel != null)
+		{
+			mappedChannel.close();
+		}
+	}
+
+	private long digits(int i, int end)
+	{
+		if (i >= end)
+		{
+			throw new NumberFormatException("For input string: \"\"");
+		}
+		long value = 0;
+		for (; i < end; i++)
+		{
+			int digit = buffer.get(i) - '0';
+			if (digit < 0 || digit > 9)
+			{
+				throw new NumberFormatException("Invalid digit in field at byte " + i);
+			}
+			value = value * 10 + digit;
+		}
+		skipTo(end);
+		return value;
+	}
+
+	/**
+	 * Index just after the last byte of the field starting at start
+	 */
+	private int fieldEnd(int start)
+	{
+		int i = start;
+		if (quoted && i < lineEnd && buffer.get(i) == '"')
+		{
+			i++;
+			while (i < lineEnd)
+			{
+				if (buffer.get(i++) == '"')
+				{
+					if (i < lineEnd && buffer.get(i) == '"')
+					{
+						i++;
+					}
+					else
+					{
+						break;
+					}
+				}
+			}
+		}
+		if (delimiter.length == 1)
+		{
+			byte d = delimiter[0];
+			while (i < lineEnd && buffer.get(i) != d)
+			{
+				i++;
+			}
+			return i;
+		}
+		while (i < lineEnd && !delimiterAt(i))
+		{
+			i++;
+		}
+		return i;
+	}
+
+	private boolean delimiterAt(int i)
+	{
+		if (i + delimiter.length > lineEnd)
+		{
+			return false;
+		}
+		for (int j = 0; j < delimiter.length; j++)
+		{
+			if (buffer.get(i + j) != delimiter[j])
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Moves past a field ending at end and its delimiter
+	 */
+	private void skipTo(int end)
+	{
+		position = end < lineEnd ? end + delimiter.length : lineEnd;
+	}
+
+	/**
+	 * Ensures the whole current line is in the buffer and locates its end, ignoring a trailing '\r'
+	 * @return False if there are no more lines
+	 */
+	private boolean locateLine() throws IOException
+	{
+		if (lineEnd >= 0)
+		{
+			return true;
+		}
+		int scanned = position;
+		while (true)
+		{
+			for (int i = scanned; i < buffer.limit(); i++)
+			{
+				if (buffer.get(i) == '\n')
+				{
+					lineEnd = (i > position && buffer.get(i - 1) == '\r') ? i - 1 : i;
+					nextLineStart = i + 1;
+					return true;
+				}
+			}
+			scanned = buffer.limit() - position;
+			if (!refill())
+			{
+				if (position < buffer.limit()) //Last line without a line break
+				{
+					lineEnd = buffer.limit();
+					nextLineStart = lineEnd;
+					return true;
+				}
+				return false;
+			}
+			scanned = position + scanned;
+		}
+	}
+
+	/**
+	 * Moves the unscanned bytes to the start of the buffer and reads more input after them
+	 * @return False once the input is exhausted
+	 */
+	private boolean refill() throws IOException
+	{
+		if (endOfInput)
+		{
+			return false;
+		}
+		if (mappedChannel != null)
+		{
+			return remap();
+		}
+		int remaining = buffer.limit() - position;
+		if (remaining == buffer.capacity()) //A single line fills the buffer
+		{
+			ByteBuffer larger = ByteBuffer.allocate(buffer.capacity() * 2);
+			buffer.position(position);
+			larger.put(buffer);
+			buffer = larger;
+		}
+		else
+		{
+			buffer.position(position);
+			buffer.compact();
+		}
+		position = 0;
+
+		int read = channel.read(buffer);
+		while (read == 0)
+		{
+			read = channel.read(buffer);
+		}
+		buffer.flip();
+		if (read < 0)
+		{
+			endOfInput = true;
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Maps the next window of the file, starting at the unscanned bytes
+	 */
+	private boolean remap() throws IOException
+	{
+		long offset = mappedOffset + position;
+		long length = Math.min(mappedChannel.size() - offset, mapWindow);
+		if (length <= buffer.limit() - position) //The window cannot grow any further
+		{
+			endOfInput = true;
+			return false;
+		}
+		buffer = mappedChannel.map(MapMode.READ_ONLY, offset, length);
+		mappedOffset = offset;
+		position = 0;
+		endOfInput = offset + length == mappedChannel.size();
+		return true;
+	}
+}
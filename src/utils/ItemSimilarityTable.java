@@ -0,0 +1,373 @@
+package utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import models.Rating;
+import utils.BinarySerializer.ChannelInput;
+import utils.BinarySerializer.ChannelOutput;
+
+/**
+ * Sparse table of the k most similar movies of every movie, by the cosine similarity of their rating columns.
+ * The table is computed on a fork-join pool: for each movie, the rows of the users who rated it are walked
+ * to accumulate the dot products with every co-rated movie. Only positive similarities are kept.
+ *
+ * A user is served by merging the neighbours of the movies they rated, each weighted by the user's rating,
+ * so serving touches only the table and not the other users. The table is immutable and can be saved to and
+ * loaded from a binary file next to the datastore. It records the fingerprint of the rating matrix it was computed
+ * from, so a table saved for other ratings is recognised on load.
+ */
+public class ItemSimilarityTable
+{
+	static final int MAGIC = 0x4D4D4349; //"MMCI"
+	static final int VERSION = 2;
+	static final int VERSION_UNSTAMPED = 1; //Written without a fingerprint, so never current
+	static final int LEAF_SIZE = 64; //Movies per fork-join leaf task
+
+	private final int k;
+	private final long fingerprint; //Of the rating matrix it was computed from, or 0 if unknown
+	private final long[] movieIds; //Movie id of each index, ascending
+	private final int[] start; //Neighbours of movie m are [start[m], start[m + 1])
+	private final int[] neighbours; //Movie indexes, most similar first
+	private final float[] similarities;
+	private final LongIntHashMap movieIndexes;
+
+	private ItemSimilarityTable(int k, long fingerprint, long[] movieIds, int[] start, int[] neighbours,
+			float[] similarities)
+	{
+		this.k = k;
+		this.fingerprint = fingerprint;
+		this.movieIds = movieIds;
+		this.start = start;
+		this.neighbours = neighbours;
+		this.similarities = similarities;
+		movieIndexes = new LongIntHashMap(movieIds.length);
+		for (int m = 0; m < movieIds.length; m++)
+		{
+			movieIndexes.put(movieIds[m], m);
+		}
+	}
+
+	/**
+	 * Computes the k most similar movies of every movie on the common fork-join pool
+	 * @param matrix
+	 * @param k
+	 * @return
+	 */
+	public static ItemSimilarityTable build(RatingMatrix matrix, int k)
+	{
+		return build(matrix, k, ForkJoinPool.commonPool());
+	}
+
+	public static ItemSimilarityTable build(RatingMatrix matrix, int k, ForkJoinPool pool)
+	{
+		if (k <= 0)
+		{
+			throw new IllegalArgumentException("Neighbourhood size must be positive: " + k);
+		}
+		int movieCount = matrix.movieCount();
+		double[] norms = new double[movieCount];
+		for (int m = 0; m < movieCount; m++)
+		{
+			double sumOfSquares = 0;
+			for (int j = matrix.colStart[m]; j < matrix.colStart[m + 1]; j++)
+			{
+				sumOfSquares += matrix.colRatings[j] * matrix.colRatings[j];
+			}
+			norms[m] = Math.sqrt(sumOfSquares);
+		}
+
+		int[][] built = new int[movieCount][];
+		double[][] builtSimilarities = new double[movieCount][];
+		pool.invoke(new BuildTask(matrix, norms, k, built, builtSimilarities, 0, movieCount));
+
+		int[] start = new int[movieCount + 1];
+		for (int m = 0; m < movieCount; m++)
+		{
+			start[m + 1] = start[m] + built[m].length;
+		}
+		int[] neighbours = new int[start[movieCount]];
+		float[] similarities = new float[start[movieCount]];
+		for (int m = 0; m < movieCount; m++)
+		{
+			System.arraycopy(built[m], 0, neighbours, start[m], built[m].length);
+			for (int i = 0; i < built[m].length; i++)
+			{
+				similarities[start[m] + i] = (float) builtSimilarities[m][i];
+			}
+		}
+		return new ItemSimilarityTable(k, matrix.fingerprint(), matrix.movieIds.clone(), start, neighbours, similarities);
+	}
+
+	/**
+	 * Recommends the movies most similar to those the user rated, weighting each rated movie's neighbours
+	 * by the user's rating of it
+	 * @param ratedMovies The user's ratings by movie id
+	 * @param n Maximum number of movies
+	 * @return Ids of movies the user has not rated, highest scoring first. Only positive scores are included.
+	 */
+	public long[] recommend(Map<Long, Rating> ratedMovies, int n)
+	{
+		double[] scores = new double[movieIds.length];
+		boolean[] rated = new boolean[movieIds.length];
+		for (Long movieId: ratedMovies.keySet())
+		{
+			int m = movieIndexes.get(movieId);
+			if (m >= 0)
+			{
+				rated[m] = true;
+			}
+		}
+		for (Rating rating: ratedMovies.values())
+		{
+			int m = movieIndexes.get(rating.movieId);
+			if (m < 0) //Added since the table was built
+			{
+				continue;
+			}
+			for (int i = start[m]; i < start[m + 1]; i++)
+			{
+				scores[neighbours[i]] += similarities[i] * rating.rating;
+			}
+		}
+
+		BoundedHeap heap = new BoundedHeap(n);
+		for (int m = 0; m < scores.length; m++)
+		{
+			if (!rated[m] && scores[m] > 0)
+			{
+				heap.offer(m, scores[m]);
+			}
+		}
+		int[] best = heap.drain();
+		long[] result = new long[best.length];
+		for (int i = 0; i < best.length; i++)
+		{
+			result[i] = movieIds[best[i]];
+		}
+		return result;
+	}
+
+	/**
+	 * @param movieId
+	 * @return Ids of the movies most similar to the movie, most similar first
+	 */
+	public long[] getSimilarMovies(long movieId)
+	{
+		int m = movieIndexes.get(movieId);
+		if (m < 0)
+		{
+			return new long[0];
+		}
+		long[] similar = new long[start[m + 1] - start[m]];
+		for (int i = 0; i < similar.length; i++)
+		{
+			similar[i] = movieIds[neighbours[start[m] + i]];
+		}
+		return similar;
+	}
+
+	/**
+	 * @param movieId
+	 * @return The similarities of the movies returned by getSimilarMovies
+	 */
+	public float[] getSimilarities(long movieId)
+	{
+		int m = movieIndexes.get(movieId);
+		if (m < 0)
+		{
+			return new float[0];
+		}
+		float[] result = new float[start[m + 1] - start[m]];
+		System.arraycopy(similarities, start[m], result, 0, result.length);
+		return result;
+	}
+
+	public int getNeighbourhoodSize()
+	{
+		return k;
+	}
+
+	/**
+	 * @param matrix
+	 * @return Whether the table was computed from the same ratings as the matrix
+	 */
+	public boolean isCurrent(RatingMatrix matrix)
+	{
+		return fingerprint != 0 && fingerprint == matrix.fingerprint();
+	}
+
+	/**
+	 * Writes the table to a file, replacing it as a whole
+	 * @param file
+	 * @throws Exception
+	 */
+	public void save(File file) throws Exception
+	{
+		File temp = AtomicFiles.temp(file);
+		try (RandomAccessFile raf = new RandomAccessFile(temp, "rw"); ChannelOutput out = new ChannelOutput(raf.getChannel()))
+		{
+			raf.setLength(0);
+			out.putInt(MAGIC);
+			out.putInt(VERSION);
+			out.putInt(k);
+			out.putLong(fingerprint);
+			out.putInt(movieIds.length);
+			for (int m = 0; m < movieIds.length; m++)
+			{
+				out.putLong(movieIds[m]);
+				out.putInt(start[m + 1] - start[m]);
+				for (int i = start[m]; i < start[m + 1]; i++)
+				{
+					out.putInt(neighbours[i]);
+					out.putFloat(similarities[i]);
+				}
+			}
+		}
+		AtomicFiles.replace(temp, file);
+	}
+
+	/**
+	 * Reads a table written by save
+	 * @param file
+	 * @return
+	 * @throws Exception
+	 */
+	public static ItemSimilarityTable load(File file) throws Exception
+	{
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r"); ChannelInput in = new ChannelInput(raf.getChannel()))
+		{
+			if (in.getInt() != MAGIC)
+			{
+				throw new Exception("Not an item similarity file: " + file);
+			}
+			int version = in.getInt();
+			if (version != VERSION && version != VERSION_UNSTAMPED)
+			{
+				throw new Exception("Unsupported item similarity version: " + version);
+			}
+			int k = in.getInt();
+			long fingerprint = version == VERSION ? in.getLong() : 0;
+			int movieCount = in.getInt();
+			//The header is checked against the file length, so a corrupt one cannot size the arrays
+			long body = raf.length() - (version == VERSION ? 24 : 16);
+			if (k < 0 || movieCount < 0 || movieCount > body / 12)
+			{
+				throw new IOException("Corrupt item similarity file: " + file);
+			}
+			int capacity = (int) Math.min((long) movieCount * k, (body - 12L * movieCount) / 8);
+			long[] movieIds = new long[movieCount];
+			int[] start = new int[movieCount + 1];
+			int[] neighbours = new int[capacity];
+			float[] similarities = new float[capacity];
+			for (int m = 0; m < movieCount; m++)
+			{
+				movieIds[m] = in.getLong();
+				int count = in.getInt();
+				if (count < 0 || count > k || count > capacity - start[m])
+				{
+					throw new IOException("Corrupt item similarity file: " + file);
+				}
+				start[m + 1] = start[m] + count;
+				for (int i = start[m]; i < start[m + 1]; i++)
+				{
+					neighbours[i] = in.getInt();
+					similarities[i] = in.getFloat();
+				}
+			}
+			int size = start[movieCount];
+			return new ItemSimilarityTable(k, fingerprint, movieIds, start, Arrays.copyOf(neighbours, size),
+					Arrays.copyOf(similarities, size));
+		}
+	}
+
+	/**
+	 * Computes the neighbours of movies [from, to), splitting the range until it is at most LEAF_SIZE
+	 */
+	private static class BuildTask extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+
+		private final RatingMatrix matrix;
+		private final double[] norms;
+		private final int k;
+		private final int[][] built;
+		private final double[][] builtSimilarities;
+		private final int from, to;
+
+		BuildTask(RatingMatrix matrix, double[] norms, int k, int[][] built, double[][] builtSimilarities, int from, int to)
+		{
+			this.matrix = matrix;
+			this.norms = norms;
+			this.k = k;
+			this.built = built;
+			this.builtSimilarities = builtSimilarities;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute()
+		{
+			if (to - from > LEAF_SIZE)
+			{
+				int middle = (from + to) >>> 1;
+				invokeAll(new BuildTask(matrix, norms, k, built, builtSimilarities, from, middle),
+						new BuildTask(matrix, norms, k, built, builtSimilarities, middle, to));
+				return;
+			}
+
+			//Scratch space for this leaf
+			double[] dots = new double[matrix.movieCount()];
+			int[] touched = new int[matrix.movieCount()];
+			int[] stamps = new int[matrix.movieCount()]; //1 + the movie whose row last reset each dot product
+			BoundedHeap heap = new BoundedHeap(k);
+			int[] neighbours = new int[k];
+			double[] similarities = new double[k];
+
+			for (int m = from; m < to; m++)
+			{
+				int count = 0;
+				for (int j = matrix.colStart[m]; j < matrix.colStart[m + 1]; j++)
+				{
+					int u = matrix.colUsers[j];
+					int rating = matrix.colRatings[j];
+					for (int i = matrix.rowStart[u]; i < matrix.rowStart[u + 1]; i++)
+					{
+						int other = matrix.rowMovies[i];
+						if (other == m)
+						{
+							continue;
+						}
+						if (stamps[other] != m + 1)
+						{
+							stamps[other] = m + 1;
+							dots[other] = 0.0;
+							touched[count++] = other;
+						}
+						dots[other] += rating * matrix.rowRatings[i];
+					}
+				}
+
+				heap.clear();
+				for (int i = 0; i < count; i++)
+				{
+					int other = touched[i];
+					double similarity = dots[other] / (norms[m] * norms[other]);
+					if (similarity > 0)
+					{
+						heap.offer(other, similarity);
+					}
+				}
+				int size = heap.drain(neighbours, similarities);
+				built[m] = Arrays.copyOf(neighbours, size);
+				builtSimilarities[m] = Arrays.copyOf(similarities, size);
+			}
+		}
+	}
+}
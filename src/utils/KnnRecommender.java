@@ -0,0 +1,146 @@
+package utils;
+
+import java.util.Arrays;
+
+/**
+ * k-nearest-neighbour recommendations over a RatingMatrix. The k users with the highest positive similarity
+ * are selected with a bounded heap, each movie the user has not rated is scored by the sum of the neighbours'
+ * ratings of it weighted by their similarity, and the N highest scoring movies are selected with a second
+ * bounded heap, so neither the candidates nor the movies are fully sorted.
+ *
+ * The scratch arrays are reused between calls, and kept when the scorer is moved to a patched rating matrix,
+ * so an instance must not be shared between threads.
+ */
+public class KnnRecommender
+{
+	private final UserSimilarityScorer scorer; //Also holds the rating matrix, so the two stay in step when it is patched
+	private final double[] movieScores;
+	private final int[] scoredMovies; //Movies with at least one neighbour rating, in order of discovery
+	private final int[] stamps; //Call in which each movie's score was last reset, or -call if the user rated it
+	private BoundedHeap heap = new BoundedHeap(0); //Reused while the number of movies asked for is unchanged
+	private int stamp = 0;
+
+	public KnnRecommender(RatingMatrix matrix)
+	{
+		this(new UserSimilarityScorer(matrix));
+	}
+
+	public KnnRecommender(UserSimilarityScorer scorer)
+	{
+		this.scorer = scorer;
+		RatingMatrix matrix = scorer.getMatrix();
+		movieScores = new double[matrix.movieCount()];
+		scoredMovies = new int[matrix.movieCount()];
+		stamps = new int[matrix.movieCount()];
+	}
+
+	/**
+	 * Selects the users most similar to the user
+	 * @param u User index
+	 * @param k Maximum number of neighbours
+	 * @param neighbours Receives the user indexes of the neighbours, most similar first
+	 * @param weights Receives the similarity of each neighbour, may be null
+	 * @return The number of neighbours, at most k
+	 */
+	public int neighbours(int u, int k, int[] neighbours, double[] weights)
+	{
+		return scorer.neighbours(u, k, neighbours, weights);
+	}
+
+	/**
+	 * Recommends movies the user has not rated from the ratings of the given neighbours
+	 * @param u User index
+	 * @param neighbours User indexes of the neighbours
+	 * @param weights Similarity of each neighbour
+	 * @param count Number of neighbours
+	 * @param n Maximum number of movies
+	 * @return Movie indexes, highest scoring first. Only movies with a positive score are included.
+	 */
+	public int[] recommend(int u, int[] neighbours, double[] weights, int count, int n)
+	{
+		int[] movies = new int[n];
+		int size = recommend(u, neighbours, weights, count, n, movies);
+		return size == n ? movies : Arrays.copyOf(movies, size);
+	}
+
+	/**
+	 * Recommends movies the user has not rated from the ratings of the given neighbours, without allocating
+	 * @param u User index
+	 * @param neighbours User indexes of the neighbours
+	 * @param weights Similarity of each neighbour
+	 * @param count Number of neighbours
+	 * @param n Maximum number of movies
+	 * @param movies Receives the movie indexes, highest scoring first, must have room for n
+	 * @return The number of movies, at most n. Only movies with a positive score are included.
+	 */
+	public int recommend(int u, int[] neighbours, double[] weights, int count, int n, int[] movies)
+	{
+		RatingMatrix matrix = scorer.getMatrix();
+		stamp++;
+		for (int i = matrix.rowStart[u]; i < matrix.rowStart[u + 1]; i++)
+		{
+			stamps[matrix.rowMovies[i]] = -stamp; //Already rated
+		}
+
+		int scored = 0;
+		for (int j = 0; j < count; j++)
+		{
+			int v = neighbours[j];
+			double weight = weights[j];
+			for (int i = matrix.rowStart[v]; i < matrix.rowStart[v + 1]; i++)
+			{
+				int m = matrix.rowMovies[i];
+				if (stamps[m] == -stamp)
+				{
+					continue;
+				}
+				if (stamps[m] != stamp)
+				{
+					stamps[m] = stamp;
+					movieScores[m] = 0.0;
+					scoredMovies[scored++] = m;
+				}
+				movieScores[m] += weight * matrix.rowRatings[i];
+			}
+		}
+
+		if (heap.capacity() != n)
+		{
+			heap = new BoundedHeap(n);
+		}
+		for (int i = 0; i < scored; i++)
+		{
+			int m = scoredMovies[i];
+			if (movieScores[m] > 0)
+			{
+				heap.offer(m, movieScores[m]);
+			}
+		}
+		return heap.drain(movies, null);
+	}
+
+	/**
+	 * Recommends movies the user has not rated from the ratings of their k nearest neighbours
+	 * @param u User index
+	 * @param k Maximum number of neighbours
+	 * @param n Maximum number of movies
+	 * @return Movie indexes, highest scoring first
+	 */
+	public int[] recommend(int u, int k, int n)
+	{
+		int[] neighbours = new int[k];
+		double[] weights = new double[k];
+		int count = neighbours(u, k, neighbours, weights);
+		return recommend(u, neighbours, weights, count, n);
+	}
+
+	public RatingMatrix getMatrix()
+	{
+		return scorer.getMatrix();
+	}
+
+	public UserSimilarityScorer getScorer()
+	{
+		return scorer;
+	}
+}
@@ -0,0 +1,126 @@
+package utils;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing hash map from primitive long keys to non-negative int values, with linear probing.
+ * Avoids boxing the keys and values and allocating an entry object per mapping.
+ */
+public class LongIntHashMap
+{
+	private static final int EMPTY = -1;
+
+	private long[] keys;
+	private int[] values; //EMPTY marks a free slot
+	private int size = 0;
+	private int mask;
+
+	public LongIntHashMap()
+	{
+		this(16);
+	}
+
+	public LongIntHashMap(int expectedSize)
+	{
+		int capacity = Integer.highestOneBit(Math.max(expectedSize * 2, 16) - 1) << 1;
+		allocate(capacity);
+	}
+
+	/**
+	 * @param key
+	 * @return The value of the key, or -1 if it is not present
+	 */
+	public int get(long key)
+	{
+		int slot = slot(key);
+		while (values[slot] != EMPTY)
+		{
+			if (keys[slot] == key)
+			{
+				return values[slot];
+			}
+			slot = (slot + 1) & mask;
+		}
+		return EMPTY;
+	}
+
+	/**
+	 * @param key
+	 * @param value Must not be negative
+	 */
+	public void put(long key, int value)
+	{
+		if (value < 0)
+		{
+			throw new IllegalArgumentException("Negative value: " + value);
+		}
+		int slot = slot(key);
+		while (values[slot] != EMPTY)
+		{
+			if (keys[slot] == key)
+			{
+				values[slot] = value;
+				return;
+			}
+			slot = (slot + 1) & mask;
+		}
+		keys[slot] = key;
+		values[slot] = value;
+		if (++size * 2 > keys.length)
+		{
+			rehash();
+		}
+	}
+
+	public int size()
+	{
+		return size;
+	}
+
+	/**
+	 * @return All the values, in no particular order
+	 */
+	public int[] values()
+	{
+		int[] result = new int[size];
+		int n = 0;
+		for (int value: values)
+		{
+			if (value != EMPTY)
+			{
+				result[n++] = value;
+			}
+		}
+		return result;
+	}
+
+	private int slot(long key)
+	{
+		//Mix the bits so packed keys with regular patterns spread over the table
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32)) & mask;
+	}
+
+	private void allocate(int capacity)
+	{
+		keys = new long[capacity];
+		values = new int[capacity];
+		Arrays.fill(values, EMPTY);
+		mask = capacity - 1;
+	}
+
+	private void rehash()
+	{
+		long[] oldKeys = keys;
+		int[] oldValues = values;
+		allocate(keys.length * 2);
+		size = 0;
+		for (int i = 0; i < oldKeys.length; i++)
+		{
+			if (oldValues[i] != EMPTY)
+			{
+				put(oldKeys[i], oldValues[i]);
+			}
+		}
+	}
+}
@@ -0,0 +1,281 @@
+package utils;
+
+import java.util.Arrays;
+
+/**
+ * Locality-sensitive hashing of user rating vectors with random hyperplanes. The vectors hold the rating values
+ * of a similarity measure, so under Pearson they are centred on each user's mean. Each user's signature has one bit
+ * per hyperplane, set when their rating vector lies on its positive side, so users at a small angle (high cosine
+ * similarity) are likely to share bits. The signature is cut into bands of rows bits, and users whose band values
+ * are equal share a bucket. Candidate neighbours of a user are the users sharing a bucket in at least one band.
+ * More rows per band make buckets more selective, more bands raise the chance of catching a true neighbour.
+ *
+ * The hyperplanes have random +1/-1 components derived from a hash of the plane and the movie, so they need no
+ * storage. Each band is held as a sorted array of (band value, user) pairs, and a bucket is a range of it. Users
+ * with no ratings are not hashed. An index can be carried over to a patched rating matrix by hashing only the
+ * users whose ratings changed.
+ */
+public class LshIndex
+{
+	private final RatingMatrix matrix;
+	private final SimilarityMeasure measure;
+	private final float[] rowValues;
+	private final double[] norms;
+	private final int bands, rows;
+	private final long seed;
+	private final int[][] keys; //Band value of each user, by band
+	private final long[][] buckets; //(band value << 32 | user) sorted, by band
+
+	//Scratch space for queries, so an instance must not be shared between threads
+	private final int[] stamps;
+	private final int[] candidates;
+	private final float[] query; //Values of the queried user by movie index, otherwise 0
+	private BoundedHeap heap = new BoundedHeap(0); //Reused while the number of neighbours asked for is unchanged
+	private int stamp = 0;
+
+	/**
+	 * Hashes every user of the matrix
+	 * @param matrix
+	 * @param measure Similarity by which candidates are ranked
+	 * @param bands Number of bands
+	 * @param rows Hyperplanes per band, at most 32
+	 * @param seed
+	 */
+	public LshIndex(RatingMatrix matrix, SimilarityMeasure measure, int bands, int rows, long seed)
+	{
+		if (bands <= 0 || rows <= 0 || rows > 32)
+		{
+			throw new IllegalArgumentException("Invalid bands or rows: " + bands + ", " + rows);
+		}
+		this.matrix = matrix;
+		this.measure = measure;
+		SimilarityMeasure.Vectors vectors = matrix.vectors(measure);
+		rowValues = vectors.rowValues;
+		norms = vectors.norms;
+		this.bands = bands;
+		this.rows = rows;
+		this.seed = seed;
+		int userCount = matrix.userCount();
+		keys = new int[bands][userCount];
+		stamps = new int[userCount];
+		candidates = new int[userCount];
+		query = new float[matrix.movieCount()];
+
+		double[] projections = new double[bands * rows];
+		for (int u = 0; u < userCount; u++)
+		{
+			hash(u, projections);
+		}
+		buckets = buckets();
+	}
+
+	/**
+	 * Hashes again only the users whose ratings changed since the previous index's matrix, and sorts the buckets
+	 * again, rather than projecting every user's ratings
+	 * @param previous Index over a matrix which this one was patched from, under a measure whose vectors are
+	 * local to each user
+	 * @param matrix
+	 */
+	public LshIndex(LshIndex previous, RatingMatrix matrix)
+	{
+		int[] changed = matrix.changedSince(previous.matrix);
+		if (changed == null || !previous.measure.isUserLocal())
+		{
+			throw new IllegalArgumentException("Index cannot be updated to the matrix");
+		}
+		this.matrix = matrix;
+		measure = previous.measure;
+		SimilarityMeasure.Vectors vectors = matrix.vectors(measure);
+		rowValues = vectors.rowValues;
+		norms = vectors.norms;
+		bands = previous.bands;
+		rows = previous.rows;
+		seed = previous.seed;
+		keys = new int[bands][];
+		for (int band = 0; band < bands; band++)
+		{
+			keys[band] = previous.keys[band].clone();
+		}
+		stamps = previous.stamps; //The previous index is discarded, so its scratch space is reused
+		candidates = previous.candidates;
+		query = previous.query;
+		heap = previous.heap;
+		stamp = previous.stamp;
+
+		double[] projections = new double[bands * rows];
+		for (int u: changed)
+		{
+			hash(u, projections);
+		}
+		buckets = buckets();
+	}
+
+	public LshIndex(RatingMatrix matrix, int bands, int rows)
+	{
+		this(matrix, SimilarityMeasure.DOT, bands, rows, 42);
+	}
+
+	public LshIndex(RatingMatrix matrix, SimilarityMeasure measure, int bands, int rows)
+	{
+		this(matrix, measure, bands, rows, 42);
+	}
+
+	/**
+	 * Collects the users sharing a bucket with the user in any band
+	 * @param u User index
+	 * @param candidates Receives the user indexes, must have room for every user
+	 * @return The number of candidates
+	 */
+	public int candidates(int u, int[] candidates)
+	{
+		if (matrix.rowSize(u) == 0)
+		{
+			return 0;
+		}
+		stamp++;
+		stamps[u] = stamp;
+		int count = 0;
+		for (int band = 0; band < bands; band++)
+		{
+			long key = (long) keys[band][u] << 32;
+			long[] sorted = buckets[band];
+			int i = Arrays.binarySearch(sorted, key); //Before the first entry of the bucket
+			for (i = i < 0 ? -i - 1 : i; i < sorted.length && (sorted[i] & 0xFFFFFFFF00000000L) == key; i++)
+			{
+				int v = (int) sorted[i];
+				if (stamps[v] != stamp)
+				{
+					stamps[v] = stamp;
+					candidates[count++] = v;
+				}
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Selects the most similar users among the candidates, by their exact similarity. The user's values are
+	 * scattered into a dense array so each candidate's row is scored without merging.
+	 * @param u User index
+	 * @param k Maximum number of neighbours
+	 * @param neighbours Receives the user indexes of the neighbours, most similar first
+	 * @param weights Receives the similarity of each neighbour, may be null
+	 * @return The number of neighbours, at most k
+	 */
+	public int neighbours(int u, int k, int[] neighbours, double[] weights)
+	{
+		int count = candidates(u, candidates);
+		for (int i = matrix.rowStart[u]; i < matrix.rowStart[u + 1]; i++)
+		{
+			query[matrix.rowMovies[i]] = rowValues[i];
+		}
+		if (heap.capacity() != k)
+		{
+			heap = new BoundedHeap(k);
+		}
+		for (int c = 0; c < count; c++)
+		{
+			int v = candidates[c];
+			double score = 0;
+			for (int i = matrix.rowStart[v]; i < matrix.rowStart[v + 1]; i++)
+			{
+				score += query[matrix.rowMovies[i]] * rowValues[i];
+			}
+			double lengths = norms[u] * norms[v];
+			if (score > 0 && lengths > 0)
+			{
+				heap.offer(v, score / lengths);
+			}
+		}
+		for (int i = matrix.rowStart[u]; i < matrix.rowStart[u + 1]; i++)
+		{
+			query[matrix.rowMovies[i]] = 0;
+		}
+		return heap.drain(neighbours, weights);
+	}
+
+	public RatingMatrix getMatrix()
+	{
+		return matrix;
+	}
+
+	public SimilarityMeasure getMeasure()
+	{
+		return measure;
+	}
+
+	public int getBands()
+	{
+		return bands;
+	}
+
+	public int getRows()
+	{
+		return rows;
+	}
+
+	/**
+	 * Sets the band values of a user from the side of each hyperplane their rating vector lies on
+	 */
+	private void hash(int u, double[] projections)
+	{
+		Arrays.fill(projections, 0.0);
+		for (int i = matrix.rowStart[u]; i < matrix.rowStart[u + 1]; i++)
+		{
+			int m = matrix.rowMovies[i];
+			float value = rowValues[i];
+			for (int plane = 0; plane < projections.length; plane++)
+			{
+				projections[plane] += component(plane, m) * value;
+			}
+		}
+		for (int band = 0; band < bands; band++)
+		{
+			int key = 0;
+			for (int row = 0; row < rows; row++)
+			{
+				key = key << 1 | (projections[band * rows + row] >= 0 ? 1 : 0);
+			}
+			keys[band][u] = key;
+		}
+	}
+
+	/**
+	 * @return The sorted (band value, user) pairs of the users with ratings, by band. Users with no ratings are
+	 * similar to nobody, so are kept out of the buckets.
+	 */
+	private long[][] buckets()
+	{
+		int raterCount = 0;
+		for (int u = 0; u < matrix.userCount(); u++)
+		{
+			raterCount += matrix.rowSize(u) > 0 ? 1 : 0;
+		}
+		long[][] buckets = new long[bands][raterCount];
+		for (int band = 0; band < bands; band++)
+		{
+			int hashed = 0;
+			for (int u = 0; u < matrix.userCount(); u++)
+			{
+				if (matrix.rowSize(u) > 0)
+				{
+					buckets[band][hashed++] = (long) keys[band][u] << 32 | u;
+				}
+			}
+			Arrays.sort(buckets[band]);
+		}
+		return buckets;
+	}
+
+	/**
+	 * The +1 or -1 component of a hyperplane for a movie
+	 */
+	private int component(int plane, int m)
+	{
+		long h = (seed + plane * 0x9E3779B97F4A7C15L) ^ (m * 0xC2B2AE3D27D4EB4FL);
+		h ^= h >>> 33;
+		h *= 0xFF51AFD7ED558CCDL;
+		h ^= h >>> 33;
+		return (h & 1) == 0 ? 1 : -1;
+	}
+}
@@ -0,0 +1,275 @@
+package utils;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Latent factor model of the ratings, rating(u, m) = mean + userBias[u] + movieBias[m] + p[u] . q[m], trained by
+ * stochastic gradient descent. Each epoch visits the ratings in a new random order, split across the threads of
+ * a fork-join pool which update the shared float factor arrays without locking (Hogwild): two threads rarely
+ * touch the same user or movie at once, and an occasional lost update does not stop the model converging.
+ *
+ * The model keeps the RatingMatrix it was trained on for its user and movie indexes. Users and movies added
+ * after training are not scored until the model is trained again.
+ */
+public class MatrixFactorization
+{
+	static final int CHUNK_SIZE = 4096; //Ratings per fork-join leaf task
+
+	private final int rank;
+	private final int epochs;
+	private float learningRate = 0.01f;
+	private float regularization = 0.05f;
+	private long seed = 42;
+	private ForkJoinPool pool = ForkJoinPool.commonPool();
+
+	private RatingMatrix matrix;
+	private float mean;
+	private float[] userBiases, movieBiases;
+	private float[] userFactors, movieFactors; //rank values per user and per movie
+	private List<String> epochReports = new ArrayList<>();
+	private double rmse = Double.NaN; //Training RMSE after the last epoch
+
+	/**
+	 * @param rank Number of latent factors
+	 * @param epochs Passes over the ratings
+	 */
+	public MatrixFactorization(int rank, int epochs)
+	{
+		if (rank <= 0 || epochs < 0)
+		{
+			throw new IllegalArgumentException("Invalid rank or epochs: " + rank + ", " + epochs);
+		}
+		this.rank = rank;
+		this.epochs = epochs;
+	}
+
+	/**
+	 * Trains the model on every rating in the matrix
+	 * @param matrix
+	 */
+	public void train(RatingMatrix matrix)
+	{
+		this.matrix = matrix;
+		int ratingCount = matrix.size();
+		Random random = new Random(seed);
+
+		//Flatten the ratings to parallel arrays of user index, movie index and rating
+		int[] users = new int[ratingCount];
+		int[] movies = new int[ratingCount];
+		float[] ratings = new float[ratingCount];
+		long sum = 0;
+		for (int u = 0; u < matrix.userCount(); u++)
+		{
+			for (int i = matrix.rowStart[u]; i < matrix.rowStart[u + 1]; i++)
+			{
+				users[i] = u;
+				movies[i] = matrix.rowMovies[i];
+				ratings[i] = matrix.rowRatings[i];
+				sum += matrix.rowRatings[i];
+			}
+		}
+		mean = ratingCount == 0 ? 0f : (float) sum / ratingCount;
+
+		userBiases = new float[matrix.userCount()];
+		movieBiases = new float[matrix.movieCount()];
+		userFactors = initialFactors(matrix.userCount(), random);
+		movieFactors = initialFactors(matrix.movieCount(), random);
+
+		int[] order = new int[ratingCount];
+		for (int i = 0; i < ratingCount; i++)
+		{
+			order[i] = i;
+		}
+		epochReports.clear();
+		rmse = Double.NaN;
+		for (int epoch = 1; epoch <= epochs; epoch++)
+		{
+			for (int i = ratingCount - 1; i > 0; i--) //Fisher-Yates shuffle
+			{
+				int j = random.nextInt(i + 1);
+				int swap = order[i];
+				order[i] = order[j];
+				order[j] = swap;
+			}
+			long start = System.nanoTime();
+			pool.invoke(new EpochTask(order, users, movies, ratings, 0, ratingCount));
+			long elapsed = System.nanoTime() - start;
+
+			double squaredError = 0;
+			for (int i = 0; i < ratingCount; i++)
+			{
+				double error = ratings[i] - predict(users[i], movies[i]);
+				squaredError += error * error;
+			}
+			rmse = ratingCount == 0 ? 0 : Math.sqrt(squaredError / ratingCount);
+			epochReports.add(String.format("Epoch %d: RMSE %.4f, %.0f ratings/sec", epoch, rmse,
+					ratingCount * 1e9 / Math.max(elapsed, 1)));
+		}
+	}
+
+	/**
+	 * @param u User index in the training matrix
+	 * @param m Movie index in the training matrix
+	 * @return The predicted rating
+	 */
+	public float predict(int u, int m)
+	{
+		float prediction = mean + userBiases[u] + movieBiases[m];
+		int p = u * rank, q = m * rank;
+		for (int f = 0; f < rank; f++)
+		{
+			prediction += userFactors[p + f] * movieFactors[q + f];
+		}
+		return prediction;
+	}
+
+	/**
+	 * Ranks the movies the user has not rated by their predicted rating
+	 * @param userId
+	 * @param ratedMovieIds Movies to leave out
+	 * @param n Maximum number of movies
+	 * @return Ids of the movies with the highest predicted ratings, highest first. Empty if the user was not
+	 * part of the training data.
+	 */
+	public long[] recommend(long userId, Collection<Long> ratedMovieIds, int n)
+	{
+		int u = matrix.userIndex(userId);
+		if (u < 0)
+		{
+			return new long[0];
+		}
+		boolean[] rated = new boolean[matrix.movieCount()];
+		for (long movieId: ratedMovieIds)
+		{
+			int m = matrix.movieIndex(movieId);
+			if (m >= 0)
+			{
+				rated[m] = true;
+			}
+		}
+
+		BoundedHeap heap = new BoundedHeap(n);
+		for (int m = 0; m < rated.length; m++)
+		{
+			if (!rated[m])
+			{
+				heap.offer(m, predict(u, m));
+			}
+		}
+		int[] best = heap.drain();
+		long[] result = new long[best.length];
+		for (int i = 0; i < best.length; i++)
+		{
+			result[i] = matrix.movieIds[best[i]];
+		}
+		return result;
+	}
+
+	/**
+	 * @return One line per epoch of the last training with its RMSE and throughput
+	 */
+	public String report()
+	{
+		return String.join("\n", epochReports);
+	}
+
+	/**
+	 * @return The training RMSE after the last epoch, or NaN before training
+	 */
+	public double getRmse()
+	{
+		return rmse;
+	}
+
+	public RatingMatrix getMatrix()
+	{
+		return matrix;
+	}
+
+	public void setLearningRate(float learningRate)
+	{
+		this.learningRate = learningRate;
+	}
+
+	public void setRegularization(float regularization)
+	{
+		this.regularization = regularization;
+	}
+
+	public void setSeed(long seed)
+	{
+		this.seed = seed;
+	}
+
+	public void setPool(ForkJoinPool pool)
+	{
+		this.pool = pool;
+	}
+
+	private float[] initialFactors(int count, Random random)
+	{
+		float[] factors = new float[count * rank];
+		for (int i = 0; i < factors.length; i++)
+		{
+			factors[i] = (float) (random.nextGaussian() * 0.1);
+		}
+		return factors;
+	}
+
+	/**
+	 * Applies the gradient steps for the ratings order[from, to), splitting the range until it is at most
+	 * CHUNK_SIZE
+	 */
+	private class EpochTask extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+
+		private final int[] order, users, movies;
+		private final float[] ratings;
+		private final int from, to;
+
+		EpochTask(int[] order, int[] users, int[] movies, float[] ratings, int from, int to)
+		{
+			this.order = order;
+			this.users = users;
+			this.movies = movies;
+			this.ratings = ratings;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute()
+		{
+			if (to - from > CHUNK_SIZE)
+			{
+				int middle = (from + to) >>> 1;
+				invokeAll(new EpochTask(order, users, movies, ratings, from, middle),
+						new EpochTask(order, users, movies, ratings, middle, to));
+				return;
+			}
+			for (int i = from; i < to; i++)
+			{
+				int r = order[i];
+				int u = users[r], m = movies[r];
+				float error = ratings[r] - predict(u, m);
+
+				userBiases[u] += learningRate * (error - regularization * userBiases[u]);
+				movieBiases[m] += learningRate * (error - regularization * movieBiases[m]);
+				int p = u * rank, q = m * rank;
+				for (int f = 0; f < rank; f++)
+				{
+					float userFactor = userFactors[p + f];
+					float movieFactor = movieFactors[q + f];
+					userFactors[p + f] += learningRate * (error * movieFactor - regularization * userFactor);
+					movieFactors[q + f] += learningRate * (error * userFactor - regularization * movieFactor);
+				}
+			}
+		}
+	}
+}
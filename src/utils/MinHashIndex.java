@@ -0,0 +1,271 @@
+package utils;
+
+import java.util.Arrays;
+
+import models.User;
+
+/**
+ * MinHash signatures of the sets of movies users have rated. A signature holds, for each of a number of hash
+ * functions, the lowest hash of any movie in the set, and the fraction of positions at which two signatures
+ * agree estimates the Jaccard similarity of the two sets, the size of their overlap over the size of their
+ * union. With the sizes of the two sets, that also estimates the number of movies both users rated, which is
+ * what candidates are ranked by, since the dot product similarity grows with it. Adding a movie only lowers
+ * positions of its user's signature, so signatures are kept up to date one rating at a time without revisiting
+ * the user's other ratings.
+ *
+ * Signatures are held one after another in a single int array, indexed by a slot per user. For comparison the
+ * low 16 bits of each position are also packed four to a long, and the positions at which two longs agree are
+ * counted with a few bitwise operations, so comparing a user with every other user is one sequential pass
+ * without a hash lookup or a rating map per user. Packed positions agree by chance once in 65536. The
+ * hash functions are derived from a seed, so they need no storage. An instance is not thread safe.
+ */
+public class MinHashIndex
+{
+	private static final int NONE = Integer.MAX_VALUE; //Position of a signature no movie has been hashed to
+	private static final long LOW_BITS = 0x7FFF7FFF7FFF7FFFL; //All but the top bit of each packed position
+
+	private final int hashes;
+	private final long seed;
+	private final LongIntHashMap slots = new LongIntHashMap(); //Slot of each user id
+	private long[] userIds = new long[16]; //User id of each slot
+	private int[] signatures; //hashes positions per slot
+	private long[] packed; //hashes / 4 longs per slot
+	private int[] sizes = new int[16]; //Movies in the set of each slot
+	private int slotCount = 0;
+	private BoundedHeap heap = new BoundedHeap(0); //Reused while the number of candidates asked for is unchanged
+	private int[] found = new int[0]; //Slots of the candidates
+
+	/**
+	 * @param hashes Hash functions per signature, a positive multiple of 4. More estimate the similarity more
+	 * precisely.
+	 * @param seed
+	 */
+	public MinHashIndex(int hashes, long seed)
+	{
+		if (hashes <= 0 || hashes % 4 != 0)
+		{
+			throw new IllegalArgumentException("Invalid number of hashes: " + hashes);
+		}
+		this.hashes = hashes;
+		this.seed = seed;
+		signatures = new int[userIds.length * hashes];
+		packed = new long[userIds.length * hashes / 4];
+	}
+
+	public MinHashIndex(int hashes)
+	{
+		this(hashes, 42);
+	}
+
+	/**
+	 * Adds every movie the user has rated to their signature
+	 * @param user
+	 */
+	public void add(User user)
+	{
+		int slot = slot(user.userId);
+		for (long movieId: user.ratedMovies.keySet())
+		{
+			add(slot, movieId);
+		}
+		pack(slot);
+		sizes[slot] = user.ratedMovies.size();
+	}
+
+	/**
+	 * Adds a movie the user has just rated to their signature
+	 * @param user
+	 * @param movieId
+	 */
+	public void add(User user, long movieId)
+	{
+		int slot = slot(user.userId);
+		add(slot, movieId);
+		pack(slot);
+		sizes[slot] = user.ratedMovies.size();
+	}
+
+	private void add(int slot, long movieId)
+	{
+		int offset = slot * hashes;
+		for (int i = 0; i < hashes; i++)
+		{
+			signatures[offset + i] = Math.min(signatures[offset + i], hash(i, movieId));
+		}
+	}
+
+	/**
+	 * Empties the user's signature, so they are no longer a candidate of anybody
+	 * @param userId
+	 */
+	public void remove(long userId)
+	{
+		int slot = slots.get(userId);
+		if (slot >= 0)
+		{
+			Arrays.fill(signatures, slot * hashes, (slot + 1) * hashes, NONE);
+			pack(slot);
+			sizes[slot] = 0;
+		}
+	}
+
+	/**
+	 * @param userId
+	 * @param otherUserId
+	 * @return The estimated Jaccard similarity of the sets of movies the two users rated, 0 if either set is empty
+	 */
+	public double jaccard(long userId, long otherUserId)
+	{
+		int slot = slots.get(userId), other = slots.get(otherUserId);
+		if (slot < 0 || other < 0 || sizes[slot] == 0 || sizes[other] == 0)
+		{
+			return 0.0;
+		}
+		return (double) agreements(slot, other) / hashes;
+	}
+
+	/**
+	 * @param userId
+	 * @param otherUserId
+	 * @return The estimated number of movies both users rated
+	 */
+	public double overlap(long userId, long otherUserId)
+	{
+		int slot = slots.get(userId), other = slots.get(otherUserId);
+		if (slot < 0 || other < 0 || sizes[slot] == 0 || sizes[other] == 0)
+		{
+			return 0.0;
+		}
+		return overlap(slot, other, agreements(slot, other));
+	}
+
+	/**
+	 * Selects the users estimated to have rated the most movies in common with the user, by comparing the user's
+	 * signature with every other signature
+	 * @param userId
+	 * @param max Maximum number of candidates
+	 * @param candidateIds Receives the user ids of the candidates, highest overlap first
+	 * @param estimates Receives the estimated overlap of each candidate, may be null
+	 * @return The number of candidates, at most max. Only users with a positive estimate are included.
+	 */
+	public int candidates(long userId, int max, long[] candidateIds, double[] estimates)
+	{
+		int slot = slots.get(userId);
+		if (slot < 0 || sizes[slot] == 0) //Rated nothing, so like nobody
+		{
+			return 0;
+		}
+		if (heap.capacity() != max)
+		{
+			heap = new BoundedHeap(max);
+			found = new int[max];
+		}
+		for (int other = 0; other < slotCount; other++)
+		{
+			if (other == slot || sizes[other] == 0)
+			{
+				continue;
+			}
+			int agreements = agreements(slot, other);
+			if (agreements > 0)
+			{
+				heap.offer(other, overlap(slot, other, agreements));
+			}
+		}
+		int count = heap.drain(found, estimates);
+		for (int i = 0; i < count; i++)
+		{
+			candidateIds[i] = userIds[found[i]];
+		}
+		return count;
+	}
+
+	/**
+	 * @return The number of users with a signature, including emptied ones
+	 */
+	public int size()
+	{
+		return slotCount;
+	}
+
+	public int getHashes()
+	{
+		return hashes;
+	}
+
+	/**
+	 * |A and B| = J (|A| + |B|) / (1 + J) for Jaccard similarity J
+	 */
+	private double overlap(int slot, int other, int agreements)
+	{
+		double jaccard = (double) agreements / hashes;
+		return jaccard * (sizes[slot] + sizes[other]) / (1 + jaccard);
+	}
+
+	/**
+	 * Counts the packed positions at which two signatures agree. A position of x = a ^ b is zero when its top
+	 * bit and the carry out of adding all ones to its other bits are both clear.
+	 */
+	private int agreements(int slot, int other)
+	{
+		int words = hashes / 4;
+		int offset = slot * words, otherOffset = other * words;
+		int agreements = 0;
+		for (int i = 0; i < words; i++)
+		{
+			long x = packed[offset + i] ^ packed[otherOffset + i];
+			agreements += Long.bitCount(~(((x & LOW_BITS) + LOW_BITS) | x | LOW_BITS));
+		}
+		return agreements;
+	}
+
+	private void pack(int slot)
+	{
+		for (int word = 0; word < hashes / 4; word++)
+		{
+			long value = 0;
+			for (int i = 0; i < 4; i++)
+			{
+				value |= (signatures[slot * hashes + word * 4 + i] & 0xFFFFL) << (16 * i);
+			}
+			packed[slot * hashes / 4 + word] = value;
+		}
+	}
+
+	/**
+	 * @return The slot of the user, given an empty signature if they have none yet
+	 */
+	private int slot(long userId)
+	{
+		int slot = slots.get(userId);
+		if (slot >= 0)
+		{
+			return slot;
+		}
+		if (slotCount == userIds.length)
+		{
+			userIds = Arrays.copyOf(userIds, slotCount * 2);
+			sizes = Arrays.copyOf(sizes, slotCount * 2);
+			signatures = Arrays.copyOf(signatures, slotCount * 2 * hashes);
+			packed = Arrays.copyOf(packed, slotCount * 2 * hashes / 4);
+		}
+		slot = slotCount++;
+		userIds[slot] = userId;
+		Arrays.fill(signatures, slot * hashes, (slot + 1) * hashes, NONE);
+		pack(slot);
+		slots.put(userId, slot);
+		return slot;
+	}
+
+	/**
+	 * The i-th hash of a movie, below NONE
+	 */
+	private int hash(int i, long movieId)
+	{
+		long h = (seed + i * 0x9E3779B97F4A7C15L) ^ (movieId * 0xC2B2AE3D27D4EB4FL);
+		h ^= h >>> 33;
+		h *= 0xFF51AFD7ED558CCDL;
+		h ^= h >>> 33;
+		return (int) (h >>> 34);
+	}
+}
@@ -18,11 +18,7 @@ public class MovieAverageRatingComparator implements Comparator<Movie>
 	@Override
 	public int compare(Movie m1, Movie m2)
 	{
-		if (m1.getAverageRating() < m2.getAverageRating()) 
-			 return +1;
-		 else if (m1.getAverageRating() > m2.getAverageRating()) 
-			 return -1;
-		 else return  0;
+		return Double.compare(m2.getAverageRating(), m1.getAverageRating()); //Highest average first
 	}
 }
 
@@ -0,0 +1,269 @@
+package utils;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import models.Movie;
+
+/**
+ * Movies ordered by average rating (highest first, ties by ascending movie id), kept in a treap where each
+ * node also records the size of its subtree. A movie is repositioned in O(log n) when its average changes,
+ * the top N movies are read in O(log n + N) and the rank of a movie is found in O(log n).
+ *
+ * Each node holds the average the movie had when it was positioned, so update must be called whenever
+ * a movie's ratings change.
+ */
+public class MovieLeaderboard
+{
+	private Node root;
+	private Map<Long, Node> nodes = new HashMap<>(); //Node of each movie
+	private Random random = new Random(42);
+
+	private static class Node
+	{
+		final Movie movie;
+		final double average;
+		final int priority;
+		int size = 1;
+		Node left, right;
+
+		Node(Movie movie, int priority)
+		{
+			this.movie = movie;
+			this.average = movie.getAverageRating();
+			this.priority = priority;
+		}
+	}
+
+	public MovieLeaderboard()
+	{}
+
+	public MovieLeaderboard(Collection<Movie> movies)
+	{
+		for (Movie movie: movies)
+		{
+			update(movie);
+		}
+	}
+
+	/**
+	 * Adds the movie, or repositions it after its average rating has changed
+	 * @param movie
+	 */
+	public void update(Movie movie)
+	{
+		remove(movie.movieId);
+		Node node = new Node(movie, random.nextInt());
+		nodes.put(movie.movieId, node);
+		Node[] parts = split(root, node.average, movie.movieId);
+		root = merge(merge(parts[0], node), parts[1]);
+	}
+
+	/**
+	 * Removes the movie from the leaderboard
+	 * @param movieId
+	 * @return Whether the movie was on the leaderboard
+	 */
+	public boolean remove(long movieId)
+	{
+		Node node = nodes.remove(movieId);
+		if (node == null)
+		{
+			return false;
+		}
+		root = remove(root, node.average, movieId);
+		return true;
+	}
+
+	/**
+	 * @param n
+	 * @return Up to n movies with the highest average ratings, highest first
+	 */
+	public List<Movie> top(int n)
+	{
+		List<Movie> top = new ArrayList<>(Math.max(0, Math.min(n, size())));
+		Deque<Node> path = new ArrayDeque<>();
+		Node node = root;
+		while (top.size() < n && (node != null || !path.isEmpty()))
+		{
+			if (node != null)
+			{
+				path.push(node);
+				node = node.left;
+			}
+			else
+			{
+				node = path.pop();
+				top.add(node.movie);
+				node = node.right;
+			}
+		}
+		return top;
+	}
+
+	/**
+	 * @param movieId
+	 * @return The position of the movie counting from 1 for the highest rated, or -1 if it is not on the leaderboard
+	 */
+	public int rank(long movieId)
+	{
+		Node target = nodes.get(movieId);
+		if (target == null)
+		{
+			return -1;
+		}
+		int rank = 1;
+		Node node = root;
+		while (node != null)
+		{
+			int c = compare(target.average, movieId, node);
+			if (c < 0)
+			{
+				node = node.left;
+			}
+			else
+			{
+				rank += size(node.left);
+				if (c == 0)
+				{
+					return rank;
+				}
+				rank++;
+				node = node.right;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @param rank Position counting from 1 for the highest rated
+	 * @return The movie at the position
+	 */
+	public Movie get(int rank)
+	{
+		if (rank < 1 || rank > size())
+		{
+			throw new IndexOutOfBoundsException("Rank: " + rank);
+		}
+		Node node = root;
+		int index = rank - 1;
+		while (true)
+		{
+			int leftSize = size(node.left);
+			if (index < leftSize)
+			{
+				node = node.left;
+			}
+			else if (index == leftSize)
+			{
+				return node.movie;
+			}
+			else
+			{
+				index -= leftSize + 1;
+				node = node.right;
+			}
+		}
+	}
+
+	public int size()
+	{
+		return size(root);
+	}
+
+	/**
+	 * Orders by average descending, then movie id ascending
+	 */
+	private static int compare(double average, long movieId, Node node)
+	{
+		int c = Double.compare(node.average, average);
+		return c != 0 ? c : Long.compare(movieId, node.movie.movieId);
+	}
+
+	/**
+	 * Splits the tree into the nodes before the key and the nodes from the key on
+	 */
+	private static Node[] split(Node node, double average, long movieId)
+	{
+		if (node == null)
+		{
+			return new Node[] { null, null };
+		}
+		if (compare(average, movieId, node) > 0) //Node is before the key
+		{
+			Node[] parts = split(node.right, average, movieId);
+			node.right = parts[0];
+			resize(node);
+			parts[0] = node;
+			return parts;
+		}
+		Node[] parts = split(node.left, average, movieId);
+		node.left = parts[1];
+		resize(node);
+		parts[1] = node;
+		return parts;
+	}
+
+	/**
+	 * Joins two trees where every node of the first is before every node of the second
+	 */
+	private static Node merge(Node first, Node second)
+	{
+		if (first == null)
+		{
+			return second;
+		}
+		if (second == null)
+		{
+			return first;
+		}
+		if (first.priority > second.priority)
+		{
+			first.right = merge(first.right, second);
+			resize(first);
+			return first;
+		}
+		second.left = merge(first, second.left);
+		resize(second);
+		return second;
+	}
+
+	private static Node remove(Node node, double average, long movieId)
+	{
+		if (node == null)
+		{
+			return null;
+		}
+		int c = compare(average, movieId, node);
+		if (c == 0)
+		{
+			return merge(node.left, node.right);
+		}
+		if (c < 0)
+		{
+			node.left = remove(node.left, average, movieId);
+		}
+		else
+		{
+			node.right = remove(node.right, average, movieId);
+		}
+		resize(node);
+		return node;
+	}
+
+	private static int size(Node node)
+	{
+		return node == null ? 0 : node.size;
+	}
+
+	private static void resize(Node node)
+	{
+		node.size = 1 + size(node.left) + size(node.right);
+	}
+}
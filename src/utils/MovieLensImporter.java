@@ -0,0 +1,293 @@
+package utils;
+
+import java.io.File;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import models.Movie;
+import models.Rating;
+import models.User;
+
+/**
+ * Streaming importer for the larger MovieLens releases. The files are memory-mapped and scanned a line at
+ * a time, and each row goes straight into the users, movies and per-entity rating indexes, so the raw lines
+ * are never held in memory. Time, rows and heap in use are reported for every stage.
+ *
+ * Supported layouts:
+ * <ul>
+ * <li>DOUBLE_COLON (MovieLens 1M and 10M): users.dat (1M only), movies.dat and ratings.dat delimited by "::"</li>
+ * <li>CSV (MovieLens 20M/25M and ml-latest): movies.csv and ratings.csv with a header line and quoted titles</li>
+ * </ul>
+ * The pipe delimited 100K layout of the bundled data is handled by Parser.
+ *
+ * Star ratings (0.5 to 5) are converted to this system's -5 to 5 scale in the same way as the bundled data
+ * (1 = -5, 2 = -3, 3 = 1, 4 = 3, 5 = 5), with half stars rounded up. Users of releases without a users file
+ * are created from their ratings with blank demographics.
+ */
+public class MovieLensImporter
+{
+	public enum Format
+	{
+		PIPE, DOUBLE_COLON, CSV
+	}
+
+	//Occupation codes of the MovieLens 1M users file
+	static final String[] OCCUPATIONS = { "other", "academic/educator", "artist", "clerical/admin",
+			"college/grad student", "customer service", "doctor/health care", "executive/managerial", "farmer",
+			"homemaker", "K-12 student", "lawyer", "programmer", "retired", "sales/marketing", "scientist",
+			"self-employed", "technician/engineer", "tradesman/craftsman", "unemployed", "writer" };
+
+	static final int[] STAR_SCALE = { -5, -5, -3, 1, 3, 5 }; //Rating for 0 to 5 stars
+
+	Map<Long, User> users = new HashMap<>();
+	Map<Long, Movie> movies = new HashMap<>();
+	List<Rating> ratings = new ArrayList<>();
+	List<String> stages = new ArrayList<>(); //Report line per stage
+
+	/**
+	 * Works out the layout of a MovieLens release from the files in its directory
+	 * @param directory
+	 * @return
+	 * @throws Exception
+	 */
+	public static Format detect(File directory) throws Exception
+	{
+		if (new File(directory, "ratings.csv").isFile() && new File(directory, "movies.csv").isFile())
+		{
+			return Format.CSV;
+		}
+		if (new File(directory, "ratings.dat").isFile() && new File(directory, "movies.dat").isFile())
+		{
+			return Format.DOUBLE_COLON;
+		}
+		if (new File(directory, "ratings.dat").isFile() && new File(directory, "items.dat").isFile())
+		{
+			return Format.PIPE;
+		}
+		throw new Exception("No MovieLens data found in " + directory);
+	}
+
+	/**
+	 * Imports every file of the release in the directory
+	 * @param directory
+	 * @throws Exception
+	 */
+	public void importDirectory(File directory) throws Exception
+	{
+		switch (detect(directory))
+		{
+		case DOUBLE_COLON:
+			File usersFile = new File(directory, "users.dat");
+			if (usersFile.isFile())
+			{
+				importUsers(usersFile.getPath());
+			}
+			importMovies(new File(directory, "movies.dat").getPath(), "::", StandardCharsets.ISO_8859_1, false);
+			importRatings(new File(directory, "ratings.dat").getPath(), "::", false);
+			break;
+
+		case CSV:
+			importMovies(new File(directory, "movies.csv").getPath(), ",", StandardCharsets.UTF_8, true);
+			importRatings(new File(directory, "ratings.csv").getPath(), ",", true);
+			break;
+
+		default:
+			throw new Exception("Pipe delimited data is loaded with Parser: " + directory);
+		}
+	}
+
+	/**
+	 * Stage 1: UserID::Gender::Age::Occupation::Zip-code
+	 */
+	void importUsers(String path) throws Exception
+	{
+		long start = System.nanoTime();
+		long rows = 0;
+		try (FieldScanner scanner = FieldScanner.map(path, "::"))
+		{
+			while (scanner.hasNextLine())
+			{
+				int fields = scanner.countFields();
+				if (fields != 5)
+				{
+					throw new Exception("Invalid member length: " + fields);
+				}
+				long userId = scanner.nextLong();
+				char gender = scanner.nextChar();
+				int age = scanner.nextInt();
+				int occupation = scanner.nextInt();
+				String occupationName = occupation >= 0 && occupation < OCCUPATIONS.length ? OCCUPATIONS[occupation] : OCCUPATIONS[0];
+				users.put(userId, new User(userId, "", "", age, gender, occupationName, "", ""));
+				scanner.nextLine();
+				rows++;
+			}
+		}
+		stage("users", rows, start);
+	}
+
+	/**
+	 * Stage 2: MovieID::Title::Genres or movieId,title,genres
+	 */
+	void importMovies(String path, String delimiter, Charset charset, boolean header) throws Exception
+	{
+		long start = System.nanoTime();
+		long rows = 0;
+		try (FieldScanner scanner = FieldScanner.map(path, delimiter))
+		{
+			scanner.setQuoted(header);
+			scanner.setCharset(charset);
+			if (header && scanner.hasNextLine())
+			{
+				scanner.nextLine();
+			}
+			while (scanner.hasNextLine())
+			{
+				int fields = scanner.countFields();
+				if (fields != 3)
+				{
+					throw new Exception("Invalid member length: " + fields);
+				}
+				long movieId = scanner.nextLong();
+				String title = scanner.nextString();
+				movies.put(movieId, new Movie(movieId, title, releaseYear(title), ""));
+				scanner.nextLine(); //Genres are not used
+				rows++;
+			}
+		}
+		stage("movies", rows, start);
+	}
+
+	/**
+	 * Stage 3: UserID::MovieID::Rating::Timestamp or userId,movieId,rating,timestamp.
+	 * Of two ratings of a movie by the same user the most recent one is kept.
+	 */
+	void importRatings(String path, String delimiter, boolean header) throws Exception
+	{
+		long start = System.nanoTime();
+		long rows = 0;
+		long superseded = 0;
+		try (FieldScanner scanner = FieldScanner.map(path, delimiter))
+		{
+			if (header && scanner.hasNextLine())
+			{
+				scanner.nextLine();
+			}
+			while (scanner.hasNextLine())
+			{
+				int fields = scanner.countFields();
+				if (fields != 4)
+				{
+					throw new Exception("Invalid member length: " + fields);
+				}
+				long userId = scanner.nextLong();
+				long movieId = scanner.nextLong();
+				int rating = convertRating(scanner.nextDouble());
+				long timestamp = scanner.nextLong();
+				scanner.nextLine();
+				rows++;
+
+				User user = users.get(userId);
+				if (user == null) //Releases without a users file
+				{
+					user = new User(userId, "", "", 0, 'N', OCCUPATIONS[0], "", "");
+					users.put(userId, user);
+				}
+				Movie movie = movies.get(movieId);
+				if (movie == null)
+				{
+					throw new Exception("Rating of unknown movie: " + movieId);
+				}
+
+				Rating previous = user.ratedMovies.get(movieId);
+				if (previous != null)
+				{
+					superseded++;
+					if (previous.timestamp > timestamp)
+					{
+						continue;
+					}
+				}
+				Rating r = new Rating(userId, movieId, rating, timestamp);
+				user.addRatedMovies(movieId, r);
+				movie.addUserRatings(userId, r);
+				ratings.add(r);
+			}
+		}
+
+		if (superseded > 0) //Drop superseded ratings from the list
+		{
+			ratings = Normalizer.canonicalRatings(users);
+		}
+		Collections.sort(ratings, new RatingByTimeComparator());
+		stage("ratings", rows, start);
+	}
+
+	/**
+	 * Converts a star rating to the -5 to 5 scale
+	 * @param stars
+	 * @return
+	 */
+	public static int convertRating(double stars)
+	{
+		int rounded = (int) Math.ceil(stars);
+		return STAR_SCALE[Math.max(1, Math.min(5, rounded))];
+	}
+
+	/**
+	 * Year in brackets at the end of a title such as "Toy Story (1995)", or 0 if there is none
+	 */
+	static int releaseYear(String title)
+	{
+		String trimmed = title.trim();
+		int open = trimmed.lastIndexOf('(');
+		if (open >= 0 && trimmed.endsWith(")") && trimmed.length() - open == 6)
+		{
+			try
+			{
+				return Integer.parseInt(trimmed.substring(open + 1, open + 5));
+			}
+			catch (NumberFormatException e)
+			{
+				return 0;
+			}
+		}
+		return 0;
+	}
+
+	private void stage(String name, long rows, long start)
+	{
+		double millis = (System.nanoTime() - start) / 1e6;
+		Runtime runtime = Runtime.getRuntime();
+		long heapUsed = (runtime.totalMemory() - runtime.freeMemory()) >> 20;
+		stages.add(String.format("%s: %d rows in %.1f ms (%.0f rows/sec), %d MB heap in use",
+				name, rows, millis, rows * 1000 / Math.max(millis, 0.001), heapUsed));
+	}
+
+	public Map<Long, User> getUsers()
+	{
+		return users;
+	}
+
+	public Map<Long, Movie> getMovies()
+	{
+		return movies;
+	}
+
+	public List<Rating> getRatings()
+	{
+		return ratings;
+	}
+
+	/**
+	 * @return One line per stage with its rows, time and heap in use
+	 */
+	public String report()
+	{
+		return String.join("\n", stages);
+	}
+}
@@ -0,0 +1,388 @@
+package utils;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+
+import models.Movie;
+import models.Rating;
+import models.User;
+
+/**
+ * Append-only log of the mutations made since the last snapshot of the datastore. Records are buffered
+ * and written with a single fsync per group commit, so the cost of persisting a change is proportional
+ * to the change rather than to the size of the datastore.
+ *
+ * Each record is written as [length][type][sequence number][payload][crc32]. A torn or corrupt record at the
+ * tail of the log (e.g. after a crash) ends the replay. Sequence numbers keep increasing across truncations, so
+ * a snapshot stores the number of the last record it includes and replay skips the records up to it. A crash
+ * after a snapshot is written but before the log is truncated then replays nothing twice.
+ */
+public class MutationLog implements AutoCloseable
+{
+	static final byte ADD_USER = 1;
+	static final byte ADD_MOVIE = 2;
+	static final byte ADD_RATING = 3;
+	static final byte REMOVE_USER = 4;
+
+	private File file;
+	private FileChannel channel;
+	private ByteBuffer buffer = ByteBuffer.allocateDirect(BinarySerializer.BUFFER_SIZE);
+	private ByteBuffer record = ByteBuffer.allocate(256);
+	private CRC32 crc = new CRC32();
+
+	private int groupSize; //Number of pending records which forces a commit
+	private int pending = 0; //Records appended since the last commit
+	private int size = 0; //Records in the log since it was last truncated
+	private long lsn = 0; //Sequence number of the last record logged or read
+
+	/**
+	 * Callback used to apply logged mutations on top of a snapshot
+	 */
+	public interface Replayer
+	{
+		void addUser(User user);
+		void addMovie(Movie movie);
+		void addRating(Rating rating);
+		void removeUser(long userId);
+	}
+
+	public MutationLog(File file) throws IOException
+	{
+		this(file, 64);
+	}
+
+	public MutationLog(File file, int groupSize) throws IOException
+	{
+		this.file = file;
+		this.groupSize = groupSize;
+		channel = new RandomAccessFile(file, "rw").getChannel();
+		channel.position(channel.size());
+		replay(0, null); //Read the last sequence number, so new records follow it
+	}
+
+	public void logAddUser(User user)
+	{
+		begin(ADD_USER);
+		putLong(user.userId);
+		putString(user.firstName);
+		putString(user.lastName);
+		putInt(user.age);
+		putChar(user.gender);
+		putString(user.occupation);
+		putString(user.username);
+		putString(user.password);
+		append();
+	}
+
+	public void logAddMovie(Movie movie)
+	{
+		begin(ADD_MOVIE);
+		putLong(movie.movieId);
+		putString(movie.title);
+		putInt(movie.year);
+		putString(movie.url);
+		append();
+	}
+
+	public void logAddRating(Rating rating)
+	{
+		begin(ADD_RATING);
+		putLong(rating.userId);
+		putLong(rating.movieId);
+		putInt(rating.rating);
+		putLong(rating.timestamp);
+		append();
+	}
+
+	public void logRemoveUser(long userId)
+	{
+		begin(REMOVE_USER);
+		putLong(userId);
+		append();
+	}
+
+	/**
+	 * Writes all pending records and forces them to disk with a single fsync
+	 * @throws IOException
+	 */
+	public void commit() throws IOException
+	{
+		flush();
+		if (pending > 0)
+		{
+			channel.force(false);
+			pending = 0;
+		}
+	}
+
+	/**
+	 * Applies every intact record in the log to the replayer, in the order it was logged
+	 * @param replayer
+	 * @return Number of records replayed
+	 * @throws IOException
+	 */
+	public int replay(Replayer replayer) throws IOException
+	{
+		return replay(0, replayer);
+	}
+
+	/**
+	 * Applies every intact record logged after a snapshot to the replayer, in the order it was logged
+	 * @param snapshotLsn Sequence number stored with the snapshot, whose records are skipped
+	 * @param replayer May be null to only read the sequence numbers
+	 * @return Number of records replayed
+	 * @throws IOException
+	 */
+	public int replay(long snapshotLsn, Replayer replayer) throws IOException
+	{
+		commit();
+		int count = 0, replayed = 0;
+		long validLength = 0;
+		lsn = Math.max(lsn, snapshotLsn); //Records logged from now on follow the snapshot even if the log was lost
+
+		try (FileChannel readChannel = new RandomAccessFile(file, "r").getChannel();
+				DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(readChannel))))
+		{
+			while (true)
+			{
+				byte[] body;
+				try
+				{
+					int length = in.readInt();
+					if (length <= 0 || length > readChannel.size())
+					{
+						break;
+					}
+					body = new byte[length];
+					in.readFully(body);
+					crc.reset();
+					crc.update(body, 0, length);
+					if (in.readInt() != (int) crc.getValue())
+					{
+						break;
+					}
+				}
+				catch (EOFException e)
+				{
+					break;
+				}
+
+				ByteBuffer record = ByteBuffer.wrap(body);
+				byte type = record.get();
+				long recordLsn = record.getLong();
+				if (recordLsn > snapshotLsn && replayer != null)
+				{
+					apply(type, record, replayer);
+					replayed++;
+				}
+				lsn = Math.max(lsn, recordLsn);
+				validLength += 8 + body.length;
+				count++;
+			}
+		}
+
+		//Drop a torn tail so new records are not appended after garbage
+		if (validLength < channel.size())
+		{
+			channel.truncate(validLength);
+			channel.position(validLength);
+		}
+		size = count;
+		return replayed;
+	}
+
+	/**
+	 * Discards every record, called once a snapshot containing them has been written
+	 * @throws IOException
+	 */
+	public void truncate() throws IOException
+	{
+		buffer.clear();
+		channel.truncate(0);
+		channel.position(0);
+		channel.force(false);
+		pending = 0;
+		size = 0;
+	}
+
+	/**
+	 * @return The sequence number of the last record logged, to be stored with a snapshot which includes it
+	 */
+	public long getLsn()
+	{
+		return lsn;
+	}
+
+	/**
+	 * @return Number of records logged since the last truncation
+	 */
+	public int size()
+	{
+		return size;
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		commit();
+		channel.close();
+	}
+
+	private void apply(byte type, ByteBuffer body, Replayer replayer)
+	{
+		switch (type)
+		{
+		case ADD_USER:
+			long userId = body.getLong();
+			String firstName = getString(body);
+			String lastName = getString(body);
+			int age = body.getInt();
+			char gender = body.getChar();
+			String occupation = getString(body);
+			String username = getString(body);
+			String password = getString(body);
+			replayer.addUser(new User(userId, firstName, lastName, age, gender, occupation, username, password));
+			break;
+
+		case ADD_MOVIE:
+			long movieId = body.getLong();
+			String title = getString(body);
+			int year = body.getInt();
+			String url = getString(body);
+			replayer.addMovie(new Movie(movieId, title, year, url));
+			break;
+
+		case ADD_RATING:
+			replayer.addRating(new Rating(body.getLong(), body.getLong(), body.getInt(), body.getLong()));
+			break;
+
+		case REMOVE_USER:
+			replayer.removeUser(body.getLong());
+			break;
+
+		default:
+			throw new IllegalStateException("Unknown mutation type: " + type);
+		}
+	}
+
+	private void begin(byte type)
+	{
+		record.clear();
+		record.put(type);
+		record.putLong(++lsn);
+	}
+
+	private void append()
+	{
+		record.flip();
+		crc.reset();
+		crc.update(record.array(), 0, record.limit());
+		try
+		{
+			if (buffer.remaining() < record.limit() + 8)
+			{
+				flush();
+			}
+			ByteBuffer out = buffer;
+			if (record.limit() + 8 > buffer.capacity()) //Too large to buffer, so written on its own
+			{
+				out = ByteBuffer.allocate(record.limit() + 8);
+			}
+			out.putInt(record.limit());
+			out.put(record);
+			out.putInt((int) crc.getValue());
+			if (out != buffer)
+			{
+				out.flip();
+				while (out.hasRemaining())
+				{
+					channel.write(out);
+				}
+			}
+			pending++;
+			size++;
+			if (pending >= groupSize)
+			{
+				commit();
+			}
+		}
+		catch (IOException e)
+		{
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private void flush() throws IOException
+	{
+		buffer.flip();
+		while (buffer.hasRemaining())
+		{
+			channel.write(buffer);
+		}
+		buffer.clear();
+	}
+
+	private void ensure(int bytes)
+	{
+		if (record.remaining() < bytes)
+		{
+			ByteBuffer larger = ByteBuffer.allocate(Math.max(record.capacity() * 2, record.position() + bytes));
+			record.flip();
+			larger.put(record);
+			record = larger;
+		}
+	}
+
+	private void putInt(int v)
+	{
+		ensure(4);
+		record.putInt(v);
+	}
+
+	private void putLong(long v)
+	{
+		ensure(8);
+		record.putLong(v);
+	}
+
+	private void putChar(char v)
+	{
+		ensure(2);
+		record.putChar(v);
+	}
+
+	private void putString(String s)
+	{
+		if (s == null)
+		{
+			putInt(-1);
+			return;
+		}
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		ensure(4 + bytes.length);
+		record.putInt(bytes.length);
+		record.put(bytes);
+	}
+
+	private static String getString(ByteBuffer body)
+	{
+		int length = body.getInt();
+		if (length < 0)
+		{
+			return null;
+		}
+		byte[] bytes = new byte[length];
+		body.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+}
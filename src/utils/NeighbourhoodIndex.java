@@ -0,0 +1,329 @@
+package utils;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Supplier;
+
+/**
+ * Each user's k most similar users, so a recommendation only has to look up the neighbours and aggregate
+ * their ratings. The index is built for all users in parallel on a fork-join pool. When ratings change, the
+ * users whose similarities changed are marked dirty and recomputed on a background thread from a fresh
+ * snapshot of the ratings. Lookups return the previous neighbours of a dirty user until it is repaired. At most
+ * one repair waits to run at a time, so a burst of changes is repaired together.
+ *
+ * Neighbours are held by user id, so they stay valid when the rating matrix is rebuilt.
+ */
+public class NeighbourhoodIndex
+{
+	/**
+	 * The neighbours of one user, most similar first
+	 */
+	public static class Neighbours
+	{
+		public final long[] userIds;
+		public final double[] weights;
+
+		Neighbours(RatingMatrix matrix, int[] neighbours, double[] weights, int count)
+		{
+			userIds = new long[count];
+			this.weights = new double[count];
+			for (int i = 0; i < count; i++)
+			{
+				userIds[i] = matrix.userIds[neighbours[i]];
+				this.weights[i] = weights[i];
+			}
+		}
+
+		public int size()
+		{
+			return userIds.length;
+		}
+	}
+
+	static final int LEAF_SIZE = 256; //Users per fork-join leaf task
+
+	private final int k;
+	private final SimilarityMeasure measure;
+	private final ForkJoinPool pool;
+	private final Map<Long, Neighbours> table = new ConcurrentHashMap<>();
+	private final Set<Long> dirty = new HashSet<>(); //Also guards writes to the table
+	private final Set<Long> repairing = new HashSet<>(); //Taken from dirty by a repair which has not published yet
+	private int generation = 0; //Incremented by each build, so repairs started before it are discarded
+	private Future<?> pending; //Repair submitted but not yet started, or null
+	private final ExecutorService repairer = Executors.newSingleThreadExecutor(runnable ->
+	{
+		Thread thread = new Thread(runnable, "neighbourhood-repair");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	public NeighbourhoodIndex(int k)
+	{
+		this(k, SimilarityMeasure.DOT, ForkJoinPool.commonPool());
+	}
+
+	public NeighbourhoodIndex(int k, SimilarityMeasure measure)
+	{
+		this(k, measure, ForkJoinPool.commonPool());
+	}
+
+	public NeighbourhoodIndex(int k, SimilarityMeasure measure, ForkJoinPool pool)
+	{
+		if (k <= 0)
+		{
+			throw new IllegalArgumentException("Neighbourhood size must be positive: " + k);
+		}
+		this.k = k;
+		this.measure = measure;
+		this.pool = pool;
+	}
+
+	/**
+	 * Replaces the whole index with the neighbours of every user in the matrix
+	 * @param matrix
+	 */
+	public void build(RatingMatrix matrix)
+	{
+		synchronized (dirty)
+		{
+			dirty.clear();
+			generation++;
+		}
+		Neighbours[] built = new Neighbours[matrix.userCount()];
+		pool.invoke(new BuildTask(matrix, built, 0, built.length));
+		synchronized (dirty)
+		{
+			table.clear();
+			for (int u = 0; u < built.length; u++)
+			{
+				table.put(matrix.userIds[u], built[u]);
+			}
+		}
+	}
+
+	/**
+	 * @param userId
+	 * @return The user's neighbours, or null if the user is not indexed
+	 */
+	public Neighbours get(long userId)
+	{
+		return table.get(userId);
+	}
+
+	public int getNeighbourhoodSize()
+	{
+		return k;
+	}
+
+	public SimilarityMeasure getMeasure()
+	{
+		return measure;
+	}
+
+	/**
+	 * Marks the users whose neighbours need recomputing
+	 * @param userIds
+	 */
+	public void markDirty(Collection<Long> userIds)
+	{
+		synchronized (dirty)
+		{
+			dirty.addAll(userIds);
+		}
+	}
+
+	/**
+	 * Drops a removed user from the index. Users who had them as a neighbour must be marked dirty.
+	 * @param userId
+	 */
+	public void remove(long userId)
+	{
+		synchronized (dirty)
+		{
+			table.remove(userId);
+			dirty.remove(userId);
+		}
+	}
+
+	/**
+	 * Recomputes the dirty users on the background thread, unless a repair is already waiting to run, which will
+	 * include them
+	 * @param snapshot Supplies the current ratings. Called on the background thread after the dirty users are taken.
+	 * @return Completes when the repair is done
+	 */
+	public Future<?> repair(Supplier<RatingMatrix> snapshot)
+	{
+		synchronized (dirty)
+		{
+			if (pending == null)
+			{
+				pending = repairer.submit(() -> repairNow(snapshot));
+			}
+			return pending;
+		}
+	}
+
+	/**
+	 * Recomputes the dirty users against the matrix on the calling thread
+	 * @param matrix Must include every change which marked a user dirty
+	 */
+	public void repairNow(RatingMatrix matrix)
+	{
+		repairNow(() -> matrix);
+	}
+
+	/**
+	 * Recomputes the dirty users on the calling thread. The dirty users are taken before the snapshot, so a
+	 * change made while the snapshot is taken marks its users dirty again for the next repair.
+	 * @param snapshot Supplies the current ratings
+	 */
+	public void repairNow(Supplier<RatingMatrix> snapshot)
+	{
+		List<Long> userIds;
+		int started;
+		synchronized (dirty)
+		{
+			pending = null;
+			if (dirty.isEmpty())
+			{
+				return;
+			}
+			userIds = new ArrayList<>(dirty);
+			dirty.clear();
+			repairing.addAll(userIds);
+			started = generation;
+		}
+		try
+		{
+			recompute(snapshot.get(), userIds, started);
+		}
+		finally
+		{
+			synchronized (dirty)
+			{
+				repairing.removeAll(userIds);
+			}
+		}
+	}
+
+	/**
+	 * Computes the neighbours of the users against the matrix and publishes them, unless the index was built again
+	 * since the repair started
+	 */
+	private void recompute(RatingMatrix matrix, List<Long> userIds, int started)
+	{
+		UserSimilarityScorer scorer = new UserSimilarityScorer(matrix, measure);
+		int[] neighbours = new int[k];
+		double[] weights = new double[k];
+		Neighbours[] repaired = new Neighbours[userIds.size()];
+		for (int i = 0; i < repaired.length; i++)
+		{
+			int u = matrix.userIndex(userIds.get(i));
+			if (u >= 0) //Otherwise removed since it was marked
+			{
+				int count = scorer.neighbours(u, k, neighbours, weights);
+				repaired[i] = new Neighbours(matrix, neighbours, weights, count);
+			}
+		}
+
+		synchronized (dirty)
+		{
+			if (started != generation)
+			{
+				return;
+			}
+			for (int i = 0; i < repaired.length; i++)
+			{
+				if (repaired[i] == null)
+				{
+					table.remove(userIds.get(i));
+				}
+				else
+				{
+					table.put(userIds.get(i), repaired[i]);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param userId
+	 * @return Whether the user's published neighbours may be out of date, because the user is waiting to be repaired
+	 * or being repaired
+	 */
+	public boolean isStale(long userId)
+	{
+		synchronized (dirty)
+		{
+			return dirty.contains(userId) || repairing.contains(userId);
+		}
+	}
+
+	/**
+	 * @return The number of users waiting to be repaired
+	 */
+	public int dirtyCount()
+	{
+		synchronized (dirty)
+		{
+			return dirty.size();
+		}
+	}
+
+	/**
+	 * Stops the background thread
+	 */
+	public void close()
+	{
+		repairer.shutdown();
+	}
+
+	/**
+	 * Computes the neighbours of users [from, to), splitting the range until it is at most LEAF_SIZE
+	 */
+	private class BuildTask extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+
+		private final RatingMatrix matrix;
+		private final Neighbours[] built;
+		private final int from, to;
+
+		BuildTask(RatingMatrix matrix, Neighbours[] built, int from, int to)
+		{
+			this.matrix = matrix;
+			this.built = built;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute()
+		{
+			if (to - from > LEAF_SIZE)
+			{
+				int middle = (from + to) >>> 1;
+				invokeAll(new BuildTask(matrix, built, from, middle), new BuildTask(matrix, built, middle, to));
+				return;
+			}
+			UserSimilarityScorer scorer = new UserSimilarityScorer(matrix, measure); //Scratch space for this leaf
+			int[] neighbours = new int[k];
+			double[] weights = new double[k];
+			for (int u = from; u < to; u++)
+			{
+				int count = scorer.neighbours(u, k, neighbours, weights);
+				built[u] = new Neighbours(matrix, neighbours, weights, count);
+			}
+		}
+	}
+}
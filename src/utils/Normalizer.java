@@ -0,0 +1,80 @@
+package utils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import models.Movie;
+import models.Rating;
+import models.User;
+
+/**
+ * Helpers for persisting the datastore in normalized form, where each rating is stored once
+ * and the derived indexes (User.ratedMovies, Movie.userRatings and the login map) are rebuilt on load.
+ */
+public class Normalizer
+{
+	private Normalizer()
+	{}
+
+	/**
+	 * The canonical rating table, which is the current rating of every user for every movie they rated.
+	 * Superseded ratings and ratings of removed users kept in the ratings history are not part of it.
+	 * @param users
+	 * @return
+	 */
+	public static List<Rating> canonicalRatings(Map<Long, User> users)
+	{
+		int size = 0;
+		for (User user: users.values())
+		{
+			size += user.ratedMovies.size();
+		}
+		List<Rating> ratings = new ArrayList<>(size);
+		for (User user: users.values())
+		{
+			ratings.addAll(user.ratedMovies.values());
+		}
+		return ratings;
+	}
+
+	/**
+	 * Links every rating into the rated movies of its user and the user ratings of its movie.
+	 * Ratings of unknown users or movies are ignored.
+	 * @param users
+	 * @param movies
+	 * @param ratings
+	 */
+	public static void linkRatings(Map<Long, User> users, Map<Long, Movie> movies, List<Rating> ratings)
+	{
+		for (Rating rating: ratings)
+		{
+			User user = users.get(rating.userId);
+			Movie movie = movies.get(rating.movieId);
+			if (user != null && movie != null)
+			{
+				user.addRatedMovies(movie.movieId, rating);
+				movie.addUserRatings(user.userId, rating);
+			}
+		}
+	}
+
+	/**
+	 * Rebuilds the login map from the users which have signed up with a username
+	 * @param users
+	 * @return
+	 */
+	public static Map<String, User> loginIndex(Map<Long, User> users)
+	{
+		Map<String, User> usersLogin = new HashMap<>();
+		for (User user: users.values())
+		{
+			if (user.username != null && !user.username.isEmpty())
+			{
+				usersLogin.put(user.username, user);
+			}
+		}
+		return usersLogin;
+	}
+}
@@ -0,0 +1,190 @@
+package utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Parses a pipe delimited ratings file (userId|movieId|rating|timestamp) in parallel. The file is split
+ * into byte ranges aligned to line boundaries, each range is memory-mapped and parsed on a fork-join pool
+ * into its own primitive columns and the columns are merged back in file order.
+ */
+public class ParallelRatingParser
+{
+	static final int FIELDS = 4;
+
+	private ForkJoinPool pool;
+	private int chunkSize; //Target size of a chunk in bytes
+
+	private long lines = 0; //Lines parsed by the last call to parse
+	private long elapsedNanos = 0; //Time taken by the last call to parse
+
+	public ParallelRatingParser()
+	{
+		this(ForkJoinPool.commonPool(), 1 << 22);
+	}
+
+	public ParallelRatingParser(ForkJoinPool pool, int chunkSize)
+	{
+		this.pool = pool;
+		this.chunkSize = chunkSize;
+	}
+
+	/**
+	 * Parses every line of the ratings file
+	 * @param path
+	 * @return The ratings in the order they appear in the file
+	 * @throws Exception
+	 */
+	public RatingColumns parse(String path) throws Exception
+	{
+		long start = System.nanoTime();
+		RatingColumns columns;
+
+		try (FileChannel channel = new RandomAccessFile(new File(path), "r").getChannel())
+		{
+			long[] boundaries = chunkBoundaries(channel);
+			columns = pool.invoke(new ChunkTask(channel, boundaries, 0, boundaries.length - 1));
+		}
+		catch (IllegalArgumentException | UncheckedIOException e) //Includes NumberFormatException
+		{
+			throw new Exception(e.getMessage(), e);
+		}
+
+		elapsedNanos = System.nanoTime() - start;
+		lines = columns.size;
+		return columns;
+	}
+
+	/**
+	 * @return Lines parsed per second by the last call to parse
+	 */
+	public double getLinesPerSecond()
+	{
+		return elapsedNanos == 0 ? 0 : lines * 1e9 / elapsedNanos;
+	}
+
+	/**
+	 * @return Throughput report of the last call to parse
+	 */
+	public String report()
+	{
+		return String.format("Parsed %d ratings in %.1f ms (%.0f lines/sec) on %d threads",
+				lines, elapsedNanos / 1e6, getLinesPerSecond(), pool.getParallelism());
+	}
+
+	/**
+	 * Splits the file into ranges of roughly chunkSize bytes, each starting at the beginning of a line
+	 */
+	private long[] chunkBoundaries(FileChannel channel) throws IOException
+	{
+		long size = channel.size();
+		List<Long> boundaries = new ArrayList<>();
+		boundaries.add(0L);
+
+		ByteBuffer window = ByteBuffer.allocate(4096);
+		long position = chunkSize;
+		while (position < size)
+		{
+			//Move the boundary forward to just after the next line break
+			long lineStart = -1;
+			long scan = position - 1;
+			while (lineStart < 0 && scan < size)
+			{
+				window.clear();
+				int read = channel.read(window, scan);
+				for (int i = 0; i < read; i++)
+				{
+					if (window.get(i) == '\n')
+					{
+						lineStart = scan + i + 1;
+						break;
+					}
+				}
+				scan += Math.max(read, 1);
+			}
+			if (lineStart < 0 || lineStart >= size)
+			{
+				break;
+			}
+			boundaries.add(lineStart);
+			position = lineStart + chunkSize;
+		}
+		boundaries.add(size);
+
+		long[] result = new long[boundaries.size()];
+		for (int i = 0; i < result.length; i++)
+		{
+			result[i] = boundaries.get(i);
+		}
+		return result;
+	}
+
+	/**
+	 * Parses the chunks [from, to) and returns their ratings in file order
+	 */
+	private static class ChunkTask extends RecursiveTask<RatingColumns>
+	{
+		private static final long serialVersionUID = 1L;
+
+		private final FileChannel channel;
+		private final long[] boundaries;
+		private final int from, to;
+
+		ChunkTask(FileChannel channel, long[] boundaries, int from, int to)
+		{
+			this.channel = channel;
+			this.boundaries = boundaries;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected RatingColumns compute()
+		{
+			if (to - from == 1)
+			{
+				return parseChunk(boundaries[from], boundaries[to]);
+			}
+			int middle = (from + to) >>> 1;
+			ChunkTask left = new ChunkTask(channel, boundaries, from, middle);
+			ChunkTask right = new ChunkTask(channel, boundaries, middle, to);
+			right.fork();
+			RatingColumns columns = left.compute();
+			columns.addAll(right.join());
+			return columns;
+		}
+
+		private RatingColumns parseChunk(long start, long end)
+		{
+			//Roughly 20 bytes per line in MovieLens rating files
+			RatingColumns columns = new RatingColumns((int) ((end - start) / 20));
+			try (FieldScanner scanner = new FieldScanner(channel.map(MapMode.READ_ONLY, start, end - start), Parser.DELIMITER))
+			{
+				while (scanner.hasNextLine())
+				{
+					int fields = scanner.countFields();
+					if (fields != FIELDS)
+					{
+						throw new IllegalArgumentException("Invalid member length: " + fields);
+					}
+					columns.add(scanner.nextLong(), scanner.nextLong(), scanner.nextInt(), scanner.nextLong());
+					scanner.nextLine();
+				}
+			}
+			catch (IOException e)
+			{
+				throw new UncheckedIOException(e);
+			}
+			return columns;
+		}
+	}
+}
@@ -3,14 +3,13 @@
  */
 package utils;
 
-import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
-import edu.princeton.cs.introcs.In;
 import models.Movie;
 import models.Rating;
 import models.User;
@@ -23,13 +22,16 @@ import models.User;
  */
 public class Parser
 {
+	static final char DELIMITER = '|';
+
 	Map<Long, User> users = new HashMap<>(); //Stores all the User objects
 	Map<Long, Movie> movies = new HashMap<>(); //Stores all the Movie objects 
-	List<Rating> ratings = new ArrayList<>(); //Stores all the Rating objects 
-	Map<String, Rating> ratingsMap = new HashMap<>(); //Map to ensure unique ratings
+	List<Rating> ratings = new ArrayList<>(); //Stores all the filtered Rating objects 
 
 
 	RatingByTimeComparator comparator = new RatingByTimeComparator(); //Initialising the comparator
+	String ingestReport = ""; //Throughput of the last parallel rating parse
+	boolean memoryMapped = false; //Parse straight from memory-mapped files
 
 
 	public Parser()
@@ -45,35 +47,32 @@ public class Parser
 	 */
 	public Map<Long, User> parseUserData(String path) throws Exception
 	{
-		File usersFile = new File(path);
-		In inUsers = new In(usersFile);
-		String delims = "[|]";
-
-		while (!inUsers.isEmpty())
+		try (FieldScanner inUsers = open(path))
 		{
-			String userDetails = inUsers.readLine();
-			String[] userTokens = userDetails.split(delims);
-
-			if (userTokens.length == 7) 
+			while (inUsers.hasNextLine())
 			{
-				long userId = Long.parseLong(userTokens[0]);
-				String firstName = userTokens[1];
-				String lastName = userTokens[2];
-				int age = Integer.parseInt(userTokens[3]);
-				char gender = userTokens[4].charAt(0);
-				String occupation = userTokens[5];
-				String username = "";
-				String password = "";
-				User user = new User(userId, firstName, lastName, age, gender, occupation, username, password);
-				users.put(userId, user);
+				int fields = inUsers.countFields();
 
-			}
-			else
-			{
-				throw new Exception("Invalid member length: "+ userTokens.length);
+				if (fields == 7) 
+				{
+					long userId = inUsers.nextLong();
+					String firstName = inUsers.nextString();
+					String lastName = inUsers.nextString();
+					int age = inUsers.nextInt();
+					char gender = inUsers.nextChar();
+					String occupation = inUsers.nextString();
+					String username = "";
+					String password = "";
+					User user = new User(userId, firstName, lastName, age, gender, occupation, username, password);
+					users.put(userId, user);
+					inUsers.nextLine(); //Zip code is not used
+				}
+				else
+				{
+					throw new Exception("Invalid member length: "+ fields);
+				}
 			}
 		}
-		inUsers.close();
 		return users;
 	}
 
@@ -85,40 +84,38 @@ public class Parser
 	 */
 	public Map<Long, Movie> parseMovieData(String path) throws Exception 
 	{
-		File moviesFile = new File(path);
-		In inMovies = new In(moviesFile);
-		String delims = "[|]";
-
-		while (!inMovies.isEmpty())
+		try (FieldScanner inMovies = open(path))
 		{
-			String movieDetails = inMovies.readLine();
-			String[] movieTokens = movieDetails.split(delims);
-
-			if (movieTokens.length == 23) 
+			while (inMovies.hasNextLine())
 			{
-				long movieId = Long.parseLong(movieTokens[0]);
-				String title = movieTokens[1];
-				String theYear = movieTokens[2];
-				int year = 0;
-				if (theYear != null && theYear.length() > 0)
+				int fields = inMovies.countFields();
+
+				if (fields == 23) 
 				{
-					year = Integer.parseInt(theYear.substring(7));
+					long movieId = inMovies.nextLong();
+					String title = inMovies.nextString();
+					int year = 0;
+					if (inMovies.fieldLength() > 0)
+					{
+						year = inMovies.nextInt(7); //Release date as 01-Jan-1995
+					}
+					else
+					{
+						inMovies.skipField();
+						year = 1996;
+					}
+					String url = inMovies.nextString();
+
+					Movie movie = new Movie(movieId, title, year, url);
+					movies.put(movieId, movie);
+					inMovies.nextLine(); //Genre flags are not used
 				}
 				else
 				{
-					year = 1996;
+					throw new Exception("Invalid member length: "+ fields);
 				}
-				String url = movieTokens[3];
-
-				Movie movie = new Movie(movieId, title, year, url);
-				movies.put(movieId, movie);
-			}
-			else
-			{
-				throw new Exception("Invalid member length: "+ movieTokens.length);
 			}
 		}
-		inMovies.close();
 		return movies;
 	}
 
@@ -130,61 +127,166 @@ public class Parser
 	 */
 	public List<Rating> parseRatingData(String path) throws Exception
 	{
-		File ratingsFile = new File(path);
-		In inRatings = new In(ratingsFile);
-		String delims = "[|]";
-
-		while (!inRatings.isEmpty())
+		RatingColumns columns = new RatingColumns();
+		try (FieldScanner inRatings = open(path))
 		{
-			String ratingDetails = inRatings.readLine();
-			String[] ratingTokens = ratingDetails.split(delims);
-
-			if (ratingTokens.length == 4) 
+			while (inRatings.hasNextLine())
 			{
-				long userId = Long.parseLong(ratingTokens[0]);
-				long movieId = Long.parseLong(ratingTokens[1]);
-				Integer rating = Integer.parseInt(ratingTokens[2]);
-				long timestamp = Long.parseLong(ratingTokens[3]);
-				Rating r = new Rating(userId, movieId, rating, timestamp);
+				int fields = inRatings.countFields();
 
-				ratings.add(r);
+				if (fields == 4) 
+				{
+					long userId = inRatings.nextLong();
+					long movieId = inRatings.nextLong();
+					int rating = inRatings.nextInt();
+					long timestamp = inRatings.nextLong();
 
-			}
-			else
-			{
-				throw new Exception("Invalid member length: "+ ratingTokens.length);
+					columns.add(userId, movieId, rating, timestamp);
+					inRatings.nextLine();
+				}
+				else
+				{
+					throw new Exception("Invalid member length: "+ fields);
+				}
 			}
 		}
-		inRatings.close();
-		
-		//Sort Rating objects based on the timestamp to get most recent rating on duplicates	
-		Collections.sort(ratings, comparator);
+		return filterRatings(columns);
+	}
 
-		//Using a Map to filter out duplicates
-		for (Rating r: ratings)
+	/**
+	 * Parsing of raw rating data on a fork-join pool. The file is split into line aligned chunks
+	 * which are parsed in parallel. Duplicates are filtered in the same way as parseRatingData.
+	 * @param path
+	 * @return
+	 * @throws Exception
+	 */
+	public List<Rating> parseRatingDataParallel(String path) throws Exception
+	{
+		ParallelRatingParser parallelParser = new ParallelRatingParser();
+		RatingColumns columns = parallelParser.parse(path);
+		ingestReport = parallelParser.report();
+		return filterRatings(columns);
+	}
+
+	/**
+	 * Keeps the most recent rating of each user for each movie and adds them to their users and movies.
+	 * Duplicates are found in a single pass over the rows using the user and movie id packed into one long
+	 * as the key, or, if an id does not fit in 32 bits, a map of movie ids per user. Of two ratings with the
+	 * same timestamp the one later in the file is kept.
+	 * @param columns Parsed rows in file order
+	 * @return The filtered ratings sorted by time
+	 * @throws Exception 
+	 */
+	private List<Rating> filterRatings(RatingColumns columns) throws Exception
+	{
+		boolean packableIds = true, packableTimes = true;
+		for (int i = 0; i < columns.size; i++)
 		{
-			ratingsMap.put(r.userId + "u" + r.movieId + "m", r);
+			packableIds &= fitsPairKey(columns.userIds[i]) && fitsPairKey(columns.movieIds[i]);
+			packableTimes &= columns.timestamps[i] >= 0 && columns.timestamps[i] <= Integer.MAX_VALUE;
 		}
 
-		//Placing duplicates into an ArrayList to sort as Map does not guarantee order
-		List<Rating> ratingsFiltered = new ArrayList<>(ratingsMap.values());
-		Collections.sort(ratingsFiltered, comparator);
-
-//		System.out.println(users.size());
+		//Row of the most recent rating for each user and movie pair
+		int[] rows;
+		if (packableIds)
+		{
+			LongIntHashMap latest = new LongIntHashMap(columns.size);
+			for (int i = 0; i < columns.size; i++)
+			{
+				keepLatest(latest, pairKey(columns.userIds[i], columns.movieIds[i]), i, columns.timestamps);
+			}
+			rows = latest.values();
+		}
+		else
+		{
+			Map<Long, LongIntHashMap> latest = new HashMap<>(); //Movie ids of each user id
+			for (int i = 0; i < columns.size; i++)
+			{
+				keepLatest(latest.computeIfAbsent(columns.userIds[i], userId -> new LongIntHashMap()), columns.movieIds[i],
+						i, columns.timestamps);
+			}
+			rows = latest.values().stream().flatMapToInt(movieRows -> Arrays.stream(movieRows.values())).toArray();
+		}
+		List<Rating> ratingsFiltered = new ArrayList<>(rows.length);
+		if (packableTimes)
+		{
+			//Sort on timestamp then row, packed together so a primitive sort is enough
+			long[] order = new long[rows.length];
+			for (int i = 0; i < rows.length; i++)
+			{
+				order[i] = (columns.timestamps[rows[i]] << 32) | rows[i];
+			}
+			Arrays.sort(order);
+			for (long packed: order)
+			{
+				int row = (int) packed;
+				ratingsFiltered.add(new Rating(columns.userIds[row], columns.movieIds[row], columns.ratings[row], columns.timestamps[row]));
+			}
+		}
+		else
+		{
+			Arrays.sort(rows);
+			for (int row: rows)
+			{
+				ratingsFiltered.add(new Rating(columns.userIds[row], columns.movieIds[row], columns.ratings[row], columns.timestamps[row]));
+			}
+			Collections.sort(ratingsFiltered, comparator);
+		}
 
 		//Adds respective ratings to users and movies
 		for (Rating rating: ratingsFiltered)
 		{
 			User user = getUser(rating.userId);
 			Movie movie = getMovie(rating.movieId);
-			Rating r = new Rating(user.userId, movie.movieId, rating.rating);
 
-			user.addRatedMovies(movie.movieId, r);
-			movie.addUserRatings(user.userId, r);
+			user.addRatedMovies(movie.movieId, rating);
+			movie.addUserRatings(user.userId, rating);
 		}
+		ratings = ratingsFiltered;
 		return ratingsFiltered;
 	}
 
+	/**
+	 * Packs a user id and movie id into a single key. Both must fit in 32 bits, see fitsPairKey.
+	 */
+	static long pairKey(long userId, long movieId)
+	{
+		return (userId << 32) | movieId;
+	}
+
+	/**
+	 * @return Whether the id is within 0 .. 2^32 - 1, so it can be packed by pairKey
+	 */
+	static boolean fitsPairKey(long id)
+	{
+		return id >= 0 && id <= 0xFFFFFFFFL;
+	}
+
+	/**
+	 * Records the row under the key unless the row already recorded is more recent
+	 */
+	private static void keepLatest(LongIntHashMap latest, long key, int row, long[] timestamps)
+	{
+		int previous = latest.get(key);
+		if (previous < 0 || timestamps[row] >= timestamps[previous])
+		{
+			latest.put(key, row);
+		}
+	}
+
+	/**
+	 * Opens a scanner over a data file, memory-mapping it if enabled
+	 */
+	private FieldScanner open(String path) throws Exception
+	{
+		return memoryMapped ? FieldScanner.map(path, DELIMITER) : FieldScanner.open(path, DELIMITER);
+	}
+
+	public void setMemoryMapped(boolean memoryMapped)
+	{
+		this.memoryMapped = memoryMapped;
+	}
+
 	public User getUser(long l)
 	{
 		return users.get(l);
@@ -200,4 +302,9 @@ public class Parser
 		return movies.size();
 	}
 
+	public String getIngestReport()
+	{
+		return ingestReport;
+	}
+
 }
@@ -0,0 +1,69 @@
+package utils;
+
+import java.util.Arrays;
+
+/**
+ * Growable primitive columns of raw rating data (user id, movie id, rating, timestamp),
+ * used while ingesting rating files without allocating a Rating object per line
+ */
+public class RatingColumns
+{
+	public long[] userIds;
+	public long[] movieIds;
+	public int[] ratings;
+	public long[] timestamps;
+	public int size = 0;
+
+	public RatingColumns()
+	{
+		this(1024);
+	}
+
+	public RatingColumns(int capacity)
+	{
+		capacity = Math.max(capacity, 16);
+		userIds = new long[capacity];
+		movieIds = new long[capacity];
+		ratings = new int[capacity];
+		timestamps = new long[capacity];
+	}
+
+	public void add(long userId, long movieId, int rating, long timestamp)
+	{
+		if (size == userIds.length)
+		{
+			grow(size + 1);
+		}
+		userIds[size] = userId;
+		movieIds[size] = movieId;
+		ratings[size] = rating;
+		timestamps[size] = timestamp;
+		size++;
+	}
+
+	/**
+	 * Appends all rows of another set of columns after the rows of this one
+	 * @param other
+	 */
+	public void addAll(RatingColumns other)
+	{
+		if (size + other.size > userIds.length)
+		{
+			grow(size + other.size);
+		}
+		System.arraycopy(other.userIds, 0, userIds, size, other.size);
+		System.arraycopy(other.movieIds, 0, movieIds, size, other.size);
+		System.arraycopy(other.ratings, 0, ratings, size, other.size);
+		System.arraycopy(other.timestamps, 0, timestamps, size, other.size);
+		size += other.size;
+	}
+
+	private void grow(int minCapacity)
+	{
+		int capacity = Math.max(minCapacity, userIds.length + (userIds.length >> 1));
+		userIds = Arrays.copyOf(userIds, capacity);
+		movieIds = Arrays.copyOf(movieIds, capacity);
+		ratings = Arrays.copyOf(ratings, capacity);
+		timestamps = Arrays.copyOf(timestamps, capacity);
+	}
+}
@@ -0,0 +1,525 @@
+package utils;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.Map;
+
+import models.Movie;
+import models.Rating;
+import models.User;
+
+/**
+ * Compact read-only snapshot of all ratings as a sparse matrix. Users and movies are mapped to dense
+ * indexes in ascending id order. Each user's ratings are stored as a row (CSR) and each movie's ratings
+ * as a column (CSC), both as sorted primitive arrays, so ratings can be iterated without a Rating object
+ * or a hash lookup per entry.
+ *
+ * The ratings of user u are rowMovies[rowStart[u] .. rowStart[u + 1]) with values in rowRatings, sorted
+ * by movie index. The ratings of movie m are colUsers[colStart[m] .. colStart[m + 1]) with values in
+ * colRatings, sorted by user index.
+ *
+ * When only some users' ratings change, a matrix can be patched from the previous one: the changed rows are
+ * replaced and the rest are copied as arrays, without reading every user's ratings again. Each patch has a
+ * higher version and records the version in which each row last changed, so structures derived from an
+ * earlier matrix of the same users and movies can update just the rows which changed since.
+ */
+public class RatingMatrix
+{
+	public final long[] userIds; //User id of each user index
+	public final long[] movieIds; //Movie id of each movie index
+
+	public final int[] rowStart;
+	public final int[] rowMovies;
+	public final byte[] rowRatings;
+
+	public final int[] colStart;
+	public final int[] colUsers;
+	public final byte[] colRatings;
+
+	//Taken from the aggregates cached by each user and movie
+	public final double[] userMeans;
+	public final double[] userSumsOfSquares;
+	public final double[] movieMeans;
+
+	public final int version; //0 when built, one more than the base when patched
+	private final int[] rowVersions; //Version in which each user's row last changed
+
+	private final LongIntHashMap userIndexes;
+	private final LongIntHashMap movieIndexes;
+	private final Map<SimilarityMeasure, SimilarityMeasure.Vectors> vectors = new EnumMap<>(SimilarityMeasure.class);
+
+	/**
+	 * Builds the matrix from the ratings held by the users
+	 * @param users
+	 * @param movies
+	 */
+	public RatingMatrix(Collection<User> users, Collection<Movie> movies)
+	{
+		userIds = sortedIds(users.stream().mapToLong(user -> user.userId).toArray());
+		movieIds = sortedIds(movies.stream().mapToLong(movie -> movie.movieId).toArray());
+		userIndexes = index(userIds);
+		movieIndexes = index(movieIds);
+
+		User[] byIndex = new User[userIds.length];
+		userMeans = new double[userIds.length];
+		userSumsOfSquares = new double[userIds.length];
+		int nonZeros = 0;
+		for (User user: users)
+		{
+			int u = userIndexes.get(user.userId);
+			byIndex[u] = user;
+			userMeans[u] = user.getRatingMean();
+			userSumsOfSquares[u] = user.getRatingSumOfSquares();
+			nonZeros += user.ratedMovies.size();
+		}
+		movieMeans = new double[movieIds.length];
+		for (Movie movie: movies)
+		{
+			movieMeans[movieIndexes.get(movie.movieId)] = movie.getAverageRating();
+		}
+
+		//Rows: each user's ratings sorted by movie index, packed as index << 8 | rating
+		rowStart = new int[userIds.length + 1];
+		rowMovies = new int[nonZeros];
+		rowRatings = new byte[nonZeros];
+		long[] packed = new long[16];
+		int n = 0;
+		for (int u = 0; u < byIndex.length; u++)
+		{
+			rowStart[u] = n;
+			int size = 0;
+			if (packed.length < byIndex[u].ratedMovies.size())
+			{
+				packed = new long[byIndex[u].ratedMovies.size()];
+			}
+			for (Rating rating: byIndex[u].ratedMovies.values())
+			{
+				int m = movieIndexes.get(rating.movieId);
+				if (m < 0)
+				{
+					throw new IllegalArgumentException("Rating of unknown movie: " + rating.movieId);
+				}
+				packed[size++] = (long) m << 8 | (rating.rating & 0xFF);
+			}
+			Arrays.sort(packed, 0, size);
+			for (int i = 0; i < size; i++)
+			{
+				int m = (int) (packed[i] >>> 8);
+				rowMovies[n] = m;
+				rowRatings[n] = (byte) packed[i];
+				n++;
+			}
+		}
+		rowStart[userIds.length] = n;
+		nonZeros = n;
+
+		colStart = new int[movieIds.length + 1];
+		colUsers = new int[nonZeros];
+		colRatings = new byte[nonZeros];
+		fillColumns();
+		version = 0;
+		rowVersions = new int[userIds.length];
+	}
+
+	/**
+	 * Copies the base matrix with the rows of the changed users replaced by the ratings they now hold. The users
+	 * and movies must be those of the base.
+	 * @param base
+	 * @param changed Users of the base whose ratings changed
+	 * @param movies Movies of the base by id, for their current average ratings
+	 */
+	public RatingMatrix(RatingMatrix base, Collection<User> changed, Map<Long, Movie> movies)
+	{
+		userIds = base.userIds;
+		movieIds = base.movieIds;
+		userIndexes = base.userIndexes;
+		movieIndexes = base.movieIndexes;
+		version = base.version + 1;
+		rowVersions = base.rowVersions.clone();
+		userMeans = base.userMeans.clone();
+		userSumsOfSquares = base.userSumsOfSquares.clone();
+		movieMeans = base.movieMeans.clone();
+
+		//The new rows of the changed users, in user index order, packed as for a build
+		User[] byIndex = new User[userIds.length];
+		for (User user: changed)
+		{
+			int u = userIndexes.get(user.userId);
+			if (u < 0)
+			{
+				throw new IllegalArgumentException("User not in the base matrix: " + user.userId);
+			}
+			byIndex[u] = user;
+		}
+		int nonZeros = base.size();
+		long[][] rows = new long[userIds.length][];
+		for (int u = 0; u < userIds.length; u++)
+		{
+			if (byIndex[u] == null)
+			{
+				continue;
+			}
+			long[] packed = new long[byIndex[u].ratedMovies.size()];
+			int size = 0;
+			for (Rating rating: byIndex[u].ratedMovies.values())
+			{
+				int m = movieIndexes.get(rating.movieId);
+				if (m < 0)
+				{
+					throw new IllegalArgumentException("Rating of unknown movie: " + rating.movieId);
+				}
+				packed[size++] = (long) m << 8 | (rating.rating & 0xFF);
+				movieMeans[m] = movies.get(rating.movieId).getAverageRating();
+			}
+			Arrays.sort(packed);
+			rows[u] = packed;
+			nonZeros += packed.length - base.rowSize(u);
+			rowVersions[u] = version;
+			userMeans[u] = byIndex[u].getRatingMean();
+			userSumsOfSquares[u] = byIndex[u].getRatingSumOfSquares();
+		}
+
+		//Unchanged runs of rows are copied whole, shifted by the change in length of the rows before them
+		rowStart = new int[userIds.length + 1];
+		rowMovies = new int[nonZeros];
+		rowRatings = new byte[nonZeros];
+		int n = 0;
+		int u = 0;
+		while (u < userIds.length)
+		{
+			if (rows[u] != null)
+			{
+				rowStart[u] = n;
+				for (long packed: rows[u])
+				{
+					rowMovies[n] = (int) (packed >>> 8);
+					rowRatings[n] = (byte) packed;
+					n++;
+				}
+				u++;
+				continue;
+			}
+			int from = u;
+			while (u < userIds.length && rows[u] == null)
+			{
+				rowStart[u] = n + base.rowStart[u] - base.rowStart[from];
+				u++;
+			}
+			int length = base.rowStart[u] - base.rowStart[from];
+			System.arraycopy(base.rowMovies, base.rowStart[from], rowMovies, n, length);
+			System.arraycopy(base.rowRatings, base.rowStart[from], rowRatings, n, length);
+			n += length;
+		}
+		rowStart[userIds.length] = n;
+
+		//Columns: the changed users' old entries are dropped and their new ones merged in by user index, and the
+		//columns no changed user rated before or now are copied whole
+		int[] delta = new int[movieIds.length]; //Change in length of each column
+		boolean[] touched = new boolean[movieIds.length];
+		for (u = 0; u < userIds.length; u++)
+		{
+			if (rows[u] == null)
+			{
+				continue;
+			}
+			for (int i = base.rowStart[u]; i < base.rowStart[u + 1]; i++)
+			{
+				delta[base.rowMovies[i]]--;
+				touched[base.rowMovies[i]] = true;
+			}
+			for (int i = rowStart[u]; i < rowStart[u + 1]; i++)
+			{
+				delta[rowMovies[i]]++;
+				touched[rowMovies[i]] = true;
+			}
+		}
+		colStart = new int[movieIds.length + 1];
+		for (int m = 0; m < movieIds.length; m++)
+		{
+			colStart[m + 1] = colStart[m] + base.columnSize(m) + delta[m];
+		}
+		colUsers = new int[nonZeros];
+		colRatings = new byte[nonZeros];
+
+		//The new entries of the touched columns, by column and then user index
+		int[] addedStart = new int[movieIds.length + 1];
+		for (u = 0; u < userIds.length; u++)
+		{
+			for (int i = rows[u] != null ? rowStart[u] : 0; rows[u] != null && i < rowStart[u + 1]; i++)
+			{
+				addedStart[rowMovies[i] + 1]++;
+			}
+		}
+		for (int m = 0; m < movieIds.length; m++)
+		{
+			addedStart[m + 1] += addedStart[m];
+		}
+		int[] addedUsers = new int[addedStart[movieIds.length]];
+		byte[] addedRatings = new byte[addedUsers.length];
+		int[] next = Arrays.copyOf(addedStart, movieIds.length);
+		for (u = 0; u < userIds.length; u++)
+		{
+			for (int i = rows[u] != null ? rowStart[u] : 0; rows[u] != null && i < rowStart[u + 1]; i++)
+			{
+				int slot = next[rowMovies[i]]++;
+				addedUsers[slot] = u;
+				addedRatings[slot] = rowRatings[i];
+			}
+		}
+
+		int m = 0;
+		while (m < movieIds.length)
+		{
+			if (!touched[m])
+			{
+				int from = m;
+				while (m < movieIds.length && !touched[m])
+				{
+					m++;
+				}
+				int length = base.colStart[m] - base.colStart[from];
+				System.arraycopy(base.colUsers, base.colStart[from], colUsers, colStart[from], length);
+				System.arraycopy(base.colRatings, base.colStart[from], colRatings, colStart[from], length);
+				continue;
+			}
+			int slot = colStart[m];
+			int added = addedStart[m];
+			for (int i = base.colStart[m]; i < base.colStart[m + 1]; i++)
+			{
+				int v = base.colUsers[i];
+				if (rows[v] != null) //Replaced by the user's new entry, if any
+				{
+					continue;
+				}
+				while (added < addedStart[m + 1] && addedUsers[added] < v)
+				{
+					colUsers[slot] = addedUsers[added];
+					colRatings[slot++] = addedRatings[added++];
+				}
+				colUsers[slot] = v;
+				colRatings[slot++] = base.colRatings[i];
+			}
+			while (added < addedStart[m + 1])
+			{
+				colUsers[slot] = addedUsers[added];
+				colRatings[slot++] = addedRatings[added++];
+			}
+			m++;
+		}
+	}
+
+	/**
+	 * Fills in the columns from the rows. Filling in row order keeps each column sorted by user index.
+	 */
+	private void fillColumns()
+	{
+		for (int i = 0; i < rowMovies.length; i++)
+		{
+			colStart[rowMovies[i] + 1]++;
+		}
+		for (int m = 0; m < movieIds.length; m++)
+		{
+			colStart[m + 1] += colStart[m];
+		}
+		int[] next = Arrays.copyOf(colStart, movieIds.length);
+		for (int u = 0; u < userIds.length; u++)
+		{
+			for (int i = rowStart[u]; i < rowStart[u + 1]; i++)
+			{
+				int slot = next[rowMovies[i]]++;
+				colUsers[slot] = u;
+				colRatings[slot] = rowRatings[i];
+			}
+		}
+	}
+
+	/**
+	 * @param older A matrix this one was patched from, directly or through other patches
+	 * @return The indexes of the users whose rows changed since the older matrix, ascending, or null if this
+	 * matrix is not a patch of it
+	 */
+	public int[] changedSince(RatingMatrix older)
+	{
+		if (older.userIds != userIds || older.movieIds != movieIds || older.version > version)
+		{
+			return null;
+		}
+		int count = 0;
+		for (int u = 0; u < userIds.length; u++)
+		{
+			count += rowVersions[u] > older.version ? 1 : 0;
+		}
+		int[] changed = new int[count];
+		count = 0;
+		for (int u = 0; u < userIds.length; u++)
+		{
+			if (rowVersions[u] > older.version)
+			{
+				changed[count++] = u;
+			}
+		}
+		return changed;
+	}
+
+	/**
+	 * @param userId
+	 * @return The dense index of the user, or -1 if they are not in the matrix
+	 */
+	public int userIndex(long userId)
+	{
+		return userIndexes.get(userId);
+	}
+
+	/**
+	 * @param movieId
+	 * @return The dense index of the movie, or -1 if it is not in the matrix
+	 */
+	public int movieIndex(long movieId)
+	{
+		return movieIndexes.get(movieId);
+	}
+
+	public int userCount()
+	{
+		return userIds.length;
+	}
+
+	public int movieCount()
+	{
+		return movieIds.length;
+	}
+
+	/**
+	 * @return The number of ratings
+	 */
+	public int size()
+	{
+		return rowMovies.length;
+	}
+
+	/**
+	 * @return A hash of the users, movies and ratings, the same for every matrix of the same ratings
+	 */
+	public long fingerprint()
+	{
+		long hash = userIds.length * 31L + movieIds.length;
+		for (long id: userIds)
+		{
+			hash = hash * 0x9E3779B97F4A7C15L + id;
+		}
+		for (long id: movieIds)
+		{
+			hash = hash * 0x9E3779B97F4A7C15L + id;
+		}
+		for (int u = 0; u < userIds.length; u++)
+		{
+			hash = hash * 0x9E3779B97F4A7C15L + rowStart[u + 1];
+		}
+		for (int i = 0; i < rowMovies.length; i++)
+		{
+			hash = hash * 0x9E3779B97F4A7C15L + ((long) rowMovies[i] << 8 | (rowRatings[i] & 0xFF));
+		}
+		return hash;
+	}
+
+	/**
+	 * @param u User index
+	 * @return The number of movies the user rated
+	 */
+	public int rowSize(int u)
+	{
+		return rowStart[u + 1] - rowStart[u];
+	}
+
+	/**
+	 * @param m Movie index
+	 * @return The number of users who rated the movie
+	 */
+	public int columnSize(int m)
+	{
+		return colStart[m + 1] - colStart[m];
+	}
+
+	/**
+	 * @param u User index
+	 * @param m Movie index
+	 * @return The user's rating of the movie, or 0 if they have not rated it
+	 */
+	public int get(int u, int m)
+	{
+		int i = Arrays.binarySearch(rowMovies, rowStart[u], rowStart[u + 1], m);
+		return i >= 0 ? rowRatings[i] : 0;
+	}
+
+	/**
+	 * @param u User index
+	 * @param m Movie index
+	 * @return Whether the user rated the movie
+	 */
+	public boolean contains(int u, int m)
+	{
+		return Arrays.binarySearch(rowMovies, rowStart[u], rowStart[u + 1], m) >= 0;
+	}
+
+	/**
+	 * @param m Movie index
+	 * @return The average rating of the movie, or 0 if it has no ratings
+	 */
+	public double averageRating(int m)
+	{
+		int count = columnSize(m);
+		if (count == 0)
+		{
+			return 0.0;
+		}
+		long total = 0;
+		for (int i = colStart[m]; i < colStart[m + 1]; i++)
+		{
+			total += colRatings[i];
+		}
+		return (double) total / count;
+	}
+
+	/**
+	 * The rating values and user vector lengths of a similarity measure, computed on first use
+	 * @param measure
+	 * @return
+	 */
+	public synchronized SimilarityMeasure.Vectors vectors(SimilarityMeasure measure)
+	{
+		return vectors.computeIfAbsent(measure, m -> m.vectors(this));
+	}
+
+	/**
+	 * @return Approximate size of the matrix arrays in bytes, excluding the id indexes and similarity vectors
+	 */
+	public long memoryBytes()
+	{
+		return 24L * userIds.length + 16L * movieIds.length + 4L * (rowStart.length + colStart.length)
+				+ 10L * rowMovies.length;
+	}
+
+	private static long[] sortedIds(long[] ids)
+	{
+		Arrays.sort(ids);
+		for (int i = 1; i < ids.length; i++)
+		{
+			if (ids[i] == ids[i - 1])
+			{
+				throw new IllegalArgumentException("Duplicate id: " + ids[i]);
+			}
+		}
+		return ids;
+	}
+
+	private static LongIntHashMap index(long[] ids)
+	{
+		LongIntHashMap indexes = new LongIntHashMap(ids.length);
+		for (int i = 0; i < ids.length; i++)
+		{
+			indexes.put(ids[i], i);
+		}
+		return indexes;
+	}
+}
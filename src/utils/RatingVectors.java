@@ -0,0 +1,100 @@
+package utils;
+
+import java.util.Arrays;
+
+/**
+ * Similarity kernels over sparse rating vectors held as a sorted array of ids with a parallel array of values,
+ * such as the rows of a RatingMatrix with the values of a similarity measure. The overlap of two vectors is found
+ * by walking both in step (merge join), or, when one is much longer than the other, by searching the longer one
+ * for each id of the shorter with an exponentially growing step (galloping), so the cost follows the shorter
+ * vector. Neither allocates. The products are added in id order, as a scan of either vector would add them.
+ */
+public class RatingVectors
+{
+	static final int GALLOP_RATIO = 16; //Length ratio from which galloping beats walking the longer vector
+
+	private RatingVectors()
+	{}
+
+	/**
+	 * @param ids Sorted ids of the first vector
+	 * @param values Values of the first vector
+	 * @param from First position of the first vector
+	 * @param to Position after the last of the first vector
+	 * @param otherIds Sorted ids of the second vector
+	 * @param otherValues Values of the second vector
+	 * @param otherFrom First position of the second vector
+	 * @param otherTo Position after the last of the second vector
+	 * @return The sum of the products of the values of the ids in both vectors
+	 */
+	public static double dot(int[] ids, float[] values, int from, int to,
+			int[] otherIds, float[] otherValues, int otherFrom, int otherTo)
+	{
+		int length = to - from, otherLength = otherTo - otherFrom;
+		if (length > otherLength)
+		{
+			return dot(otherIds, otherValues, otherFrom, otherTo, ids, values, from, to);
+		}
+		if (otherLength >= GALLOP_RATIO * length)
+		{
+			return gallopDot(ids, values, from, to, otherIds, otherValues, otherFrom, otherTo);
+		}
+		return mergeDot(ids, values, from, to, otherIds, otherValues, otherFrom, otherTo);
+	}
+
+	/**
+	 * Walks both vectors in step
+	 */
+	static double mergeDot(int[] ids, float[] values, int from, int to,
+			int[] otherIds, float[] otherValues, int otherFrom, int otherTo)
+	{
+		int i = from, j = otherFrom;
+		double dot = 0;
+		while (i < to && j < otherTo)
+		{
+			if (ids[i] < otherIds[j])
+			{
+				i++;
+			}
+			else if (ids[i] > otherIds[j])
+			{
+				j++;
+			}
+			else
+			{
+				dot += values[i++] * otherValues[j++];
+			}
+		}
+		return dot;
+	}
+
+	/**
+	 * Searches the second vector for each id of the first, starting after the previous match
+	 */
+	static double gallopDot(int[] ids, float[] values, int from, int to,
+			int[] otherIds, float[] otherValues, int otherFrom, int otherTo)
+	{
+		int j = otherFrom;
+		double dot = 0;
+		for (int i = from; i < to && j < otherTo; i++)
+		{
+			int id = ids[i];
+			int bound = 1; //Double the step until otherIds[j + bound] is not below the id
+			while (j + bound < otherTo && otherIds[j + bound] < id)
+			{
+				bound <<= 1;
+			}
+			int found = Arrays.binarySearch(otherIds, j + (bound >> 1), Math.min(j + bound + 1, otherTo), id);
+			if (found >= 0)
+			{
+				dot += values[i] * otherValues[found];
+				j = found + 1;
+			}
+			else
+			{
+				j = -found - 1;
+			}
+		}
+		return dot;
+	}
+}
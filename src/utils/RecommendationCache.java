@@ -0,0 +1,186 @@
+package utils;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Least recently used cache of recommendation results by user id. Each result is stored with the ids of the
+ * neighbours it was computed from, and a reverse index from each neighbour to the users whose results used
+ * them, so invalidating a user drops their own result and every result that depended on their ratings.
+ *
+ * A user who was not a neighbour when a result was computed can become one by rating movies, which the reverse
+ * index cannot see, so a caller must invalidate every user whose similarity to another user changed, not only
+ * the user whose ratings changed. The cache is not thread safe.
+ *
+ * @param <V> The cached result
+ */
+public class RecommendationCache<V>
+{
+	private static class Entry<V>
+	{
+		final V value;
+		final long[] neighbourIds;
+
+		Entry(V value, long[] neighbourIds)
+		{
+			this.value = value;
+			this.neighbourIds = neighbourIds;
+		}
+	}
+
+	private final int capacity;
+	private final LinkedHashMap<Long, Entry<V>> entries;
+	private final Map<Long, Set<Long>> dependents = new HashMap<>(); //Users whose result used each neighbour
+	private long hits, misses, evictions, invalidations;
+
+	/**
+	 * @param capacity Maximum number of users cached
+	 */
+	public RecommendationCache(int capacity)
+	{
+		if (capacity <= 0)
+		{
+			throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+		}
+		this.capacity = capacity;
+		entries = new LinkedHashMap<>(16, 0.75f, true); //Iterates least recently used first
+	}
+
+	/**
+	 * @param userId
+	 * @return The user's cached result, or null if there is none
+	 */
+	public V get(long userId)
+	{
+		Entry<V> entry = entries.get(userId);
+		if (entry == null)
+		{
+			misses++;
+			return null;
+		}
+		hits++;
+		return entry.value;
+	}
+
+	/**
+	 * Caches a result, evicting the least recently used one if the cache is full
+	 * @param userId
+	 * @param value
+	 * @param neighbourIds Users whose ratings the result was computed from
+	 */
+	public void put(long userId, V value, long[] neighbourIds)
+	{
+		remove(userId);
+		entries.put(userId, new Entry<>(value, neighbourIds));
+		for (long neighbourId: neighbourIds)
+		{
+			dependents.computeIfAbsent(neighbourId, id -> new HashSet<>()).add(userId);
+		}
+		if (entries.size() > capacity)
+		{
+			remove(entries.keySet().iterator().next());
+			evictions++;
+		}
+	}
+
+	/**
+	 * Drops the results of the user and of every user who has them as a neighbour, after the user's ratings
+	 * change or the user is removed
+	 * @param userId
+	 */
+	public void invalidate(long userId)
+	{
+		if (remove(userId))
+		{
+			invalidations++;
+		}
+		Set<Long> affected = dependents.remove(userId);
+		if (affected != null)
+		{
+			for (long dependent: affected)
+			{
+				if (remove(dependent))
+				{
+					invalidations++;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Drops every result, keeping the counters
+	 */
+	public void clear()
+	{
+		invalidations += entries.size();
+		entries.clear();
+		dependents.clear();
+	}
+
+	public int size()
+	{
+		return entries.size();
+	}
+
+	public int getCapacity()
+	{
+		return capacity;
+	}
+
+	public long getHits()
+	{
+		return hits;
+	}
+
+	public long getMisses()
+	{
+		return misses;
+	}
+
+	public long getEvictions()
+	{
+		return evictions;
+	}
+
+	public long getInvalidations()
+	{
+		return invalidations;
+	}
+
+	@Override
+	public String toString()
+	{
+		long lookups = hits + misses;
+		return String.format("%d of %d users cached, %d hits, %d misses (%.1f%% hit rate), %d evictions, %d invalidations",
+				entries.size(), capacity, hits, misses, lookups == 0 ? 0.0 : 100.0 * hits / lookups, evictions, invalidations);
+	}
+
+	/**
+	 * Removes a user's result and its entries in the reverse index
+	 * @return Whether there was a result
+	 */
+	private boolean remove(long userId)
+	{
+		Entry<V> entry = entries.remove(userId);
+		if (entry == null)
+		{
+			return false;
+		}
+		for (long neighbourId: entry.neighbourIds)
+		{
+			Set<Long> users = dependents.get(neighbourId);
+			if (users != null)
+			{
+				users.remove(userId);
+				if (users.isEmpty())
+				{
+					dependents.remove(neighbourId);
+				}
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,55 @@
+package utils;
+
+/**
+ * Dense scoring loops in plain Java. They are free of branches, which the JIT compiles to SIMD instructions where
+ * it can. Integer sums may be reordered and so vectorise, where float sums may not, so the float dot product is
+ * summed over independent accumulators instead.
+ */
+class ScalarDenseKernels implements DenseKernels
+{
+	@Override
+	public int dot(int[] a, int aFrom, int[] b, int bFrom, int length)
+	{
+		int sum = 0;
+		for (int i = 0; i < length; i++)
+		{
+			sum += a[aFrom + i] * b[bFrom + i];
+		}
+		return sum;
+	}
+
+	/**
+	 * Over eight accumulators since the JIT keeps float sums in order
+	 */
+	@Override
+	public float dot(float[] a, int aFrom, float[] b, int bFrom, int length)
+	{
+		float s0 = 0f, s1 = 0f, s2 = 0f, s3 = 0f, s4 = 0f, s5 = 0f, s6 = 0f, s7 = 0f;
+		int i = 0;
+		for (; i + 7 < length; i += 8)
+		{
+			s0 += a[aFrom + i] * b[bFrom + i];
+			s1 += a[aFrom + i + 1] * b[bFrom + i + 1];
+			s2 += a[aFrom + i + 2] * b[bFrom + i + 2];
+			s3 += a[aFrom + i + 3] * b[bFrom + i + 3];
+			s4 += a[aFrom + i + 4] * b[bFrom + i + 4];
+			s5 += a[aFrom + i + 5] * b[bFrom + i + 5];
+			s6 += a[aFrom + i + 6] * b[bFrom + i + 6];
+			s7 += a[aFrom + i + 7] * b[bFrom + i + 7];
+		}
+		for (; i < length; i++)
+		{
+			s0 += a[aFrom + i] * b[bFrom + i];
+		}
+		return ((s0 + s1) + (s2 + s3)) + ((s4 + s5) + (s6 + s7));
+	}
+
+	@Override
+	public void scaleAdd(float scale, int[] x, int xFrom, float[] y, int length)
+	{
+		for (int i = 0; i < length; i++)
+		{
+			y[i] += scale * x[xFrom + i];
+		}
+	}
+}
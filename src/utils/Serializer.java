@@ -6,4 +6,37 @@ public interface Serializer
   Object pop();
   void write() throws Exception;
   void read() throws Exception;
+
+  /**
+   * Reads a datastore with one serializer and writes it with another, e.g. to move it to another format. The
+   * users, usersLogin, movies and ratings structures are copied, with the mutation log sequence number if present.
+   * Records in the mutation log of the source are not applied, so a datastore with a log is migrated through
+   * RecommenderAPI.migrate once loaded.
+   * @param from
+   * @param to
+   * @throws Exception
+   */
+  static void migrate(Serializer from, Serializer to) throws Exception
+  {
+    from.read();
+    Object top = from.pop();
+    Long lsn = null;
+    if (top instanceof Long)
+    {
+      lsn = (Long) top;
+      top = from.pop();
+    }
+    Object ratings = top;
+    Object movies = from.pop();
+    Object usersLogin = from.pop();
+    to.push(from.pop());
+    to.push(usersLogin);
+    to.push(movies);
+    to.push(ratings);
+    if (lsn != null)
+    {
+      to.push(lsn);
+    }
+    to.write();
+  }
 }
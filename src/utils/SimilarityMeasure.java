@@ -0,0 +1,122 @@
+package utils;
+
+/**
+ * How the similarity of two users is computed from their rating vectors. Each measure maps every rating to a
+ * value and every user to a vector length, so a similarity is the sum of the products of the two users' values
+ * over their co-rated movies divided by the product of their lengths. Scoring a pair therefore costs one
+ * multiply-add per co-rated movie whatever the measure, and the division is made once per pair.
+ */
+public enum SimilarityMeasure
+{
+	/**
+	 * The raw dot product of the ratings, which favours users with many ratings
+	 */
+	DOT,
+
+	/**
+	 * The cosine of the angle between the rating vectors, which ignores how many movies each user rated
+	 */
+	COSINE,
+
+	/**
+	 * The cosine of the ratings centred on each user's mean rating, which also ignores whether a user rates
+	 * generously or harshly. The vector lengths are over all of each user's ratings rather than only the
+	 * co-rated movies, so they can be cached per user.
+	 */
+	PEARSON,
+
+	/**
+	 * The cosine of the ratings centred on each movie's mean rating, which discounts agreement on movies
+	 * everybody likes
+	 */
+	ADJUSTED_COSINE;
+
+	/**
+	 * Per rating values and per user lengths of one measure over one RatingMatrix, in the matrix's order
+	 */
+	public static class Vectors
+	{
+		public final float[] rowValues; //Aligned with rowMovies
+		public final float[] colValues; //Aligned with colUsers
+		public final double[] norms; //Length of each user's vector
+
+		Vectors(float[] rowValues, float[] colValues, double[] norms)
+		{
+			this.rowValues = rowValues;
+			this.colValues = colValues;
+			this.norms = norms;
+		}
+	}
+
+	/**
+	 * @return Whether the values and length of a user's vector depend on their own ratings alone, so a change to
+	 * one user's ratings leaves every other user's vector as it was. The adjusted cosine centres ratings on movie
+	 * means, which every rating of the movie moves.
+	 */
+	public boolean isUserLocal()
+	{
+		return this != ADJUSTED_COSINE;
+	}
+
+	/**
+	 * Computes the values and lengths of the measure. The user means and squared lengths come from the
+	 * aggregates cached in the matrix, so only the adjusted cosine needs a pass to compute its lengths.
+	 * @param matrix
+	 * @return
+	 */
+	Vectors vectors(RatingMatrix matrix)
+	{
+		float[] rowValues = new float[matrix.size()];
+		double[] norms = new double[matrix.userCount()];
+		for (int u = 0; u < matrix.userCount(); u++)
+		{
+			double sumOfSquares = 0;
+			for (int i = matrix.rowStart[u]; i < matrix.rowStart[u + 1]; i++)
+			{
+				int m = matrix.rowMovies[i];
+				switch (this)
+				{
+				case PEARSON:
+					rowValues[i] = (float) (matrix.rowRatings[i] - matrix.userMeans[u]);
+					break;
+				case ADJUSTED_COSINE:
+					rowValues[i] = (float) (matrix.rowRatings[i] - matrix.movieMeans[m]);
+					sumOfSquares += rowValues[i] * rowValues[i];
+					break;
+				default:
+					rowValues[i] = matrix.rowRatings[i];
+				}
+			}
+
+			switch (this)
+			{
+			case DOT:
+				norms[u] = 1.0;
+				break;
+			case COSINE:
+				norms[u] = Math.sqrt(matrix.userSumsOfSquares[u]);
+				break;
+			case PEARSON: //Sum of (r - mean)^2 = sum of r^2 - count * mean^2
+				double mean = matrix.userMeans[u];
+				norms[u] = Math.sqrt(Math.max(0.0, matrix.userSumsOfSquares[u] - matrix.rowSize(u) * mean * mean));
+				break;
+			case ADJUSTED_COSINE:
+				norms[u] = Math.sqrt(sumOfSquares);
+				break;
+			}
+		}
+
+		//Columns hold the same values in column order
+		float[] colValues = new float[matrix.size()];
+		int[] next = new int[matrix.movieCount()];
+		System.arraycopy(matrix.colStart, 0, next, 0, next.length);
+		for (int u = 0; u < matrix.userCount(); u++)
+		{
+			for (int i = matrix.rowStart[u]; i < matrix.rowStart[u + 1]; i++)
+			{
+				colValues[next[matrix.rowMovies[i]]++] = rowValues[i];
+			}
+		}
+		return new Vectors(rowValues, colValues, norms);
+	}
+}
@@ -0,0 +1,275 @@
+package utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Stack;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+
+import models.Movie;
+import models.Rating;
+import models.User;
+
+/**
+ * Streaming XML serializer built on StAX. Entities are written and read one element at a time,
+ * so no document tree is held in memory regardless of the number of ratings.
+ *
+ * The datastore is stored in normalized form (see Normalizer) using the following schema:
+ *
+ * <pre>
+ * &lt;datastore version="1"&gt;
+ *   &lt;users&gt;
+ *     &lt;user id="1" firstName="Leonard" lastName="Hernandez" age="24" gender="M"
+ *           occupation="technician" username="" password=""/&gt;
+ *   &lt;/users&gt;
+ *   &lt;movies&gt;
+ *     &lt;movie id="1" title="Toy Story (1995)" year="1995" url="http://..."/&gt;
+ *   &lt;/movies&gt;
+ *   &lt;ratings&gt;
+ *     &lt;rating user="1" movie="1" value="5" timestamp="874965758"/&gt;
+ *   &lt;/ratings&gt;
+ * &lt;/datastore&gt;
+ * </pre>
+ *
+ * A missing optional attribute (username, password, timestamp) reads as its default. The datastore element may
+ * carry an lsn attribute, the sequence number of the last mutation log record the snapshot includes, which is
+ * pushed after the ratings.
+ */
+public class StaxXMLSerializer implements Serializer
+{
+	static final String VERSION = "1";
+
+	private Stack<Object> stack = new Stack<>();
+	private File file;
+
+	public StaxXMLSerializer(File file)
+	{
+		this.file = file;
+	}
+
+	@Override
+	public void push(Object o)
+	{
+		stack.push(o);
+	}
+
+	@Override
+	public Object pop()
+	{
+		return stack.pop();
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public void write() throws Exception
+	{
+		if (stack.size() != 4 && stack.size() != 5)
+		{
+			throw new Exception("Invalid datastore layout: " + stack.size());
+		}
+		Map<Long, User> users = (Map<Long, User>) stack.get(0);
+		Map<Long, Movie> movies = (Map<Long, Movie>) stack.get(2);
+		Long lsn = stack.size() == 5 ? (Long) stack.get(4) : null;
+		stack = new Stack<>(); //Emptied, so the next snapshot is pushed afresh
+
+		File temp = AtomicFiles.temp(file);
+		try (OutputStream out = new BufferedOutputStream(new FileOutputStream(temp), BinarySerializer.BUFFER_SIZE))
+		{
+			XMLStreamWriter writer = XMLOutputFactory.newInstance().createXMLStreamWriter(out, "UTF-8");
+			try
+			{
+				writer.writeStartDocument("UTF-8", "1.0");
+				writer.writeCharacters("\n");
+				writer.writeStartElement("datastore");
+				writer.writeAttribute("version", VERSION);
+				if (lsn != null)
+				{
+					writer.writeAttribute("lsn", lsn.toString());
+				}
+
+				writer.writeCharacters("\n");
+				writer.writeStartElement("users");
+				for (User user: users.values())
+				{
+					writer.writeCharacters("\n  ");
+					writer.writeEmptyElement("user");
+					writer.writeAttribute("id", Long.toString(user.userId));
+					writeAttribute(writer, "firstName", user.firstName);
+					writeAttribute(writer, "lastName", user.lastName);
+					writer.writeAttribute("age", Integer.toString(user.age));
+					writer.writeAttribute("gender", String.valueOf(user.gender));
+					writeAttribute(writer, "occupation", user.occupation);
+					writeAttribute(writer, "username", user.username);
+					writeAttribute(writer, "password", user.password);
+				}
+				writer.writeCharacters("\n");
+				writer.writeEndElement();
+
+				writer.writeCharacters("\n");
+				writer.writeStartElement("movies");
+				for (Movie movie: movies.values())
+				{
+					writer.writeCharacters("\n  ");
+					writer.writeEmptyElement("movie");
+					writer.writeAttribute("id", Long.toString(movie.movieId));
+					writeAttribute(writer, "title", movie.title);
+					writer.writeAttribute("year", Integer.toString(movie.year));
+					writeAttribute(writer, "url", movie.url);
+				}
+				writer.writeCharacters("\n");
+				writer.writeEndElement();
+
+				writer.writeCharacters("\n");
+				writer.writeStartElement("ratings");
+				for (User user: users.values())
+				{
+					for (Rating rating: user.ratedMovies.values())
+					{
+						writer.writeCharacters("\n  ");
+						writer.writeEmptyElement("rating");
+						writer.writeAttribute("user", Long.toString(rating.userId));
+						writer.writeAttribute("movie", Long.toString(rating.movieId));
+						writer.writeAttribute("value", Integer.toString(rating.rating));
+						if (rating.timestamp != 0)
+						{
+							writer.writeAttribute("timestamp", Long.toString(rating.timestamp));
+						}
+					}
+				}
+				writer.writeCharacters("\n");
+				writer.writeEndElement();
+
+				writer.writeCharacters("\n");
+				writer.writeEndElement();
+				writer.writeEndDocument();
+				writer.flush();
+			}
+			finally
+			{
+				writer.close();
+			}
+		}
+		AtomicFiles.replace(temp, file);
+	}
+
+	@Override
+	public void read() throws Exception
+	{
+		Map<Long, User> users = new HashMap<>();
+		Map<Long, Movie> movies = new HashMap<>();
+		List<Rating> ratings = new ArrayList<>();
+		Long lsn = null; //Absent from snapshots written without a mutation log
+
+		try (InputStream in = new BufferedInputStream(new FileInputStream(file), BinarySerializer.BUFFER_SIZE))
+		{
+			XMLStreamReader reader = XMLInputFactory.newInstance().createXMLStreamReader(in);
+			try
+			{
+				while (reader.hasNext())
+				{
+					if (reader.next() != XMLStreamConstants.START_ELEMENT)
+					{
+						continue;
+					}
+					switch (reader.getLocalName())
+					{
+					case "datastore":
+						String version = reader.getAttributeValue(null, "version");
+						if (!VERSION.equals(version))
+						{
+							throw new Exception("Unsupported datastore version: " + version);
+						}
+						String position = reader.getAttributeValue(null, "lsn");
+						lsn = position != null ? Long.valueOf(position) : null;
+						break;
+
+					case "user":
+						User user = new User(Long.parseLong(required(reader, "id")),
+								reader.getAttributeValue(null, "firstName"),
+								reader.getAttributeValue(null, "lastName"),
+								Integer.parseInt(required(reader, "age")),
+								required(reader, "gender").charAt(0),
+								reader.getAttributeValue(null, "occupation"),
+								optional(reader, "username", ""),
+								optional(reader, "password", ""));
+						users.put(user.userId, user);
+						break;
+
+					case "movie":
+						Movie movie = new Movie(Long.parseLong(required(reader, "id")),
+								reader.getAttributeValue(null, "title"),
+								Integer.parseInt(required(reader, "year")),
+								reader.getAttributeValue(null, "url"));
+						movies.put(movie.movieId, movie);
+						break;
+
+					case "rating":
+						ratings.add(new Rating(Long.parseLong(required(reader, "user")),
+								Long.parseLong(required(reader, "movie")),
+								Integer.parseInt(required(reader, "value")),
+								Long.parseLong(optional(reader, "timestamp", "0"))));
+						break;
+
+					default:
+						break;
+					}
+				}
+			}
+			finally
+			{
+				reader.close();
+			}
+		}
+
+		Normalizer.linkRatings(users, movies, ratings);
+
+		stack = new Stack<>();
+		stack.push(users);
+		stack.push(Normalizer.loginIndex(users));
+		stack.push(movies);
+		stack.push(ratings);
+		if (lsn != null)
+		{
+			stack.push(lsn);
+		}
+	}
+
+	private static void writeAttribute(XMLStreamWriter writer, String name, String value) throws XMLStreamException
+	{
+		if (value != null)
+		{
+			writer.writeAttribute(name, value);
+		}
+	}
+
+	private static String required(XMLStreamReader reader, String name) throws Exception
+	{
+		String value = reader.getAttributeValue(null, name);
+		if (value == null)
+		{
+			throw new Exception("Missing attribute " + name + " on " + reader.getLocalName()
+					+ " at line " + reader.getLocation().getLineNumber());
+		}
+		return value;
+	}
+
+	private static String optional(XMLStreamReader reader, String name, String defaultValue)
+	{
+		String value = reader.getAttributeValue(null, name);
+		return value == null ? defaultValue : value;
+	}
+}
@@ -0,0 +1,214 @@
+package utils;
+
+/**
+ * Scores the similarity of one user to every other user in a single pass over the inverted index of a
+ * RatingMatrix. For each movie the user rated, the movie's column lists every other user who rated it, and
+ * the product of the two rating values of the similarity measure is added to that user's score. The work is
+ * proportional to the number of co-ratings, and the scores are accumulated in a primitive array indexed by
+ * dense user index. Each score is divided by the two users' vector lengths once, when it is read.
+ *
+ * The scratch arrays are reused between calls, and kept when the scorer is moved to a patched rating matrix,
+ * so an instance must not be shared between threads.
+ */
+public class UserSimilarityScorer
+{
+	private RatingMatrix matrix;
+	private final SimilarityMeasure measure;
+	private float[] rowValues, colValues;
+	private double[] norms;
+	private final double[] scores;
+	private final int[] candidates; //Users with at least one co-rating, in order of discovery
+	private final int[] stamps; //Call in which each user's score was last reset
+	private BoundedHeap heap = new BoundedHeap(0); //Reused while the number of neighbours asked for is unchanged
+	private int candidateCount = 0;
+	private int stamp = 0;
+	private int user = -1; //User of the last call to scoreAll
+
+	public UserSimilarityScorer(RatingMatrix matrix)
+	{
+		this(matrix, SimilarityMeasure.DOT);
+	}
+
+	public UserSimilarityScorer(RatingMatrix matrix, SimilarityMeasure measure)
+	{
+		this.matrix = matrix;
+		this.measure = measure;
+		SimilarityMeasure.Vectors vectors = matrix.vectors(measure);
+		rowValues = vectors.rowValues;
+		colValues = vectors.colValues;
+		norms = vectors.norms;
+		scores = new double[matrix.userCount()];
+		candidates = new int[matrix.userCount()];
+		stamps = new int[matrix.userCount()];
+	}
+
+	/**
+	 * Moves the scorer to a matrix patched from its own, keeping the scratch arrays
+	 * @param patched
+	 * @return Whether the scorer was moved. It is left as it was if the matrix is not a patch of its own.
+	 */
+	public boolean update(RatingMatrix patched)
+	{
+		if (patched.changedSince(matrix) == null)
+		{
+			return false;
+		}
+		SimilarityMeasure.Vectors vectors = patched.vectors(measure);
+		rowValues = vectors.rowValues;
+		colValues = vectors.colValues;
+		norms = vectors.norms;
+		matrix = patched;
+		user = -1;
+		stamp++; //Scores of the old matrix are no longer read
+		return true;
+	}
+
+	/**
+	 * Computes the similarity of the user to every user who rated a movie in common
+	 * @param u User index
+	 * @return The number of such users, available through candidate and score
+	 */
+	public int scoreAll(int u)
+	{
+		stamp++;
+		candidateCount = 0;
+		user = u;
+		for (int i = matrix.rowStart[u]; i < matrix.rowStart[u + 1]; i++)
+		{
+			int m = matrix.rowMovies[i];
+			float value = rowValues[i];
+			for (int j = matrix.colStart[m]; j < matrix.colStart[m + 1]; j++)
+			{
+				int v = matrix.colUsers[j];
+				if (v == u)
+				{
+					continue;
+				}
+				if (stamps[v] != stamp)
+				{
+					stamps[v] = stamp;
+					scores[v] = 0;
+					candidates[candidateCount++] = v;
+				}
+				scores[v] += value * colValues[j];
+			}
+		}
+		return candidateCount;
+	}
+
+	/**
+	 * @param i Position in [0, count) of the last call to scoreAll
+	 * @return The user index of the candidate
+	 */
+	public int candidate(int i)
+	{
+		return candidates[i];
+	}
+
+	/**
+	 * @param v User index of a candidate of the last call to scoreAll
+	 * @return The candidate's similarity score, 0 if either user's vector has no length
+	 */
+	public double score(int v)
+	{
+		if (stamps[v] != stamp)
+		{
+			return 0.0;
+		}
+		double lengths = norms[user] * norms[v];
+		return lengths > 0 ? scores[v] / lengths : 0.0;
+	}
+
+	/**
+	 * @param u User index
+	 * @return The index of the user with the highest positive score, the lowest index on a tie,
+	 * or -1 if no user has a positive score
+	 */
+	public int mostSimilar(int u)
+	{
+		int count = scoreAll(u);
+		int best = -1;
+		double bestScore = 0;
+		for (int i = 0; i < count; i++)
+		{
+			int v = candidates[i];
+			double score = score(v);
+			if (score > bestScore || (score == bestScore && best >= 0 && v < best))
+			{
+				best = v;
+				bestScore = score;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Selects the users with the highest positive scores
+	 * @param u User index
+	 * @param k Maximum number of neighbours
+	 * @param neighbours Receives the user indexes of the neighbours, most similar first
+	 * @param weights Receives the score of each neighbour, may be null
+	 * @return The number of neighbours, at most k
+	 */
+	public int neighbours(int u, int k, int[] neighbours, double[] weights)
+	{
+		if (heap.capacity() != k)
+		{
+			heap = new BoundedHeap(k);
+		}
+		int count = scoreAll(u);
+		for (int i = 0; i < count; i++)
+		{
+			int v = candidates[i];
+			double score = score(v);
+			if (score > 0)
+			{
+				heap.offer(v, score);
+			}
+		}
+		return heap.drain(neighbours, weights);
+	}
+
+	/**
+	 * Selects the users with the highest positive scores among the given candidates only. The user's row is
+	 * intersected with each candidate's row, without visiting the other co-raters, by a merge join or, for rows of
+	 * very different lengths, by galloping through the longer one.
+	 * @param u User index
+	 * @param among User indexes of the candidates
+	 * @param count Number of candidates
+	 * @param k Maximum number of neighbours
+	 * @param neighbours Receives the user indexes of the neighbours, most similar first
+	 * @param weights Receives the score of each neighbour, may be null
+	 * @return The number of neighbours, at most k
+	 */
+	public int neighbours(int u, int[] among, int count, int k, int[] neighbours, double[] weights)
+	{
+		if (heap.capacity() != k)
+		{
+			heap = new BoundedHeap(k);
+		}
+		int from = matrix.rowStart[u], to = matrix.rowStart[u + 1];
+		for (int c = 0; c < count; c++)
+		{
+			int v = among[c];
+			double score = RatingVectors.dot(matrix.rowMovies, rowValues, from, to,
+					matrix.rowMovies, rowValues, matrix.rowStart[v], matrix.rowStart[v + 1]);
+			double lengths = norms[u] * norms[v];
+			if (v != u && score > 0 && lengths > 0)
+			{
+				heap.offer(v, score / lengths);
+			}
+		}
+		return heap.drain(neighbours, weights);
+	}
+
+	public RatingMatrix getMatrix()
+	{
+		return matrix;
+	}
+
+	public SimilarityMeasure getMeasure()
+	{
+		return measure;
+	}
+}
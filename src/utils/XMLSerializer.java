@@ -56,11 +56,12 @@ public class XMLSerializer implements Serializer
 	public void write() throws Exception
 	{
 		ObjectOutputStream outputStream = null;
+    File temp = AtomicFiles.temp(file);
 
     try
     {
       XStream xstream = new XStream(new DomDriver());
-      outputStream = xstream.createObjectOutputStream(new FileWriter(file));
+      outputStream = xstream.createObjectOutputStream(new FileWriter(temp));
       outputStream.writeObject(stack);
     }
     finally
@@ -70,6 +71,7 @@ public class XMLSerializer implements Serializer
         outputStream.close();
       }
     }
+    AtomicFiles.replace(temp, file);
 		
 	}
 
@@ -6,6 +6,9 @@ package controllers;
 import static org.junit.Assert.*;
 
 import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashSet;
 
 import org.junit.After;
 import org.junit.Before;
@@ -15,7 +18,10 @@ import models.Fixtures;
 import models.Movie;
 import models.Rating;
 import models.User;
+import utils.BinarySerializer;
+import utils.MutationLog;
 import utils.Serializer;
+import utils.StaxXMLSerializer;
 import utils.XMLSerializer;
 
 import static models.Fixtures.*;
@@ -60,7 +66,7 @@ public class PersistenceTest
 
 	void deleteFile(String fileName)
 	{
-		File datastore = new File ("testdatastore.xml");
+		File datastore = new File (fileName);
 		if (datastore.exists())
 		{
 			datastore.delete();
@@ -108,6 +114,371 @@ public class PersistenceTest
 		deleteFile ("testdatastore.xml");
 	}
 
+	/**
+	 * Test if the binary serializer persists users, movies and ratings
+	 * @throws Exception
+	 */
+	@Test
+	public void testBinarySerializer() throws Exception
+	{ 
+		String datastoreFile = "testdatastore.bin";
+		deleteFile(datastoreFile);
+
+		Serializer serializer = new BinarySerializer(new File (datastoreFile));
+
+		recommender = new RecommenderAPI(serializer); 
+		populate(recommender);
+		recommender.store();
+
+		RecommenderAPI recommender2 =  new RecommenderAPI(serializer);
+		recommender2.load();
+
+		assertEquals (recommender.getUsers().size(), recommender2.getUsers().size());
+		for (User user : recommender.getUsers().values())
+		{
+			assertTrue (recommender2.getUsers().containsValue(user));
+		}
+		assertEquals (recommender.getMovies().size(), recommender2.getMovies().size());
+		for (Movie movie : recommender.getMovies().values())
+		{
+			assertEquals (movie, recommender2.getMovieById(movie.movieId));
+		}
+		assertEquals (recommender.getRatings(), recommender2.getRatings());
+		deleteFile (datastoreFile);
+	}
+
+	/**
+	 * Test if mutations logged after a snapshot are replayed on load
+	 * @throws Exception
+	 */
+	@Test
+	public void testMutationLog() throws Exception
+	{
+		String datastoreFile = "testdatastore.bin";
+		String logFile = "testdatastore.log";
+		deleteFile(datastoreFile);
+		deleteFile(logFile);
+
+		Serializer serializer = new BinarySerializer(new File (datastoreFile));
+		MutationLog mutationLog = new MutationLog(new File (logFile));
+
+		recommender = new RecommenderAPI(serializer, mutationLog); 
+		populate(recommender);
+		recommender.store();
+		assertEquals (0, mutationLog.size());
+
+		User user = recommender.addUser("Joe", "Bloggs", 54, 'M', "Network Administrator", "jbloggs", "secret");
+		recommender.addRating(user.userId, 3L, 4);
+		recommender.addRating(2L, 1L, -1);
+		recommender.removeUser(5L);
+		recommender.commit();
+		assertEquals (4, mutationLog.size());
+		mutationLog.close();
+
+		MutationLog mutationLog2 = new MutationLog(new File (logFile));
+		RecommenderAPI recommender2 =  new RecommenderAPI(serializer, mutationLog2);
+		recommender2.load();
+
+		assertEquals (recommender.getUsers(), recommender2.getUsers());
+		assertEquals (recommender.getMovies(), recommender2.getMovies());
+		assertTrue (recommender2.authenticate("jbloggs", "secret"));
+		assertEquals ((Integer) (-1), recommender2.getUserById(2L).ratedMovies.get(1L).rating);
+		assertFalse (recommender2.getMovieById(3L).userRatings.containsKey(5L));
+
+		//Folding the log into a snapshot empties it
+		recommender2.checkpoint();
+		assertEquals (0, mutationLog2.size());
+		mutationLog2.close();
+
+		deleteFile (datastoreFile);
+		deleteFile (logFile);
+	}
+
+	/**
+	 * Test if a crash after a snapshot is written but before the log is truncated replays nothing twice,
+	 * including a user id reused after its user was removed
+	 * @throws Exception
+	 */
+	@Test
+	public void testMutationLogCrashBeforeTruncate() throws Exception
+	{
+		String datastoreFile = "testdatastore.bin";
+		String logFile = "testdatastore.log";
+		deleteFile(datastoreFile);
+		deleteFile(logFile);
+
+		Serializer serializer = new BinarySerializer(new File (datastoreFile));
+		MutationLog mutationLog = new MutationLog(new File (logFile));
+
+		recommender = new RecommenderAPI(serializer, mutationLog); 
+		populate(recommender);
+		recommender.store();
+
+		User joe = recommender.addUser("Joe", "Bloggs", 54, 'M', "Network Administrator", "jbloggs", "secret");
+		recommender.addRating(joe.userId, 3L, 4);
+		recommender.removeUser(joe.userId);
+		User ann = recommender.addUser("Ann", "Other", 31, 'F', "Writer", "aother", "secret");
+		assertEquals (joe.userId, ann.userId);
+		recommender.addRating(ann.userId, 1L, 5);
+		recommender.commit();
+
+		//The snapshot is written, but the log survives as it was before the truncation
+		byte[] log = Files.readAllBytes(new File(logFile).toPath());
+		recommender.checkpoint();
+		mutationLog.close();
+		Files.write(new File(logFile).toPath(), log);
+
+		MutationLog mutationLog2 = new MutationLog(new File (logFile));
+		RecommenderAPI recommender2 =  new RecommenderAPI(serializer, mutationLog2);
+		recommender2.load();
+
+		assertEquals (recommender.getUsers(), recommender2.getUsers());
+		assertEquals (recommender.getMovies(), recommender2.getMovies());
+		assertEquals (recommender.getRatings(), recommender2.getRatings());
+		assertEquals (1, recommender2.getUserById(ann.userId).ratedMovies.size());
+		assertFalse (recommender2.getMovieById(3L).userRatings.containsKey(ann.userId));
+
+		//Records logged after the reload follow the snapshot, so they are replayed
+		recommender2.addRating(ann.userId, 2L, 3);
+		recommender2.commit();
+		mutationLog2.close();
+		RecommenderAPI recommender3 =  new RecommenderAPI(serializer, new MutationLog(new File (logFile)));
+		recommender3.load();
+		assertEquals (recommender2.getUsers(), recommender3.getUsers());
+
+		deleteFile (datastoreFile);
+		deleteFile (logFile);
+	}
+
+	/**
+	 * Test if a crash while a snapshot is written leaves the previous snapshot and the log intact
+	 * @throws Exception
+	 */
+	@Test
+	public void testSnapshotCrashDuringWrite() throws Exception
+	{
+		String datastoreFile = "testdatastore.bin";
+		String logFile = "testdatastore.log";
+		deleteFile(datastoreFile);
+		deleteFile(logFile);
+
+		Serializer serializer = new BinarySerializer(new File (datastoreFile));
+		MutationLog mutationLog = new MutationLog(new File (logFile));
+
+		recommender = new RecommenderAPI(serializer, mutationLog); 
+		populate(recommender);
+		recommender.store();
+		byte[] snapshot = Files.readAllBytes(new File(datastoreFile).toPath());
+
+		recommender.addRating(1L, 4L, 5);
+		recommender.commit();
+
+		//The next snapshot got half way to disk before the crash
+		Files.write(new File(datastoreFile + ".tmp").toPath(), Arrays.copyOf(snapshot, snapshot.length / 2));
+		mutationLog.close();
+
+		MutationLog mutationLog2 = new MutationLog(new File (logFile));
+		RecommenderAPI recommender2 =  new RecommenderAPI(serializer, mutationLog2);
+		recommender2.load();
+		assertEquals (recommender.getUsers(), recommender2.getUsers());
+		assertEquals (recommender.getRatings(), recommender2.getRatings());
+
+		//The next snapshot replaces the partial one
+		recommender2.store();
+		mutationLog2.close();
+		assertFalse (new File(datastoreFile + ".tmp").exists());
+		RecommenderAPI recommender3 =  new RecommenderAPI(serializer, new MutationLog(new File (logFile)));
+		recommender3.load();
+		assertEquals (recommender.getRatings(), recommender3.getRatings());
+
+		deleteFile (datastoreFile);
+		deleteFile (logFile);
+	}
+
+	/**
+	 * Test if a record larger than the log's write buffer is logged and replayed
+	 * @throws Exception
+	 */
+	@Test
+	public void testMutationLogLargeRecord() throws Exception
+	{
+		String datastoreFile = "testdatastore.bin";
+		String logFile = "testdatastore.log";
+		deleteFile(datastoreFile);
+		deleteFile(logFile);
+
+		Serializer serializer = new BinarySerializer(new File (datastoreFile));
+		MutationLog mutationLog = new MutationLog(new File (logFile));
+
+		recommender = new RecommenderAPI(serializer, mutationLog); 
+		populate(recommender);
+		recommender.store();
+
+		char[] name = new char[100000];
+		Arrays.fill(name, 'x');
+		recommender.addUser("Joe", "Bloggs", 54, 'M', "Network Administrator", "jbloggs", "secret");
+		User user = recommender.addUser(new String(name), "Bloggs", 54, 'M', "Network Administrator", "xbloggs", "secret");
+		recommender.addRating(user.userId, 3L, 4);
+		recommender.commit();
+		mutationLog.close();
+
+		MutationLog mutationLog2 = new MutationLog(new File (logFile));
+		RecommenderAPI recommender2 =  new RecommenderAPI(serializer, mutationLog2);
+		recommender2.load();
+		assertEquals (3, mutationLog2.size());
+		assertEquals (recommender.getUsers(), recommender2.getUsers());
+		assertTrue (recommender2.authenticate("jbloggs", "secret"));
+		mutationLog2.close();
+
+		deleteFile (datastoreFile);
+		deleteFile (logFile);
+	}
+
+	/**
+	 * Test if a datastore migrated from one format to another, and back, holds the same data
+	 * @throws Exception
+	 */
+	@Test
+	public void testMigrate() throws Exception
+	{
+		String datastoreFile = "testdatastore.bin";
+		String streamFile = "testdatastore-stream.xml";
+		deleteFile(datastoreFile);
+		deleteFile(streamFile);
+
+		recommender = new RecommenderAPI(new BinarySerializer(new File (datastoreFile))); 
+		populate(recommender);
+		recommender.addUser("Joe", "Bloggs", 54, 'M', "Network Administrator", "jbloggs", "secret");
+		recommender.store();
+
+		Serializer.migrate(new BinarySerializer(new File (datastoreFile)), new StaxXMLSerializer(new File (streamFile)));
+		deleteFile(datastoreFile);
+		RecommenderAPI recommender2 =  new RecommenderAPI(new StaxXMLSerializer(new File (streamFile)));
+		recommender2.load();
+		assertEquals (recommender.getUsers(), recommender2.getUsers());
+		assertEquals (recommender.getMovies(), recommender2.getMovies());
+		assertTrue (recommender2.authenticate("jbloggs", "secret"));
+
+		Serializer.migrate(new StaxXMLSerializer(new File (streamFile)), new BinarySerializer(new File (datastoreFile), true));
+		RecommenderAPI recommender3 =  new RecommenderAPI(new BinarySerializer(new File (datastoreFile)));
+		recommender3.load();
+		assertEquals (recommender.getUsers(), recommender3.getUsers());
+		assertEquals (recommender.getMovies(), recommender3.getMovies());
+
+		deleteFile (datastoreFile);
+		deleteFile (streamFile);
+	}
+
+	/**
+	 * Test if the changes committed to the log of a datastore are carried over when it is migrated
+	 * @throws Exception
+	 */
+	@Test
+	public void testMigrateWithLog() throws Exception
+	{
+		String streamFile = "testdatastore-stream.xml";
+		String streamLogFile = "testdatastore-stream.xml.log";
+		String datastoreFile = "testdatastore.bin";
+		String logFile = "testdatastore.bin.log";
+		deleteFile(streamFile);
+		deleteFile(streamLogFile);
+		deleteFile(datastoreFile);
+		deleteFile(logFile);
+
+		MutationLog mutationLog = new MutationLog(new File (streamLogFile));
+		recommender = new RecommenderAPI(new StaxXMLSerializer(new File (streamFile)), mutationLog); 
+		populate(recommender);
+		recommender.store();
+		User joe = recommender.addUser("Joe", "Bloggs", 54, 'M', "Network Administrator", "jbloggs", "secret");
+		recommender.addRating(joe.userId, 3L, 4);
+		recommender.commit();
+		mutationLog.close();
 
+		MutationLog streamLog = new MutationLog(new File (streamLogFile));
+		RecommenderAPI legacy = new RecommenderAPI(new StaxXMLSerializer(new File (streamFile)), streamLog);
+		legacy.load();
+		legacy.migrate(new BinarySerializer(new File (datastoreFile)));
+		streamLog.close();
+
+		MutationLog mutationLog2 = new MutationLog(new File (logFile));
+		RecommenderAPI recommender2 =  new RecommenderAPI(new BinarySerializer(new File (datastoreFile)), mutationLog2);
+		recommender2.load();
+		assertEquals (recommender.getUsers(), recommender2.getUsers());
+		assertEquals (new HashSet<>(recommender.getRatings()), new HashSet<>(recommender2.getRatings()));
+		assertTrue (recommender2.authenticate("jbloggs", "secret"));
+
+		//The new datastore's own log follows the migrated snapshot
+		recommender2.addRating(joe.userId, 1L, 5);
+		recommender2.commit();
+		mutationLog2.close();
+		RecommenderAPI recommender3 =  new RecommenderAPI(new BinarySerializer(new File (datastoreFile)), new MutationLog(new File (logFile)));
+		recommender3.load();
+		assertEquals (recommender2.getRatings(), recommender3.getRatings());
+
+		deleteFile (streamFile);
+		deleteFile (streamLogFile);
+		deleteFile (datastoreFile);
+		deleteFile (logFile);
+	}
+
+	/**
+	 * Test if the normalized binary layout rebuilds the rating and login indexes
+	 * @throws Exception
+	 */
+	@Test
+	public void testNormalizedSerializer() throws Exception
+	{ 
+		String datastoreFile = "testdatastore.bin";
+		deleteFile(datastoreFile);
+
+		Serializer serializer = new BinarySerializer(new File (datastoreFile), true);
+
+		recommender = new RecommenderAPI(serializer); 
+		populate(recommender);
+		recommender.addUser("Joe", "Bloggs", 54, 'M', "Network Administrator", "jbloggs", "secret");
+		recommender.addRating(1L, 2L, -1); //Supersedes an earlier rating
+		recommender.store();
+
+		RecommenderAPI recommender2 =  new RecommenderAPI(serializer);
+		recommender2.load();
+
+		assertEquals (recommender.getUsers(), recommender2.getUsers());
+		assertEquals (recommender.getMovies(), recommender2.getMovies());
+		assertEquals (ratingsFixtures.length, recommender2.getRatings().size());
+		assertTrue (recommender2.authenticate("jbloggs", "secret"));
+
+		//Each rating is a single object shared by the user and movie indexes
+		Rating rating = recommender2.getUserById(1L).ratedMovies.get(2L);
+		assertEquals ((Integer) (-1), rating.rating);
+		assertSame (rating, recommender2.getMovieById(2L).userRatings.get(1L));
+		deleteFile (datastoreFile);
+	}
+
+	/**
+	 * Test if the streaming XML serializer persists users, movies and ratings
+	 * @throws Exception
+	 */
+	@Test
+	public void testStaxXMLSerializer() throws Exception
+	{ 
+		String datastoreFile = "testdatastore-stream.xml";
+		deleteFile(datastoreFile);
+
+		Serializer serializer = new StaxXMLSerializer(new File (datastoreFile));
+
+		recommender = new RecommenderAPI(serializer); 
+		populate(recommender);
+		recommender.addUser("Joe", "Bloggs & Co", 54, 'M', "Network <Administrator>", "jbloggs", "secret");
+		recommender.store();
+
+		RecommenderAPI recommender2 =  new RecommenderAPI(serializer);
+		recommender2.load();
+
+		assertEquals (recommender.getUsers(), recommender2.getUsers());
+		assertEquals (recommender.getMovies(), recommender2.getMovies());
+		assertEquals (ratingsFixtures.length, recommender2.getRatings().size());
+		assertTrue (recommender2.authenticate("jbloggs", "secret"));
+		deleteFile (datastoreFile);
+	}
 
 }
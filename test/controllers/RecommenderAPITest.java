@@ -5,7 +5,18 @@ package controllers;
 
 import static org.junit.Assert.*;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.function.Predicate;
 
 import org.junit.After;
 import org.junit.Before;
@@ -17,6 +28,17 @@ import models.Fixtures;
 import models.Movie;
 import models.Rating;
 import models.User;
+import utils.BatchRecommender;
+import utils.BinarySerializer;
+import utils.DenseRatingScorer;
+import utils.ItemSimilarityTable;
+import utils.LshIndex;
+import utils.MinHashIndex;
+import utils.NeighbourhoodIndex;
+import utils.RatingMatrix;
+import utils.RecommendationCache;
+import utils.SimilarityMeasure;
+import utils.UserSimilarityScorer;
 
 /**
  * A test for the RecommenderAPI which contains the main functionality of the program
@@ -81,6 +103,7 @@ public class RecommenderAPITest
 		User user = recommender.getUserById(4L);
 		recommender.removeUser(user.userId);
 		assertEquals(usersFixtures.length - 1, recommender.getUsers().size());
+		assertFalse(recommender.getMovieById(1L).userRatings.containsKey(user.userId));
 	}
 
 	/**
@@ -110,6 +133,41 @@ public class RecommenderAPITest
 		assertEquals("The Godfather", recommender.getMovieById(newMovieId).title);
 	}
 
+	/**
+	 * Test that a movie added after importing a release with gaps in its movie ids gets an unused id
+	 * @throws Exception
+	 */
+	@Test
+	public void testMovieAfterSparseImport() throws Exception
+	{
+		File directory = Files.createTempDirectory("movielens").toFile();
+		File datastore = new File(directory, "datastore.bin");
+		try
+		{
+			Files.write(new File(directory, "movies.dat").toPath(), ("1::Toy Story (1995)::Animation\n"
+					+ "2::Jumanji (1995)::Adventure\n4::Waiting to Exhale (1995)::Comedy\n").getBytes("UTF-8"));
+			Files.write(new File(directory, "ratings.dat").toPath(), ("1::1::5::978300760\n1::4::3::978302109\n"
+					+ "2::4::4::978301968\n").getBytes("UTF-8"));
+			RecommenderAPI imported = new RecommenderAPI(new BinarySerializer(datastore));
+			imported.loadRawData(directory);
+			assertEquals(3, imported.getMovies().size());
+
+			Movie movie = imported.addMovie("The Godfather", 1972, "http://www.imdb.com/title/tt0068646/");
+			assertEquals(5L, movie.movieId);
+			assertEquals(4, imported.getMovies().size());
+			assertEquals("Waiting to Exhale (1995)", imported.getMovieById(4L).title);
+			assertEquals(2, imported.getMovieById(4L).userRatings.size());
+		}
+		finally
+		{
+			for (File file: directory.listFiles())
+			{
+				file.delete();
+			}
+			directory.delete();
+		}
+	}
+
 	/**
 	 * Test if multiple movies can be added and stored 
 	 */
@@ -186,6 +244,153 @@ public class RecommenderAPITest
 
 	}
 
+	/**
+	 * Test that the leaderboard follows new ratings, movies and removed users
+	 */
+	@Test
+	public void testLeaderboard()
+	{
+		List<Movie> all = recommender.getTopMovies(Integer.MAX_VALUE);
+		assertEquals(moviesFixtures.length, all.size());
+		for (int i = 1; i < all.size(); i++)
+		{
+			assertTrue(all.get(i - 1).getAverageRating() >= all.get(i).getAverageRating());
+			assertEquals(i, recommender.getMovieRank(all.get(i - 1).movieId));
+		}
+		assertEquals(3, recommender.getTopMovies(3).size());
+		assertEquals(-1, recommender.getMovieRank(-5000L));
+
+		Movie last = all.get(all.size() - 1);
+		for (User user: recommender.getUsers().values())
+		{
+			recommender.addRating(user.userId, last.movieId, 5);
+		}
+		assertEquals(1, recommender.getMovieRank(last.movieId));
+		assertEquals(last, recommender.getTopMovies(1).get(0));
+
+		Movie godfather = recommender.addMovie("The Godfather", 1972, "http://www.imdb.com/title/tt0068646/");
+		assertEquals(moviesFixtures.length + 1, recommender.getTopMovies(Integer.MAX_VALUE).size());
+		assertTrue(recommender.getMovieRank(godfather.movieId) > 1);
+
+		for (User user: recommender.getUsers().values().toArray(new User[0]))
+		{
+			recommender.removeUser(user.userId);
+		}
+		for (Movie movie: recommender.getTopMovies(Integer.MAX_VALUE))
+		{
+			assertEquals(0.0, movie.getAverageRating(), 0.001);
+		}
+		assertEquals(1, recommender.getMovieRank(moviesFixtures[0].movieId)); //Ties are ordered by id
+	}
+
+	/**
+	 * Test that the rating matrix holds the same ratings as the users and movies, and is patched after a new rating
+	 * to match one built from scratch
+	 */
+	@Test
+	public void testRatingMatrix()
+	{
+		RatingMatrix matrix = recommender.getRatingMatrix();
+		assertEquals(recommender.getUsers().size(), matrix.userCount());
+		assertEquals(recommender.getMovies().size(), matrix.movieCount());
+
+		int ratingCount = 0;
+		for (User user: recommender.getUsers().values())
+		{
+			int u = matrix.userIndex(user.userId);
+			assertEquals(user.userId, matrix.userIds[u]);
+			assertEquals(user.ratedMovies.size(), matrix.rowSize(u));
+			for (Rating rating: user.ratedMovies.values())
+			{
+				assertEquals((int) rating.rating, matrix.get(u, matrix.movieIndex(rating.movieId)));
+			}
+			ratingCount += user.ratedMovies.size();
+		}
+		assertEquals(ratingCount, matrix.size());
+
+		for (Movie movie: recommender.getMovies().values())
+		{
+			int m = matrix.movieIndex(movie.movieId);
+			assertEquals(movie.userRatings.size(), matrix.columnSize(m));
+			assertEquals(movie.getAverageRating(), matrix.averageRating(m), 0.001);
+			for (int i = matrix.colStart[m] + 1; i < matrix.colStart[m + 1]; i++)
+			{
+				assertTrue(matrix.colUsers[i - 1] < matrix.colUsers[i]);
+			}
+		}
+		assertEquals(-1, matrix.userIndex(-5000L));
+
+		long userId = usersFixtures[0].userId;
+		long movieId = moviesFixtures[9].movieId;
+		assertSame(matrix, recommender.getRatingMatrix());
+		recommender.addRating(userId, movieId, -5);
+		recommender.addRating(usersFixtures[3].userId, moviesFixtures[8].movieId, 4); //A longer row
+		RatingMatrix patched = recommender.getRatingMatrix();
+		assertEquals(-5, patched.get(patched.userIndex(userId), patched.movieIndex(movieId)));
+		assertEquals(matrix.version + 1, patched.version);
+		assertArrayEquals(new int[] {patched.userIndex(userId), patched.userIndex(usersFixtures[3].userId)}, patched.changedSince(matrix));
+		assertEquals(0, patched.changedSince(patched).length);
+		assertNull(matrix.changedSince(new RatingMatrix(recommender.getUsers().values(), recommender.getMovies().values())));
+
+		RatingMatrix built = new RatingMatrix(recommender.getUsers().values(), recommender.getMovies().values());
+		assertArrayEquals(built.rowStart, patched.rowStart);
+		assertArrayEquals(built.rowMovies, patched.rowMovies);
+		assertArrayEquals(built.rowRatings, patched.rowRatings);
+		assertArrayEquals(built.colStart, patched.colStart);
+		assertArrayEquals(built.colUsers, patched.colUsers);
+		assertArrayEquals(built.colRatings, patched.colRatings);
+		assertArrayEquals(built.userMeans, patched.userMeans, 0.0);
+		assertArrayEquals(built.userSumsOfSquares, patched.userSumsOfSquares, 0.0);
+		assertArrayEquals(built.movieMeans, patched.movieMeans, 0.0);
+	}
+
+	/**
+	 * Test that the hash index, the dense scorer and the k-NN recommender carried over to a patched rating matrix
+	 * match ones built from it
+	 */
+	@Test
+	public void testPatchedScorers()
+	{
+		RatingMatrix matrix = recommender.getRatingMatrix();
+		LshIndex index = new LshIndex(matrix, SimilarityMeasure.PEARSON, 4, 2);
+		DenseRatingScorer dense = new DenseRatingScorer(matrix, SimilarityMeasure.PEARSON);
+		recommender.addRating(usersFixtures[0].userId, moviesFixtures[9].movieId, -5);
+		recommender.addRating(usersFixtures[3].userId, moviesFixtures[8].movieId, 4);
+		RatingMatrix patched = recommender.getRatingMatrix();
+
+		LshIndex updated = new LshIndex(index, patched);
+		LshIndex built = new LshIndex(patched, SimilarityMeasure.PEARSON, 4, 2);
+		assertTrue(dense.update(patched));
+		DenseRatingScorer denseBuilt = new DenseRatingScorer(patched, SimilarityMeasure.PEARSON);
+		int[] candidates = new int[patched.userCount()], expected = new int[patched.userCount()];
+		for (int u = 0; u < patched.userCount(); u++)
+		{
+			int count = updated.candidates(u, candidates);
+			assertEquals(built.candidates(u, expected), count);
+			assertArrayEquals(Arrays.copyOf(expected, count), Arrays.copyOf(candidates, count));
+			for (int v = 0; v < patched.userCount(); v++)
+			{
+				assertEquals(denseBuilt.score(u, v), dense.score(u, v), 0.0);
+			}
+		}
+
+		DenseRatingScorer adjusted = new DenseRatingScorer(matrix, SimilarityMeasure.ADJUSTED_COSINE);
+		assertFalse(adjusted.update(patched)); //Every rater of a movie whose mean moved changed
+		assertSame(matrix, adjusted.getMatrix());
+
+		//The API keeps its k-NN recommender, which follows the patched matrix
+		long userId = usersFixtures[1].userId;
+		recommender.getUserRecommendations(userId, 2, 5);
+		Object knn = recommender.knnRecommender;
+		recommender.addRating(usersFixtures[4].userId, moviesFixtures[5].movieId, 5);
+		List<Movie> recommended = recommender.getUserRecommendations(userId, 2, 5);
+		assertSame(knn, recommender.knnRecommender);
+		RecommenderAPI direct = new RecommenderAPI();
+		direct.users = recommender.users;
+		direct.movies = recommender.movies;
+		assertEquals(direct.getUserRecommendations(userId, 2, 5), recommended);
+	}
+
 	/**
 	 * Test that the movie recommendations are as predicted 
 	 */
@@ -201,6 +406,784 @@ public class RecommenderAPITest
 
 	}
 
+	/**
+	 * Test the k nearest neighbour recommendations against a direct calculation over the rating maps
+	 */
+	@Test
+	public void testKnnRecommendations()
+	{
+		for (User user: recommender.getUsers().values())
+		{
+			for (int k = 1; k <= 3; k++)
+			{
+				List<Movie> recommendedMovies = recommender.getUserRecommendations(user.userId, k, 3);
+				if (user.ratedMovies.isEmpty())
+				{
+					assertNull(recommendedMovies);
+					continue;
+				}
+
+				//Neighbours: highest positive dot product first, then lowest id
+				List<User> neighbours = new ArrayList<>();
+				Map<Long, Integer> similarity = new HashMap<>();
+				for (User other: recommender.getUsers().values())
+				{
+					int dot = 0;
+					for (Rating rating: other.ratedMovies.values())
+					{
+						Rating own = user.ratedMovies.get(rating.movieId);
+						dot += own == null ? 0 : own.rating * rating.rating;
+					}
+					if (other != user && dot > 0)
+					{
+						neighbours.add(other);
+						similarity.put(other.userId, dot);
+					}
+				}
+				neighbours.sort((a, b) -> similarity.get(a.userId) != similarity.get(b.userId).intValue()
+						? similarity.get(b.userId) - similarity.get(a.userId) : Long.compare(a.userId, b.userId));
+
+				Map<Long, Double> scores = new HashMap<>();
+				for (User neighbour: neighbours.subList(0, Math.min(k, neighbours.size())))
+				{
+					for (Rating rating: neighbour.ratedMovies.values())
+					{
+						if (!user.ratedMovies.containsKey(rating.movieId))
+						{
+							scores.merge(rating.movieId, (double) similarity.get(neighbour.userId) * rating.rating, Double::sum);
+						}
+					}
+				}
+				List<Long> expected = new ArrayList<>();
+				for (Map.Entry<Long, Double> score: scores.entrySet())
+				{
+					if (score.getValue() > 0)
+					{
+						expected.add(score.getKey());
+					}
+				}
+				expected.sort((a, b) -> !scores.get(a).equals(scores.get(b)) ? Double.compare(scores.get(b), scores.get(a)) : Long.compare(a, b));
+
+				assertEquals(Math.min(3, expected.size()), recommendedMovies.size());
+				for (int i = 0; i < recommendedMovies.size(); i++)
+				{
+					assertEquals((long) expected.get(i), recommendedMovies.get(i).movieId);
+				}
+			}
+		}
+
+		recommender.setKnnMode(2, 1);
+		User user = recommender.getUserById(usersFixtures[2].userId);
+		assertEquals(recommender.getUserRecommendations(user.userId, 2, 1), recommender.getUserRecommendations(user.userId));
+	}
+
+	/**
+	 * Test that recommendations from the neighbourhood index match those computed directly, including after
+	 * the index is repaired for new ratings and removed users
+	 * @throws Exception
+	 */
+	@Test
+	public void testNeighbourhoodIndex() throws Exception
+	{
+		Map<Long, List<Movie>> expected = new HashMap<>();
+		for (User user: recommender.getUsers().values())
+		{
+			expected.put(user.userId, recommender.getUserRecommendations(user.userId, 2, 5));
+		}
+		recommender.enableNeighbourhoodIndex(3);
+		for (User user: recommender.getUsers().values())
+		{
+			assertEquals(expected.get(user.userId), recommender.getUserRecommendations(user.userId, 2, 5));
+		}
+
+		recommender.addRating(usersFixtures[0].userId, moviesFixtures[9].movieId, 5);
+		recommender.addRating(usersFixtures[1].userId, moviesFixtures[9].movieId, 5);
+		recommender.removeUser(usersFixtures[4].userId);
+		recommender.neighbourhoodIndex.repair(recommender::getRatingMatrix).get(); //Runs after the earlier repairs
+		assertEquals(0, recommender.neighbourhoodIndex.dirtyCount());
+		assertNull(recommender.neighbourhoodIndex.get(usersFixtures[4].userId));
+
+		RecommenderAPI direct = new RecommenderAPI();
+		direct.users = recommender.users;
+		direct.movies = recommender.movies;
+		for (User user: recommender.getUsers().values())
+		{
+			assertEquals(direct.getUserRecommendations(user.userId, 2, 5), recommender.getUserRecommendations(user.userId, 2, 5));
+		}
+	}
+
+	/**
+	 * Test that a rating added while a repair is taking its snapshot of the ratings is not lost, so the repaired
+	 * index matches one built from scratch
+	 * @throws Exception
+	 */
+	@Test
+	public void testNeighbourhoodRepairInterleaving() throws Exception
+	{
+		recommender.enableNeighbourhoodIndex(3);
+		NeighbourhoodIndex index = recommender.neighbourhoodIndex;
+		CountDownLatch snapshotTaken = new CountDownLatch(1), release = new CountDownLatch(1);
+		index.markDirty(Arrays.asList(usersFixtures[0].userId));
+		Future<?> slow = index.repair(() ->
+		{
+			RatingMatrix matrix = recommender.getRatingMatrix();
+			snapshotTaken.countDown();
+			try
+			{
+				release.await();
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+			return matrix;
+		});
+		snapshotTaken.await();
+		recommender.addRating(usersFixtures[3].userId, moviesFixtures[8].movieId, 5); //Changes users 1, 4 and 5
+		release.countDown();
+		slow.get();
+		recommender.neighbourhoodIndex.repair(recommender::getRatingMatrix).get();
+
+		NeighbourhoodIndex fresh = new NeighbourhoodIndex(3);
+		fresh.build(recommender.getRatingMatrix());
+		for (User user: recommender.getUsers().values())
+		{
+			assertArrayEquals(fresh.get(user.userId).userIds, index.get(user.userId).userIds);
+			assertArrayEquals(fresh.get(user.userId).weights, index.get(user.userId).weights, 0.0);
+		}
+		fresh.close();
+	}
+
+	/**
+	 * Test that a result computed from neighbours the index has yet to repair is not cached past the repair
+	 * @throws Exception
+	 */
+	@Test
+	public void testRecommendationCacheRepair() throws Exception
+	{
+		recommender.setKnnMode(2, 5);
+		recommender.enableNeighbourhoodIndex(3);
+		recommender.enableRecommendationCache(10);
+		NeighbourhoodIndex index = recommender.neighbourhoodIndex;
+		long userId = usersFixtures[0].userId;
+		recommender.getUserRecommendations(userId);
+
+		//Holds the repair thread, so the repair for the rating waits behind it
+		CountDownLatch started = new CountDownLatch(1), release = new CountDownLatch(1);
+		index.markDirty(Arrays.asList(usersFixtures[2].userId));
+		Future<?> held = index.repair(() ->
+		{
+			started.countDown();
+			try
+			{
+				release.await();
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+			return recommender.getRatingMatrix();
+		});
+		started.await();
+		recommender.addRating(userId, moviesFixtures[0].movieId, -5); //Moves the user to different neighbours
+		assertTrue(index.isStale(userId));
+		List<Movie> beforeRepair = recommender.getUserRecommendations(userId);
+		release.countDown();
+		held.get();
+		index.repair(recommender::getRatingMatrix).get();
+		assertFalse(index.isStale(userId));
+
+		RecommenderAPI direct = new RecommenderAPI();
+		direct.users = recommender.users;
+		direct.movies = recommender.movies;
+		List<Movie> expected = direct.getUserRecommendations(userId, 2, 5);
+		assertNotEquals(expected, beforeRepair);
+		assertEquals(expected, recommender.getUserRecommendations(userId));
+		assertEquals(expected, recommender.getUserRecommendations(userId)); //Now cached
+	}
+
+	/**
+	 * Test each similarity measure against a direct calculation, and that the neighbourhood index follows the
+	 * chosen measure
+	 * @throws Exception
+	 */
+	@Test
+	public void testSimilarityMeasures() throws Exception
+	{
+		recommender.addRating(usersFixtures[0].userId, moviesFixtures[9].movieId, -3); //A user with varied ratings
+		RatingMatrix matrix = recommender.getRatingMatrix();
+		for (SimilarityMeasure measure: SimilarityMeasure.values())
+		{
+			UserSimilarityScorer scorer = new UserSimilarityScorer(matrix, measure);
+			for (User user: recommender.getUsers().values())
+			{
+				int u = matrix.userIndex(user.userId);
+				scorer.scoreAll(u);
+				for (User other: recommender.getUsers().values())
+				{
+					if (other == user)
+					{
+						continue;
+					}
+					double dot = 0, norm = 0, otherNorm = 0;
+					for (Rating rating: user.ratedMovies.values())
+					{
+						double value = value(measure, user, rating);
+						norm += value * value;
+						Rating otherRating = other.ratedMovies.get(rating.movieId);
+						dot += otherRating == null ? 0 : value * value(measure, other, otherRating);
+					}
+					for (Rating rating: other.ratedMovies.values())
+					{
+						otherNorm += value(measure, other, rating) * value(measure, other, rating);
+					}
+					double expected = measure == SimilarityMeasure.DOT ? dot : norm * otherNorm > 0 ? dot / Math.sqrt(norm * otherNorm) : 0;
+					assertEquals(measure + " " + user.userId + " " + other.userId, expected, scorer.score(matrix.userIndex(other.userId)), 0.0001);
+				}
+			}
+		}
+
+		recommender.setSimilarityMeasure(SimilarityMeasure.PEARSON);
+		Map<Long, List<Movie>> expected = new HashMap<>();
+		for (User user: recommender.getUsers().values())
+		{
+			expected.put(user.userId, recommender.getUserRecommendations(user.userId, 2, 5));
+		}
+		recommender.enableNeighbourhoodIndex(3);
+		recommender.setSimilarityMeasure(SimilarityMeasure.COSINE);
+		recommender.setSimilarityMeasure(SimilarityMeasure.PEARSON);
+		assertEquals(SimilarityMeasure.PEARSON, recommender.neighbourhoodIndex.getMeasure());
+		for (User user: recommender.getUsers().values())
+		{
+			assertEquals(expected.get(user.userId), recommender.getUserRecommendations(user.userId, 2, 5));
+		}
+	}
+
+	/**
+	 * Test that after ratings are added under measures whose vectors depend on more than the co-rated movie, the
+	 * repaired neighbourhood index matches one built from scratch and recommendations match a direct computation
+	 * @throws Exception
+	 */
+	@Test
+	public void testNeighbourhoodRepairMeasures() throws Exception
+	{
+		SimilarityMeasure[] measures = {SimilarityMeasure.PEARSON, SimilarityMeasure.ADJUSTED_COSINE};
+		for (int i = 0; i < measures.length; i++)
+		{
+			recommender.setSimilarityMeasure(measures[i]);
+			recommender.enableNeighbourhoodIndex(3);
+			recommender.addRating(usersFixtures[0].userId, moviesFixtures[4].movieId, i == 0 ? 1 : 5); //Moves user 2, who did not rate the movie
+			recommender.neighbourhoodIndex.repair(recommender::getRatingMatrix).get();
+
+			NeighbourhoodIndex fresh = new NeighbourhoodIndex(3, measures[i]);
+			fresh.build(recommender.getRatingMatrix());
+			RecommenderAPI direct = new RecommenderAPI();
+			direct.users = recommender.users;
+			direct.movies = recommender.movies;
+			direct.setSimilarityMeasure(measures[i]);
+			for (User user: recommender.getUsers().values())
+			{
+				NeighbourhoodIndex.Neighbours repaired = recommender.neighbourhoodIndex.get(user.userId);
+				assertArrayEquals(measures[i] + " " + user.userId, fresh.get(user.userId).weights, repaired.weights, 1e-9);
+				assertArrayEquals(fresh.get(user.userId).userIds, repaired.userIds);
+				assertEquals(direct.getUserRecommendations(user.userId, 2, 5), recommender.getUserRecommendations(user.userId, 2, 5));
+			}
+			fresh.close();
+		}
+	}
+
+	/**
+	 * The value of a rating in a user's vector under a similarity measure
+	 */
+	private double value(SimilarityMeasure measure, User user, Rating rating)
+	{
+		switch (measure)
+		{
+		case PEARSON:
+			return rating.rating - user.getRatingMean();
+		case ADJUSTED_COSINE:
+			return rating.rating - recommender.getMovieById(rating.movieId).getAverageRating();
+		default:
+			return rating.rating;
+		}
+	}
+
+	/**
+	 * The dot product of two users' ratings, probing the second user's row for each movie of the first
+	 */
+	private int dot(RatingMatrix matrix, int u, int v)
+	{
+		int dot = 0;
+		for (int i = matrix.rowStart[u]; i < matrix.rowStart[u + 1]; i++)
+		{
+			dot += matrix.rowRatings[i] * matrix.get(v, matrix.rowMovies[i]);
+		}
+		return dot;
+	}
+
+	/**
+	 * Test that hashed candidate neighbours are symmetric and scored exactly, and that with many single row
+	 * bands every user at an acute angle is found so the recommendations match the exact search
+	 * @throws Exception
+	 */
+	@Test
+	public void testLshRecommendations() throws Exception
+	{
+		RatingMatrix matrix = recommender.getRatingMatrix();
+		LshIndex index = new LshIndex(matrix, 2, 4);
+		int[] candidates = new int[matrix.userCount()];
+		int[] others = new int[matrix.userCount()];
+		int[] neighbours = new int[matrix.userCount()];
+		double[] weights = new double[matrix.userCount()];
+		for (int u = 0; u < matrix.userCount(); u++)
+		{
+			int count = index.candidates(u, candidates);
+			List<Integer> found = new ArrayList<>();
+			for (int i = 0; i < count; i++)
+			{
+				found.add(candidates[i]);
+				assertNotEquals(u, candidates[i]);
+			}
+			for (int v = 0; v < matrix.userCount(); v++)
+			{
+				if (v != u)
+				{
+					int otherCount = index.candidates(v, others);
+					boolean reverse = false;
+					for (int i = 0; i < otherCount; i++)
+					{
+						reverse |= others[i] == u;
+					}
+					assertEquals(found.contains(v), reverse);
+				}
+			}
+
+			int neighbourCount = index.neighbours(u, neighbours.length, neighbours, weights);
+			for (int i = 0; i < neighbourCount; i++)
+			{
+				assertTrue(found.contains(neighbours[i]));
+				assertEquals(dot(matrix, u, neighbours[i]), weights[i], 0.0);
+				assertTrue(weights[i] > 0 && (i == 0 || weights[i] <= weights[i - 1]));
+			}
+		}
+
+		Map<Long, List<Movie>> expected = new HashMap<>();
+		for (User user: recommender.getUsers().values())
+		{
+			expected.put(user.userId, recommender.getUserRecommendations(user.userId, 2, 5));
+		}
+		recommender.enableLshIndex(64, 1);
+		for (User user: recommender.getUsers().values())
+		{
+			assertEquals(expected.get(user.userId), recommender.getUserRecommendations(user.userId, 2, 5));
+		}
+	}
+
+	/**
+	 * Test that dense scoring finds the same neighbours and recommendations as the sparse scorers
+	 */
+	@Test
+	public void testDenseScoring()
+	{
+		RatingMatrix matrix = recommender.getRatingMatrix();
+		DenseRatingScorer dense = new DenseRatingScorer(matrix);
+		UserSimilarityScorer sparse = new UserSimilarityScorer(matrix);
+		for (int u = 0; u < matrix.userCount(); u++)
+		{
+			assertEquals(sparse.mostSimilar(u), dense.mostSimilar(u));
+			for (int v = 0; v < matrix.userCount(); v++)
+			{
+				assertEquals(dot(matrix, u, v), dense.score(u, v), 0.0);
+			}
+		}
+
+		Map<Long, List<Movie>> expected = new HashMap<>(), expectedKnn = new HashMap<>();
+		for (User user: recommender.getUsers().values())
+		{
+			expected.put(user.userId, recommender.getUserRecommendations(user.userId));
+			expectedKnn.put(user.userId, recommender.getUserRecommendations(user.userId, 2, 5));
+		}
+		recommender.setDenseScoring(true);
+		assertTrue(DenseRatingScorer.paysOff(matrix));
+		for (User user: recommender.getUsers().values())
+		{
+			assertEquals(expected.get(user.userId), recommender.getUserRecommendations(user.userId));
+			assertEquals(expectedKnn.get(user.userId), recommender.getUserRecommendations(user.userId, 2, 5));
+		}
+		assertNotNull(recommender.denseScorer);
+
+		//Users who rate a single movie each leave the rows too sparse, so the sparse scorers are kept
+		User sparseUser = recommender.getUserById(usersFixtures[0].userId);
+		List<Movie> sparseMovies = new ArrayList<>();
+		for (long movieId = 1; movieId <= 100; movieId++)
+		{
+			sparseMovies.add(new Movie(movieId, "Movie " + movieId, 1995, ""));
+		}
+		assertFalse(DenseRatingScorer.paysOff(new RatingMatrix(Arrays.asList(sparseUser), sparseMovies)));
+	}
+
+	/**
+	 * Test the MinHash estimates, and that recommendations from the signature candidates match the exact ones
+	 * when every co-rater can be a candidate, including after the signatures are updated for a new rating
+	 */
+	@Test
+	public void testMinHashRecommendations()
+	{
+		MinHashIndex index = new MinHashIndex(256);
+		User[] raters = new User[3];
+		for (int i = 0; i < raters.length; i++)
+		{
+			raters[i] = new User(i + 1, "first", "last", 30, 'F', "writer", "user" + i, "secret");
+			index.add(raters[i]);
+		}
+		for (long movieId = 1; movieId <= 100; movieId++)
+		{
+			long[] rated = {movieId, movieId + 50, movieId + 1000}; //Overlap of 50 between the first two
+			for (int i = 0; i < raters.length; i++)
+			{
+				raters[i].addRatedMovies(rated[i], new Rating(raters[i].userId, rated[i], 3));
+				index.add(raters[i], rated[i]);
+			}
+		}
+		assertEquals(1.0 / 3, index.jaccard(1L, 2L), 0.1);
+		assertEquals(50, index.overlap(1L, 2L), 12);
+		assertEquals(0.0, index.jaccard(1L, 3L), 0.0);
+		long[] candidateIds = new long[2];
+		double[] estimates = new double[2];
+		assertEquals(1, index.candidates(1L, 2, candidateIds, estimates));
+		assertEquals(2L, candidateIds[0]);
+		assertEquals(index.overlap(1L, 2L), estimates[0], 0.0);
+		index.remove(2L);
+		assertEquals(0, index.candidates(1L, 2, candidateIds, estimates));
+
+		Map<Long, List<Movie>> expected = new HashMap<>();
+		for (User user: recommender.getUsers().values())
+		{
+			expected.put(user.userId, recommender.getUserRecommendations(user.userId, 2, 5));
+		}
+		recommender.enableMinHashIndex(256, recommender.getUsers().size());
+		for (User user: recommender.getUsers().values())
+		{
+			assertEquals(expected.get(user.userId), recommender.getUserRecommendations(user.userId, 2, 5));
+		}
+
+		User user = recommender.getUserById(usersFixtures[0].userId);
+		for (Movie movie: recommender.getMovies().values())
+		{
+			if (!user.ratedMovies.containsKey(movie.movieId))
+			{
+				recommender.addRating(user.userId, movie.movieId, 5);
+				break;
+			}
+		}
+		for (User other: recommender.getUsers().values())
+		{
+			expected.put(other.userId, recommender.getUserRecommendations(other.userId, 2, 5));
+		}
+		recommender.enableMinHashIndex(0, 0);
+		for (User other: recommender.getUsers().values())
+		{
+			assertEquals(expected.get(other.userId), recommender.getUserRecommendations(other.userId, 2, 5));
+		}
+	}
+
+	/**
+	 * Test that users with no ratings get the cold-start list of all users, or of their own segment once it has
+	 * enough raters, and that the lists follow new ratings
+	 * @throws Exception
+	 */
+	@Test
+	public void testColdStartLists() throws Exception
+	{
+		User cold = recommender.addUser("Cold", "Start", 99, 'N', "astronaut", "cold", "secret");
+		assertNull(recommender.getUserRecommendations(cold.userId));
+
+		recommender.enableColdStartLists(3);
+		assertEquals(topRated(user -> true, 3), recommender.getUserRecommendations(cold.userId));
+		assertEquals(topRated(user -> true, 2), recommender.getUserRecommendations(cold.userId, 2, 2));
+
+		//Enough astronauts to trust their segment, all fond of a movie everybody else dislikes
+		for (int i = 0; i < 10; i++)
+		{
+			User astronaut = recommender.addUser("Space", "Cadet", 99, 'N', "Astronaut", "astronaut" + i, "secret");
+			recommender.addRating(astronaut.userId, 9L, 5);
+		}
+		recommender.addRating(usersFixtures[0].userId, 1L, 5); //Overwrites a rating in the list of all users
+		recommender.coldStartLists.rebuild().get();
+		assertEquals(topRated(user -> "astronaut".equalsIgnoreCase(user.occupation), 3),
+				recommender.getUserRecommendations(cold.userId));
+		User other = recommender.addUser("Also", "Cold", 30, 'F', "writer", "alsocold", "secret");
+		assertEquals(topRated(user -> true, 3), recommender.getUserRecommendations(other.userId));
+
+		recommender.removeUser(usersFixtures[0].userId);
+		recommender.coldStartLists.rebuild().get();
+		assertEquals(topRated(user -> true, 3), recommender.getUserRecommendations(other.userId));
+		recommender.enableColdStartLists(0);
+		assertNull(recommender.getUserRecommendations(cold.userId));
+	}
+
+	/**
+	 * @return The n movies with the highest positive total rating from the users, ties by lowest id
+	 */
+	private List<Movie> topRated(Predicate<User> segment, int n)
+	{
+		Map<Long, Integer> totals = new HashMap<>();
+		for (User user: recommender.getUsers().values())
+		{
+			if (segment.test(user))
+			{
+				for (Rating rating: user.ratedMovies.values())
+				{
+					totals.merge(rating.movieId, rating.rating, Integer::sum);
+				}
+			}
+		}
+		List<Long> movieIds = new ArrayList<>();
+		for (Map.Entry<Long, Integer> total: totals.entrySet())
+		{
+			if (total.getValue() > 0)
+			{
+				movieIds.add(total.getKey());
+			}
+		}
+		movieIds.sort((a, b) -> !totals.get(a).equals(totals.get(b)) ? totals.get(b) - totals.get(a) : Long.compare(a, b));
+		List<Movie> movies = new ArrayList<>();
+		for (long movieId: movieIds.subList(0, Math.min(n, movieIds.size())))
+		{
+			movies.add(recommender.getMovieById(movieId));
+		}
+		return movies;
+	}
+
+	/**
+	 * Test the item similarities against a direct cosine calculation, and that they are read back from their file
+	 * @throws Exception
+	 */
+	@Test
+	public void testItemRecommendations() throws Exception
+	{
+		File file = new File("testdatastore-items.bin");
+		try
+		{
+			recommender.enableItemSimilarities(3, file);
+			assertTrue(file.isFile());
+
+			for (Movie movie: recommender.getMovies().values())
+			{
+				long[] similar = recommender.itemSimilarities.getSimilarMovies(movie.movieId);
+				float[] similarities = recommender.itemSimilarities.getSimilarities(movie.movieId);
+				assertTrue(similar.length <= 3);
+				for (int i = 0; i < similar.length; i++)
+				{
+					Movie other = recommender.getMovieById(similar[i]);
+					double dot = 0, norm = 0, otherNorm = 0;
+					for (Rating rating: movie.userRatings.values())
+					{
+						norm += rating.rating * rating.rating;
+						Rating otherRating = other.userRatings.get(rating.userId);
+						dot += otherRating == null ? 0 : rating.rating * otherRating.rating;
+					}
+					for (Rating rating: other.userRatings.values())
+					{
+						otherNorm += rating.rating * rating.rating;
+					}
+					assertEquals(dot / Math.sqrt(norm * otherNorm), similarities[i], 0.0001);
+					assertTrue(i == 0 || similarities[i - 1] >= similarities[i]);
+				}
+			}
+
+			RecommenderAPI reloaded = new RecommenderAPI();
+			reloaded.users = recommender.users;
+			reloaded.movies = recommender.movies;
+			reloaded.enableItemSimilarities(3, file);
+			for (User user: recommender.getUsers().values())
+			{
+				List<Movie> recommendedMovies = recommender.getItemRecommendations(user.userId, 5);
+				assertEquals(recommendedMovies, reloaded.getItemRecommendations(user.userId, 5));
+				if (recommendedMovies != null)
+				{
+					for (Movie movie: recommendedMovies)
+					{
+						assertFalse(user.ratedMovies.containsKey(movie.movieId));
+					}
+				}
+			}
+
+			//A new rating makes the saved table stale, so it is computed again on load, and rebuilt in the background
+			recommender.addRating(usersFixtures[0].userId, moviesFixtures[9].movieId, -5);
+			ItemSimilarityTable built = ItemSimilarityTable.build(recommender.getRatingMatrix(), 3);
+			RecommenderAPI stale = new RecommenderAPI();
+			stale.users = recommender.users;
+			stale.movies = recommender.movies;
+			stale.enableItemSimilarities(3, file);
+			recommender.rebuildItemSimilarities().get();
+			for (Movie movie: recommender.getMovies().values())
+			{
+				assertArrayEquals(built.getSimilarities(movie.movieId), stale.itemSimilarities.getSimilarities(movie.movieId), 0f);
+				assertArrayEquals(built.getSimilarities(movie.movieId), recommender.itemSimilarities.getSimilarities(movie.movieId), 0f);
+			}
+			assertTrue(ItemSimilarityTable.load(file).isCurrent(recommender.getRatingMatrix()));
+
+			//A torn file is rebuilt rather than failing the load, and a corrupt header is rejected before it sizes anything
+			byte[] saved = Files.readAllBytes(file.toPath());
+			Files.write(file.toPath(), Arrays.copyOf(saved, saved.length / 2));
+			RecommenderAPI torn = new RecommenderAPI();
+			torn.users = recommender.users;
+			torn.movies = recommender.movies;
+			torn.enableItemSimilarities(3, file);
+			for (Movie movie: recommender.getMovies().values())
+			{
+				assertArrayEquals(built.getSimilarities(movie.movieId), torn.itemSimilarities.getSimilarities(movie.movieId), 0f);
+			}
+			assertTrue(ItemSimilarityTable.load(file).isCurrent(recommender.getRatingMatrix()));
+			ByteBuffer.wrap(saved).putInt(20, Integer.MAX_VALUE); //Movie count
+			Files.write(file.toPath(), saved);
+			try
+			{
+				ItemSimilarityTable.load(file);
+				fail("Corrupt header accepted");
+			}
+			catch (IOException e)
+			{
+			}
+			assertFalse(new File(file.getPath() + ".tmp").exists());
+		}
+		finally
+		{
+			file.delete();
+		}
+	}
+
+	/**
+	 * Test that the batch file holds the same recommendations as single user calls, for all users and for a range
+	 * @throws Exception
+	 */
+	@Test
+	public void testBatchRecommendations() throws Exception
+	{
+		File file = new File("testrecommendations.bin");
+		try
+		{
+			String report = recommender.writeRecommendations(file, 2, 3);
+			assertTrue(report.contains(recommender.getUsers().size() + " users"));
+			Map<Long, long[]> batch = BatchRecommender.read(file);
+			assertEquals(recommender.getUsers().size(), batch.size());
+			for (User user: recommender.getUsers().values())
+			{
+				List<Movie> expected = recommender.getUserRecommendations(user.userId, 2, 3);
+				long[] movieIds = batch.get(user.userId);
+				assertEquals(expected == null ? 0 : expected.size(), movieIds.length);
+				for (int i = 0; i < movieIds.length; i++)
+				{
+					assertEquals(expected.get(i).movieId, movieIds[i]);
+				}
+			}
+
+			recommender.writeRecommendations(file, 2, 3, usersFixtures[1].userId, usersFixtures[3].userId);
+			batch = BatchRecommender.read(file);
+			assertEquals(3, batch.size());
+			for (int i = 1; i <= 3; i++)
+			{
+				assertTrue(batch.containsKey(usersFixtures[i].userId));
+			}
+		}
+		finally
+		{
+			file.delete();
+		}
+	}
+
+	/**
+	 * Test that cached recommendations are served until the user or a neighbour rates a movie or is removed, and
+	 * that the least recently used user is evicted
+	 */
+	@Test
+	public void testRecommendationCache()
+	{
+		recommender.setKnnMode(2, 5);
+		recommender.enableRecommendationCache(2);
+		RecommendationCache<List<Movie>> cache = recommender.getRecommendationCache();
+		User user = recommender.getUserById(usersFixtures[0].userId);
+		List<Movie> first = recommender.getUserRecommendations(user.userId);
+		assertEquals(first, recommender.getUserRecommendations(user.userId));
+		assertEquals(1, cache.getHits());
+		assertEquals(1, cache.getMisses());
+
+		RatingMatrix matrix = recommender.getRatingMatrix();
+		int[] neighbours = new int[2];
+		int count = new UserSimilarityScorer(matrix).neighbours(matrix.userIndex(user.userId), 2, neighbours, null);
+		assertTrue(count > 0);
+		long neighbourId = matrix.userIds[neighbours[0]];
+		long otherId = -1;
+		for (long id: matrix.userIds)
+		{
+			if (id != user.userId && id != neighbourId && (count < 2 || id != matrix.userIds[neighbours[1]]))
+			{
+				otherId = id;
+			}
+		}
+
+		//Removing a user who is not a neighbour keeps the result, removing a neighbour drops it
+		recommender.removeUser(otherId);
+		assertEquals(first, recommender.getUserRecommendations(user.userId));
+		assertEquals(2, cache.getHits());
+		recommender.removeUser(neighbourId);
+		assertEquals(0, cache.size());
+		assertEquals(recommender.getUserRecommendations(user.userId, 2, 5), recommender.getUserRecommendations(user.userId));
+		assertEquals(2, cache.getHits());
+
+		long misses = cache.getMisses();
+		recommender.addRating(user.userId, moviesFixtures[9].movieId, 5);
+		assertEquals(recommender.getUserRecommendations(user.userId, 2, 5), recommender.getUserRecommendations(user.userId));
+		assertEquals(misses + 1, cache.getMisses());
+
+		//A user who becomes a neighbour by rating the same movies drops the result
+		recommender.getUserRecommendations(user.userId);
+		long newcomerId = -1;
+		for (long id: recommender.getUsers().keySet())
+		{
+			newcomerId = id != user.userId ? Math.max(newcomerId, id) : newcomerId;
+		}
+		for (Rating rating: new ArrayList<>(user.ratedMovies.values()))
+		{
+			recommender.addRating(newcomerId, rating.movieId, rating.rating);
+		}
+		assertEquals(recommender.getUserRecommendations(user.userId, 2, 5), recommender.getUserRecommendations(user.userId));
+
+		for (User other: recommender.getUsers().values())
+		{
+			recommender.getUserRecommendations(other.userId);
+		}
+		assertEquals(2, cache.size());
+		assertTrue(cache.getEvictions() > 0);
+	}
+
+	/**
+	 * Test that training the factor model reduces the error and that it only recommends unrated movies
+	 */
+	@Test
+	public void testFactorRecommendations()
+	{
+		String report = recommender.trainFactorModel(4, 200);
+		assertEquals(200, report.split("\n").length);
+		assertTrue(recommender.factorModel.getRmse() < 1.0);
+
+		for (User user: recommender.getUsers().values())
+		{
+			List<Movie> recommendedMovies = recommender.getFactorRecommendations(user.userId, 3);
+			if (user.ratedMovies.isEmpty())
+			{
+				assertNull(recommendedMovies);
+				continue;
+			}
+			assertEquals(Math.min(3, moviesFixtures.length - user.ratedMovies.size()), recommendedMovies.size());
+			for (Movie movie: recommendedMovies)
+			{
+				assertFalse(user.ratedMovies.containsKey(movie.movieId));
+			}
+		}
+	}
+
 	/**
 	 * Test if the login authenticator system is working
 	 */
@@ -0,0 +1,121 @@
+/**
+ * Compares finding each user's most similar user through the inverted index scorer against the previous
+ * approach of collecting co-raters into a set and walking each co-rater's ratings, on the bundled MovieLens
+ * data. Run as a Java application.
+ */
+package controllers;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import models.Movie;
+import models.Rating;
+import models.User;
+import utils.Parser;
+import utils.RatingMatrix;
+import utils.UserSimilarityScorer;
+
+public class RecommenderBenchmark
+{
+	static final int ITERATIONS = 20;
+
+	public static void main(String[] args) throws Exception
+	{
+		RecommenderAPI recommender = new RecommenderAPI();
+		Parser parser = new Parser();
+		recommender.users = parser.parseUserData("././data/data_movieLens/users.dat");
+		recommender.movies = parser.parseMovieData("././data/data_movieLens/items.dat");
+		recommender.ratings = parser.parseRatingData("././data/data_movieLens/ratings.dat");
+
+		RatingMatrix matrix = recommender.getRatingMatrix();
+		UserSimilarityScorer scorer = new UserSimilarityScorer(matrix);
+
+		//Both must find a user with the same similarity (ties may resolve to different users)
+		for (User user: recommender.users.values())
+		{
+			int best = scorer.mostSimilar(matrix.userIndex(user.userId));
+			long expected = setMostSimilar(recommender, user);
+			long actual = best >= 0 ? matrix.userIds[best] : 0L;
+			if (similarity(recommender, user, expected) != similarity(recommender, user, actual))
+			{
+				throw new Exception("Scorer and set based similarity differ for user " + user.userId);
+			}
+		}
+
+		for (int round = 0; round < 2; round++) //The first round warms up the JIT
+		{
+			long set = 0, index = 0, checksum = 0;
+			for (int i = 0; i < ITERATIONS; i++)
+			{
+				long start = System.nanoTime();
+				for (User user: recommender.users.values())
+				{
+					checksum += setMostSimilar(recommender, user);
+				}
+				set += System.nanoTime() - start;
+
+				start = System.nanoTime();
+				for (int u = 0; u < matrix.userCount(); u++)
+				{
+					checksum += scorer.mostSimilar(u);
+				}
+				index += System.nanoTime() - start;
+			}
+			if (round == 1)
+			{
+				int users = recommender.users.size();
+				System.out.printf("HashSet co-raters: %.1f us per user%n", set / 1e3 / ITERATIONS / users);
+				System.out.printf("Inverted index:    %.1f us per user (checksum %d)%n", index / 1e3 / ITERATIONS / users, checksum);
+			}
+		}
+	}
+
+	/**
+	 * The most similar user as found before the inverted index scorer
+	 */
+	static long setMostSimilar(RecommenderAPI recommender, User currentUser)
+	{
+		Set<Long> targetUsers = new HashSet<>();
+		for (Rating currentUserRating: currentUser.ratedMovies.values())
+		{
+			Movie movie = recommender.getMovieById(currentUserRating.movieId);
+			if (movie.userRatings.size() > 1)
+			{
+				targetUsers.addAll(movie.userRatings.keySet());
+			}
+		}
+		targetUsers.remove(currentUser.userId);
+
+		long mostSimilar = 0L;
+		int totalSimilarity = 0;
+		for (Long targetId: targetUsers)
+		{
+			int currentSimilarity = similarity(recommender, currentUser, targetId);
+			if (currentSimilarity > totalSimilarity)
+			{
+				totalSimilarity = currentSimilarity;
+				mostSimilar = targetId;
+			}
+		}
+		return mostSimilar;
+	}
+
+	static int similarity(RecommenderAPI recommender, User currentUser, long targetId)
+	{
+		User targetUser = recommender.getUserById(targetId);
+		if (targetUser == null)
+		{
+			return 0;
+		}
+		int similarity = 0;
+		for (Rating targetUserRating: targetUser.ratedMovies.values())
+		{
+			Movie movie = recommender.getMovieById(targetUserRating.movieId);
+			if (currentUser.ratedMovies.containsKey(targetUserRating.movieId))
+			{
+				similarity += currentUser.ratedMovies.get(movie.movieId).rating * targetUserRating.rating;
+			}
+		}
+		return similarity;
+	}
+}
@@ -51,4 +51,28 @@ public class MovieTest
 		movie.addUserRatings(3L, new Rating(1, movie.movieId, 5));
 		assertEquals(9.0/3, movie.getAverageRating(), 0.01);
 	}
+
+	/**
+	 * Test that the rating aggregates follow overwritten and removed ratings
+	 */
+	@Test
+	public void testRatingAggregates()
+	{
+		movie.addUserRatings(1L, new Rating(1, movie.movieId, 1));
+		movie.addUserRatings(2L, new Rating(2, movie.movieId, 3));
+		movie.addUserRatings(2L, new Rating(2, movie.movieId, -5)); //Overwrite
+		assertEquals(2, movie.getRatingCount());
+		assertEquals(-4, movie.getRatingSum());
+		assertEquals(-2.0, movie.getAverageRating(), 0.01);
+		assertEquals(9.0, movie.getRatingVariance(), 0.01);
+
+		assertNotNull(movie.removeUserRating(2L));
+		assertNull(movie.removeUserRating(2L));
+		assertEquals(1, movie.getRatingCount());
+		assertEquals(1.0, movie.getAverageRating(), 0.01);
+
+		movie.userRatings.put(3L, new Rating(3, movie.movieId, 5)); //Bypasses the aggregates
+		movie.recalculateAggregates();
+		assertEquals(3.0, movie.getAverageRating(), 0.01);
+	}
 }
@@ -29,4 +29,25 @@ public class UserTest
 		assertEquals("IAmAMenace", user.password);
 	}
 
+	/**
+	 * Test that the rating aggregates follow added and overwritten ratings
+	 */
+	@Test
+	public void testRatingAggregates()
+	{
+		User user = new User(22L, "Bob", "Larkin", 63, 'M', "carpenter", "blarkin", "IAmAMenace");
+		assertEquals(0.0, user.getRatingMean(), 0.01);
+		user.addRatedMovies(1L, new Rating(22L, 1L, 3));
+		user.addRatedMovies(2L, new Rating(22L, 2L, 5));
+		user.addRatedMovies(2L, new Rating(22L, 2L, -5)); //Overwrite
+		assertEquals(2, user.getRatingCount());
+		assertEquals(-2, user.getRatingSum());
+		assertEquals(34, user.getRatingSumOfSquares());
+		assertEquals(-1.0, user.getRatingMean(), 0.01);
+
+		user.ratedMovies.put(3L, new Rating(22L, 3L, 1)); //Bypasses the aggregates
+		user.recalculateAggregates();
+		assertEquals(3, user.getRatingCount());
+		assertEquals(35, user.getRatingSumOfSquares());
+	}
 }
@@ -0,0 +1,47 @@
+package utils;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class DenseKernelsTest
+{
+
+	/**
+	 * Test that the preferred kernels, the vector ones when run with the jdk.incubator.vector module, agree with the
+	 * plain loops, over lengths which do and do not fill the last vector and rows at offsets
+	 */
+	@Test
+	public void testPreferredKernels()
+	{
+		Random random = new Random(42);
+		int[] ratings = new int[4000];
+		float[] values = new float[4000];
+		for (int i = 0; i < ratings.length; i++)
+		{
+			ratings[i] = random.nextInt(4) == 0 ? random.nextInt(11) - 5 : 0;
+			values[i] = ratings[i] - 0.25f;
+		}
+		DenseKernels preferred = DenseKernels.PREFERRED, plain = DenseKernels.SCALAR;
+		for (int length: new int[] {0, 1, 7, 16, 33, 1682})
+		{
+			for (int from: new int[] {0, 5, 2000})
+			{
+				assertEquals(plain.dot(ratings, from, ratings, 100, length), preferred.dot(ratings, from, ratings, 100, length));
+				assertEquals(plain.dot(values, from, values, 100, length), preferred.dot(values, from, values, 100, length),
+						1e-3f * (1 + length));
+
+				float[] expected = new float[length], actual = new float[length];
+				for (int i = 0; i < length; i++)
+				{
+					expected[i] = actual[i] = values[i];
+				}
+				plain.scaleAdd(0.5f, ratings, from, expected, length);
+				preferred.scaleAdd(0.5f, ratings, from, actual, length);
+				assertArrayEquals(expected, actual, 0f);
+			}
+		}
+	}
+}
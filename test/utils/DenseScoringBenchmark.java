@@ -0,0 +1,159 @@
+/**
+ * Compares k-NN recommendations scored over dense rating rows, with the plain and the Vector API kernels, against
+ * the sparse inverted index on the bundled MovieLens data, and each dense kernel on its own. Run as a Java
+ * application with src-vector compiled and --add-modules jdk.incubator.vector to include the vector kernels,
+ * optionally with a directory of a raw MovieLens release to use instead, which falls back to the sparse scorers
+ * alone if it is too large for dense rows.
+ */
+package utils;
+
+import java.io.File;
+import java.util.Map;
+
+import models.Movie;
+import models.User;
+
+public class DenseScoringBenchmark
+{
+	static final int K = 20;
+	static final int N = 10;
+	static final int ITERATIONS = 10;
+
+	public static void main(String[] args) throws Exception
+	{
+		Map<Long, User> users;
+		Map<Long, Movie> movies;
+		if (args.length > 0)
+		{
+			MovieLensImporter importer = new MovieLensImporter();
+			importer.importDirectory(new File(args[0]));
+			users = importer.getUsers();
+			movies = importer.getMovies();
+		}
+		else
+		{
+			Parser parser = new Parser();
+			users = parser.parseUserData("././data/data_movieLens/users.dat");
+			movies = parser.parseMovieData("././data/data_movieLens/items.dat");
+			parser.parseRatingData("././data/data_movieLens/ratings.dat");
+		}
+		RatingMatrix matrix = new RatingMatrix(users.values(), movies.values());
+		System.out.printf("%d users, %d movies, %d ratings%n", matrix.userCount(), matrix.movieCount(), matrix.size());
+
+		DenseKernels vector = DenseKernels.vector();
+		if (vector == null)
+		{
+			System.out.println("Vector kernels not available, timing the plain loops only");
+		}
+		KnnRecommender sparse = new KnnRecommender(matrix);
+		DenseRatingScorer[] dense = {null, null};
+		if (DenseRatingScorer.fits(matrix))
+		{
+			dense[0] = new DenseRatingScorer(matrix, SimilarityMeasure.DOT, DenseKernels.SCALAR);
+			dense[1] = vector != null ? new DenseRatingScorer(matrix, SimilarityMeasure.DOT, vector) : null;
+		}
+		else
+		{
+			System.out.println("Too large for dense rows, timing the sparse scorers only");
+		}
+		int[] neighbours = new int[K];
+		double[] weights = new double[K];
+		int[] recommended = new int[N];
+		String[] scorers = {"Sparse index:", "Dense, plain:", "Dense, vector:"};
+		for (int method = 0; method < scorers.length; method++)
+		{
+			DenseRatingScorer scorer = method > 0 ? dense[method - 1] : null;
+			if (method > 0 && scorer == null)
+			{
+				continue;
+			}
+			long elapsed = 0, checksum = 0;
+			for (int round = 0; round < 2; round++) //The first round warms up the JIT
+			{
+				checksum = 0;
+				long start = System.nanoTime();
+				for (int i = 0; i < ITERATIONS; i++)
+				{
+					for (int u = 0; u < matrix.userCount(); u++)
+					{
+						int count = scorer == null ? sparse.neighbours(u, K, neighbours, weights)
+								: scorer.neighbours(u, K, neighbours, weights);
+						int size = scorer == null ? sparse.recommend(u, neighbours, weights, count, N, recommended)
+								: scorer.recommend(u, neighbours, weights, count, N, recommended);
+						for (int j = 0; j < size; j++)
+						{
+							checksum += recommended[j];
+						}
+					}
+				}
+				elapsed = System.nanoTime() - start;
+			}
+			System.out.printf("%-16s %8.1f us per user (checksum %d)%n", scorers[method],
+					elapsed / 1e3 / ITERATIONS / matrix.userCount(), checksum);
+		}
+
+		//Each kernel alone, over rows of the catalogue's width
+		int width = matrix.movieCount();
+		float[] values = new float[width * 64];
+		int[] ratings = new int[width * 64];
+		for (int i = 0; i < values.length; i++)
+		{
+			ratings[i] = i * 31 % 11 == 0 ? i % 5 + 1 : 0;
+			values[i] = ratings[i];
+		}
+		float[] movieScores = new float[width];
+		String[] kernels = {"Int dot:", "Float dot:", "Scale and add:"};
+		for (int kernel = 0; kernel < kernels.length; kernel++)
+		{
+			double plain = time(DenseKernels.SCALAR, kernel, ratings, values, movieScores, width);
+			if (vector == null)
+			{
+				System.out.printf("%-16s %8.1f ns per row of %d%n", kernels[kernel], plain, width);
+				continue;
+			}
+			double vectorised = time(vector, kernel, ratings, values, movieScores, width);
+			System.out.printf("%-16s %8.1f ns per row of %d plain, %8.1f vector, %.2fx%n", kernels[kernel], plain, width,
+					vectorised, plain / vectorised);
+		}
+	}
+
+	/**
+	 * @return The best time of a round of the kernel over 64 rows, in ns per row
+	 */
+	static double time(DenseKernels kernels, int kernel, int[] ratings, float[] values, float[] movieScores, int width)
+	{
+		long best = Long.MAX_VALUE;
+		double checksum = 0;
+		for (int round = 0; round <= 5; round++) //Round 0 warms up the JIT
+		{
+			long start = System.nanoTime();
+			for (int i = 0; i < ITERATIONS * 100; i++)
+			{
+				for (int r = 0; r < 64; r++)
+				{
+					switch (kernel)
+					{
+					case 0:
+						checksum += kernels.dot(ratings, 0, ratings, r * width, width);
+						break;
+					case 1:
+						checksum += kernels.dot(values, 0, values, r * width, width);
+						break;
+					default:
+						kernels.scaleAdd(0.5f, ratings, r * width, movieScores, width);
+					}
+				}
+			}
+			long elapsed = System.nanoTime() - start;
+			if (round > 0)
+			{
+				best = Math.min(best, elapsed);
+			}
+		}
+		if (checksum == -1) //Keeps the sums live
+		{
+			System.out.println();
+		}
+		return (double) best / ITERATIONS / 100 / 64;
+	}
+}
@@ -0,0 +1,41 @@
+/**
+ * Trains the latent factor model on the full MovieLens data and prints the RMSE and throughput of each
+ * epoch. Run as a Java application, optionally with the rank and number of epochs as arguments.
+ */
+package utils;
+
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+import models.Movie;
+import models.User;
+
+public class FactorizationBenchmark
+{
+	public static void main(String[] args) throws Exception
+	{
+		int rank = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+		int epochs = args.length > 1 ? Integer.parseInt(args[1]) : 30;
+
+		Parser parser = new Parser();
+		Map<Long, User> users = parser.parseUserData("././data/data_movieLens/users.dat");
+		Map<Long, Movie> movies = parser.parseMovieData("././data/data_movieLens/items.dat");
+		parser.parseRatingData("././data/data_movieLens/ratings.dat");
+		RatingMatrix matrix = new RatingMatrix(users.values(), movies.values());
+		ForkJoinPool pool = ForkJoinPool.commonPool(); //Passed to the model, so the parallelism printed is the one used
+
+		for (int round = 0; round < 2; round++) //The first round warms up the JIT
+		{
+			MatrixFactorization model = new MatrixFactorization(rank, epochs);
+			model.setPool(pool);
+			long start = System.nanoTime();
+			model.train(matrix);
+			if (round == 1)
+			{
+				System.out.println(model.report());
+				System.out.printf("Trained rank %d on %d ratings in %.1f ms on %d threads%n", rank, matrix.size(),
+						(System.nanoTime() - start) / 1e6, pool.getParallelism());
+			}
+		}
+	}
+}
@@ -0,0 +1,109 @@
+/**
+ * Compares finding each user's k nearest neighbours through the locality-sensitive hash index against the exact
+ * search over every co-rater, on the bundled MovieLens data. For each band and row setting it reports the
+ * recall of the exact neighbours, the average number of candidates scored and the time per user. Run as a Java
+ * application, optionally with a directory of a raw MovieLens release to use instead.
+ */
+package utils;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import models.Movie;
+import models.User;
+
+public class LshBenchmark
+{
+	static final int K = 20;
+	static final int ITERATIONS = 10;
+	static final int[][] SETTINGS = {{4, 8}, {8, 8}, {16, 8}, {8, 4}, {16, 4}, {32, 4}, {32, 2}};
+
+	public static void main(String[] args) throws Exception
+	{
+		Map<Long, User> users;
+		Map<Long, Movie> movies;
+		if (args.length > 0)
+		{
+			MovieLensImporter importer = new MovieLensImporter();
+			importer.importDirectory(new File(args[0]));
+			users = importer.getUsers();
+			movies = importer.getMovies();
+		}
+		else
+		{
+			Parser parser = new Parser();
+			users = parser.parseUserData("././data/data_movieLens/users.dat");
+			movies = parser.parseMovieData("././data/data_movieLens/items.dat");
+			parser.parseRatingData("././data/data_movieLens/ratings.dat");
+		}
+		RatingMatrix matrix = new RatingMatrix(users.values(), movies.values());
+		int userCount = matrix.userCount();
+
+		UserSimilarityScorer scorer = new UserSimilarityScorer(matrix);
+		int[] neighbours = new int[K];
+		double[] weights = new double[K];
+		long exact = 0;
+		for (int round = 0; round < 2; round++) //The first round warms up the JIT
+		{
+			long start = System.nanoTime();
+			for (int i = 0; i < ITERATIONS; i++)
+			{
+				for (int u = 0; u < userCount; u++)
+				{
+					scorer.neighbours(u, K, neighbours, weights);
+				}
+			}
+			exact = System.nanoTime() - start;
+		}
+		System.out.printf("Exact search:    %6.1f us per user, %d users, k = %d%n", exact / 1e3 / ITERATIONS / userCount, userCount, K);
+
+		int[] candidates = new int[userCount];
+		for (int[] setting: SETTINGS)
+		{
+			int bands = setting[0], rows = setting[1];
+			long build = System.nanoTime();
+			LshIndex index = new LshIndex(matrix, bands, rows);
+			build = System.nanoTime() - build;
+
+			long elapsed = 0;
+			for (int round = 0; round < 2; round++)
+			{
+				long start = System.nanoTime();
+				for (int i = 0; i < ITERATIONS; i++)
+				{
+					for (int u = 0; u < userCount; u++)
+					{
+						index.neighbours(u, K, neighbours, weights);
+					}
+				}
+				elapsed = System.nanoTime() - start;
+			}
+
+			long found = 0, wanted = 0, scored = 0;
+			for (int u = 0; u < userCount; u++)
+			{
+				int count = index.neighbours(u, K, neighbours, weights);
+				Set<Integer> approximate = new HashSet<>();
+				for (int i = 0; i < count; i++)
+				{
+					approximate.add(neighbours[i]);
+				}
+				int exactNeighbours = scorer.neighbours(u, K, neighbours, weights);
+				for (int i = 0; i < exactNeighbours; i++)
+				{
+					if (approximate.contains(neighbours[i]))
+					{
+						found++;
+					}
+				}
+				wanted += exactNeighbours;
+				scored += index.candidates(u, candidates);
+			}
+			System.out.printf("LSH %2d x %d bits: %6.1f us per user, recall %.3f, %.0f candidates per user, built in %.0f ms%n",
+					bands, rows, elapsed / 1e3 / ITERATIONS / userCount, wanted == 0 ? 1.0 : (double) found / wanted,
+					(double) scored / userCount, build / 1e6);
+		}
+	}
+}
@@ -0,0 +1,123 @@
+/**
+ * Compares finding each user's k nearest neighbours by exactly scoring only the users with the most similar
+ * MinHash signatures against the exact search over every co-rater, on the bundled MovieLens data. For each
+ * signature length and number of candidates it reports the recall of the exact neighbours and the time per
+ * user, and the time to build the signatures one rating at a time. Run as a Java application, optionally with a
+ * directory of a raw MovieLens release to use instead.
+ */
+package utils;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import models.Movie;
+import models.User;
+
+public class MinHashBenchmark
+{
+	static final int K = 20;
+	static final int ITERATIONS = 3;
+	static final int[][] SETTINGS = {{32, 100}, {64, 100}, {64, 200}, {128, 200}, {128, 500}};
+
+	public static void main(String[] args) throws Exception
+	{
+		Map<Long, User> users;
+		Map<Long, Movie> movies;
+		if (args.length > 0)
+		{
+			MovieLensImporter importer = new MovieLensImporter();
+			importer.importDirectory(new File(args[0]));
+			users = importer.getUsers();
+			movies = importer.getMovies();
+		}
+		else
+		{
+			Parser parser = new Parser();
+			users = parser.parseUserData("././data/data_movieLens/users.dat");
+			movies = parser.parseMovieData("././data/data_movieLens/items.dat");
+			parser.parseRatingData("././data/data_movieLens/ratings.dat");
+		}
+		RatingMatrix matrix = new RatingMatrix(users.values(), movies.values());
+		int userCount = matrix.userCount();
+
+		UserSimilarityScorer scorer = new UserSimilarityScorer(matrix);
+		int[] neighbours = new int[K];
+		double[] weights = new double[K];
+		long exact = 0;
+		for (int round = 0; round < 2; round++) //The first round warms up the JIT
+		{
+			long start = System.nanoTime();
+			for (int i = 0; i < ITERATIONS; i++)
+			{
+				for (int u = 0; u < userCount; u++)
+				{
+					scorer.neighbours(u, K, neighbours, weights);
+				}
+			}
+			exact = System.nanoTime() - start;
+		}
+		System.out.printf("Exact search:          %8.1f us per user, %d users, k = %d%n", exact / 1e3 / ITERATIONS / userCount, userCount, K);
+
+		for (int[] setting: SETTINGS)
+		{
+			int hashes = setting[0], max = setting[1];
+			long build = System.nanoTime();
+			MinHashIndex index = new MinHashIndex(hashes);
+			for (User user: users.values())
+			{
+				index.add(user);
+			}
+			build = System.nanoTime() - build;
+
+			long[] candidateIds = new long[max];
+			int[] candidates = new int[max];
+			long elapsed = 0;
+			for (int round = 0; round < 2; round++)
+			{
+				long start = System.nanoTime();
+				for (int i = 0; i < ITERATIONS; i++)
+				{
+					for (int u = 0; u < userCount; u++)
+					{
+						int count = index.candidates(matrix.userIds[u], max, candidateIds, null);
+						for (int c = 0; c < count; c++)
+						{
+							candidates[c] = matrix.userIndex(candidateIds[c]);
+						}
+						scorer.neighbours(u, candidates, count, K, neighbours, weights);
+					}
+				}
+				elapsed = System.nanoTime() - start;
+			}
+
+			long found = 0, wanted = 0;
+			for (int u = 0; u < userCount; u++)
+			{
+				int count = index.candidates(matrix.userIds[u], max, candidateIds, null);
+				for (int c = 0; c < count; c++)
+				{
+					candidates[c] = matrix.userIndex(candidateIds[c]);
+				}
+				Set<Integer> approximate = new HashSet<>();
+				for (int i = scorer.neighbours(u, candidates, count, K, neighbours, weights) - 1; i >= 0; i--)
+				{
+					approximate.add(neighbours[i]);
+				}
+				int exactNeighbours = scorer.neighbours(u, K, neighbours, weights);
+				for (int i = 0; i < exactNeighbours; i++)
+				{
+					if (approximate.contains(neighbours[i]))
+					{
+						found++;
+					}
+				}
+				wanted += exactNeighbours;
+			}
+			System.out.printf("MinHash %3d, top %3d: %8.1f us per user, recall %.3f, built in %.0f ms%n",
+					hashes, max, elapsed / 1e3 / ITERATIONS / userCount, wanted == 0 ? 1.0 : (double) found / wanted,
+					build / 1e6);
+		}
+	}
+}
@@ -0,0 +1,99 @@
+/**
+ * Compares the FieldScanner based parsing against the previous String.split based parsing
+ * on the full MovieLens data. Run as a Java application.
+ */
+package utils;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+import edu.princeton.cs.introcs.In;
+import models.Movie;
+import models.User;
+
+public class ParserBenchmark
+{
+	static final String userDataPath = "././data/data_movieLens/users.dat";
+	static final String movieDataPath = "././data/data_movieLens/items.dat";
+	static final String ratingDataPath = "././data/data_movieLens/ratings.dat";
+	static final int ITERATIONS = 50;
+
+	public static void main(String[] args) throws Exception
+	{
+		//Both paths must produce the same data
+		Parser parser = new Parser();
+		if (!parser.parseUserData(userDataPath).equals(splitUsers())
+				|| !parser.parseMovieData(movieDataPath).equals(splitMovies()))
+		{
+			throw new Exception("Scanner and split parsing differ");
+		}
+
+		for (int round = 0; round < 2; round++) //The first round warms up the JIT
+		{
+			long split = 0, scanner = 0;
+			for (int i = 0; i < ITERATIONS; i++)
+			{
+				long start = System.nanoTime();
+				splitUsers();
+				splitMovies();
+				splitRatings();
+				split += System.nanoTime() - start;
+
+				start = System.nanoTime();
+				Parser p = new Parser();
+				p.parseUserData(userDataPath);
+				p.parseMovieData(movieDataPath);
+				p.parseRatingData(ratingDataPath);
+				scanner += System.nanoTime() - start;
+			}
+			if (round == 1)
+			{
+				System.out.printf("String.split: %.2f ms per load%n", split / 1e6 / ITERATIONS);
+				System.out.printf("FieldScanner: %.2f ms per load (includes rating filtering)%n", scanner / 1e6 / ITERATIONS);
+			}
+		}
+	}
+
+	static Map<Long, User> splitUsers()
+	{
+		Map<Long, User> users = new HashMap<>();
+		In in = new In(new File(userDataPath));
+		while (!in.isEmpty())
+		{
+			String[] tokens = in.readLine().split("[|]");
+			users.put(Long.parseLong(tokens[0]), new User(Long.parseLong(tokens[0]), tokens[1], tokens[2],
+					Integer.parseInt(tokens[3]), tokens[4].charAt(0), tokens[5], "", ""));
+		}
+		in.close();
+		return users;
+	}
+
+	static Map<Long, Movie> splitMovies()
+	{
+		Map<Long, Movie> movies = new HashMap<>();
+		In in = new In(new File(movieDataPath));
+		while (!in.isEmpty())
+		{
+			String[] tokens = in.readLine().split("[|]");
+			int year = tokens[2].length() > 0 ? Integer.parseInt(tokens[2].substring(7)) : 1996;
+			movies.put(Long.parseLong(tokens[0]), new Movie(Long.parseLong(tokens[0]), tokens[1], year, tokens[3]));
+		}
+		in.close();
+		return movies;
+	}
+
+	static long splitRatings()
+	{
+		long checksum = 0;
+		In in = new In(new File(ratingDataPath));
+		while (!in.isEmpty())
+		{
+			String[] tokens = in.readLine().split("[|]");
+			checksum += Long.parseLong(tokens[0]) + Long.parseLong(tokens[1])
+					+ Integer.parseInt(tokens[2]) + Long.parseLong(tokens[3]);
+		}
+		in.close();
+		return checksum;
+	}
+}
@@ -7,8 +7,12 @@ package utils;
 
 import static org.junit.Assert.*;
 
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
 
 import org.junit.After;
 import org.junit.Before;
@@ -99,6 +103,200 @@ public class ParserTest
 		assertEquals(userRating, movieRating);
 	}
 
+	/**
+	 * Test that only the most recent rating of a duplicated user and movie pair is kept
+	 * @throws Exception
+	 */
+	@Test
+	public void testDuplicateRatings() throws Exception
+	{
+		parser.parseMovieData(movieDataPath);
+		parser.parseUserData(userDataPath);
+		List<Rating> ratings = parser.parseRatingData(ratingDataPath);
+
+		Rating rating = parser.getUser(2L).ratedMovies.get(10L);
+		assertEquals((Integer) 5, rating.rating);
+		assertEquals(888552084L, rating.timestamp);
+		assertSame(rating, parser.getMovie(10L).userRatings.get(2L));
+
+		for (int i = 1; i < ratings.size(); i++)
+		{
+			assertTrue(ratings.get(i - 1).timestamp <= ratings.get(i).timestamp);
+		}
+	}
+
+	/**
+	 * Test if parallel parsing gives the same filtered ratings as sequential parsing
+	 * @throws Exception
+	 */
+	@Test
+	public void testParallelRatingData() throws Exception
+	{
+		parser.parseMovieData(movieDataPath);
+		parser.parseUserData(userDataPath);
+		List<Rating> ratings = parser.parseRatingDataParallel(ratingDataPath);
+
+		Parser sequential = new Parser();
+		sequential.parseMovieData(movieDataPath);
+		sequential.parseUserData(userDataPath);
+		assertEquals(sequential.parseRatingData(ratingDataPath), ratings);
+		assertTrue(parser.getIngestReport().contains("lines/sec"));
+
+		//Chunks much smaller than the file still split on line boundaries
+		RatingColumns whole = new ParallelRatingParser().parse(ratingDataPath);
+		RatingColumns columns = new ParallelRatingParser(new ForkJoinPool(4), 7).parse(ratingDataPath);
+		assertEquals(whole.size, columns.size);
+		for (int i = 0; i < columns.size; i++)
+		{
+			assertEquals(whole.userIds[i], columns.userIds[i]);
+			assertEquals(whole.movieIds[i], columns.movieIds[i]);
+			assertEquals(whole.ratings[i], columns.ratings[i]);
+			assertEquals(whole.timestamps[i], columns.timestamps[i]);
+		}
+	}
+
+	/**
+	 * Test the field scanner on windows line breaks, negative numbers and a last line without a line break
+	 * @throws Exception
+	 */
+	@Test
+	public void testFieldScanner() throws Exception
+	{
+		byte[] data = "1|Toy Story|-5\r\n2||01-Jan-1995".getBytes("UTF-8");
+		FieldScanner scanner = new FieldScanner(ByteBuffer.wrap(data), '|');
+
+		assertTrue(scanner.hasNextLine());
+		assertEquals(3, scanner.countFields());
+		assertEquals(1L, scanner.nextLong());
+		assertEquals("Toy Story", scanner.nextString());
+		assertEquals(-5, scanner.nextInt());
+		scanner.nextLine();
+
+		assertTrue(scanner.hasNextLine());
+		assertEquals(3, scanner.countFields());
+		assertEquals(2, scanner.nextInt());
+		assertEquals(0, scanner.fieldLength());
+		scanner.skipField();
+		assertEquals(1995, scanner.nextInt(7));
+		scanner.nextLine();
+		assertFalse(scanner.hasNextLine());
+		scanner.close();
+	}
+
+	/**
+	 * Test scanning of the MovieLens 1M/10M "::" layout and the quoted CSV layout of the larger releases
+	 * @throws Exception
+	 */
+	@Test
+	public void testLargeFormats() throws Exception
+	{
+		byte[] data = "1::Toy Story (1995)::Animation|Children's\n1::1193::3.5::978300760\n".getBytes("ISO-8859-1");
+		FieldScanner scanner = new FieldScanner(ByteBuffer.wrap(data), "::");
+		assertEquals(3, scanner.countFields());
+		assertEquals(1L, scanner.nextLong());
+		String title = scanner.nextString();
+		assertEquals("Toy Story (1995)", title);
+		assertEquals(1995, MovieLensImporter.releaseYear(title));
+		assertEquals("Animation|Children's", scanner.nextString());
+		scanner.nextLine();
+		assertEquals(4, scanner.countFields());
+		assertEquals(1L, scanner.nextLong());
+		assertEquals(1193L, scanner.nextLong());
+		assertEquals(3, MovieLensImporter.convertRating(scanner.nextDouble()));
+		assertEquals(978300760L, scanner.nextLong());
+		scanner.nextLine();
+		assertFalse(scanner.hasNextLine());
+		scanner.close();
+
+		data = "movieId,title,genres\r\n11,\"American President, The (1995)\",Comedy\r\n12,\"Say \"\"Hi\"\"\",Drama\r\n".getBytes("UTF-8");
+		scanner = new FieldScanner(ByteBuffer.wrap(data), ",");
+		scanner.setQuoted(true);
+		scanner.nextLine();
+		assertEquals(3, scanner.countFields());
+		assertEquals(11L, scanner.nextLong());
+		assertEquals("American President, The (1995)", scanner.nextString());
+		assertEquals("Comedy", scanner.nextString());
+		scanner.nextLine();
+		assertEquals(3, scanner.countFields());
+		assertEquals(12L, scanner.nextLong());
+		assertEquals("Say \"Hi\"", scanner.nextString());
+		scanner.nextLine();
+		assertFalse(scanner.hasNextLine());
+		scanner.close();
+
+		assertEquals(-5, MovieLensImporter.convertRating(0.5));
+		assertEquals(5, MovieLensImporter.convertRating(5.0));
+	}
+
+	/**
+	 * Test that duplicates are filtered when ids do not fit in 32 bits, so are not packed into one key
+	 * @throws Exception
+	 */
+	@Test
+	public void testLargeIds() throws Exception
+	{
+		File users = File.createTempFile("users", ".dat");
+		File movies = File.createTempFile("items", ".dat");
+		File ratings = File.createTempFile("ratings", ".dat");
+		try
+		{
+			Files.write(users.toPath(), "5000000000|Leonard|Hernandez|24|M|technician|85711\n-2|Melody|Roberson|53|F|other|94043\n".getBytes("UTF-8"));
+			String genres = "|0|0|0|0|0|0|0|0|0|0|0|0|0|0|0|0|0|0|0\n";
+			Files.write(movies.toPath(), ("7000000000|Toy Story (1995)|01-Jan-1995|http://us.imdb.com" + genres
+					+ "1|GoldenEye (1995)|01-Jan-1995|http://us.imdb.com" + genres).getBytes("UTF-8"));
+			Files.write(ratings.toPath(), ("5000000000|7000000000|1|888551441\n-2|1|3|888551441\n5000000000|7000000000|5|888552084\n"
+					+ "5000000000|1|-3|888551000\n").getBytes("UTF-8"));
+			parser.parseUserData(users.getPath());
+			parser.parseMovieData(movies.getPath());
+			List<Rating> parsed = parser.parseRatingData(ratings.getPath());
+
+			assertEquals(3, parsed.size());
+			assertEquals((Integer) 5, parser.getUser(5000000000L).ratedMovies.get(7000000000L).rating);
+			assertEquals(2, parser.getUser(5000000000L).ratedMovies.size());
+			assertEquals((Integer) 3, parser.getMovie(1L).userRatings.get(-2L).rating);
+			for (int i = 1; i < parsed.size(); i++)
+			{
+				assertTrue(parsed.get(i - 1).timestamp <= parsed.get(i).timestamp);
+			}
+		}
+		finally
+		{
+			users.delete();
+			movies.delete();
+			ratings.delete();
+		}
+	}
+
+	/**
+	 * Test that memory-mapped parsing matches buffered parsing, including when the file is mapped
+	 * in windows smaller than the file
+	 * @throws Exception
+	 */
+	@Test
+	public void testMemoryMapped() throws Exception
+	{
+		parser.setMemoryMapped(true);
+		assertEquals(new Parser().parseUserData(userDataPath), parser.parseUserData(userDataPath));
+		assertEquals(new Parser().parseMovieData(movieDataPath), parser.parseMovieData(movieDataPath));
+
+		FieldScanner buffered = FieldScanner.open(ratingDataPath, '|');
+		FieldScanner mapped = FieldScanner.map(ratingDataPath, '|', 40);
+		while (buffered.hasNextLine())
+		{
+			assertTrue(mapped.hasNextLine());
+			assertEquals(buffered.countFields(), mapped.countFields());
+			assertEquals(buffered.nextLong(), mapped.nextLong());
+			assertEquals(buffered.nextLong(), mapped.nextLong());
+			assertEquals(buffered.nextInt(), mapped.nextInt());
+			assertEquals(buffered.nextLong(), mapped.nextLong());
+			buffered.nextLine();
+			mapped.nextLine();
+		}
+		assertFalse(mapped.hasNextLine());
+		buffered.close();
+		mapped.close();
+	}
+
 	/**
 	 * Testing for exceptions
 	 * @throws Exception
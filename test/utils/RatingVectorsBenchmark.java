@@ -0,0 +1,109 @@
+/**
+ * Compares the similarity of pairs of users with a movie in common computed by probing one user's rating
+ * map for each of the other's ratings, as getUserRecommendations once did, against the merge join and galloping
+ * kernels over the users' rows of the rating matrix, on the MovieLens data. JMH is not part of the build, so each
+ * method is warmed up for a round before it is timed. Run as a Java application, optionally with a directory of
+ * a raw MovieLens release to use instead.
+ */
+package utils;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import models.Movie;
+import models.Rating;
+import models.User;
+
+public class RatingVectorsBenchmark
+{
+	static final int ROUNDS = 5;
+	static final int MAX_PAIRS = 1000000; //Keeps the hash probing rounds short on the larger releases
+
+	public static void main(String[] args) throws Exception
+	{
+		Map<Long, User> users;
+		Map<Long, Movie> movies;
+		if (args.length > 0)
+		{
+			MovieLensImporter importer = new MovieLensImporter();
+			importer.importDirectory(new File(args[0]));
+			users = importer.getUsers();
+			movies = importer.getMovies();
+		}
+		else
+		{
+			Parser parser = new Parser();
+			users = parser.parseUserData("././data/data_movieLens/users.dat");
+			movies = parser.parseMovieData("././data/data_movieLens/items.dat");
+			parser.parseRatingData("././data/data_movieLens/ratings.dat");
+		}
+
+		//Pairs of users with a movie in common, found through the inverted index
+		RatingMatrix matrix = new RatingMatrix(users.values(), movies.values());
+		UserSimilarityScorer scorer = new UserSimilarityScorer(matrix);
+		List<int[]> pairs = new ArrayList<>();
+		for (int u = 0; u < matrix.userCount() && pairs.size() < MAX_PAIRS; u++)
+		{
+			int count = scorer.scoreAll(u);
+			for (int i = 0; i < count; i++)
+			{
+				pairs.add(new int[] {u, scorer.candidate(i)});
+			}
+		}
+		System.out.printf("%d pairs of co-raters%n", pairs.size());
+
+		float[] values = matrix.vectors(SimilarityMeasure.DOT).rowValues; //The values the scorer intersects
+		String[] names = {"Hash probing", "Merge join", "Galloping", "Adaptive"};
+		for (int method = 0; method < names.length; method++)
+		{
+			long best = Long.MAX_VALUE;
+			double checksum = 0;
+			for (int round = 0; round <= ROUNDS; round++) //Round 0 warms up the JIT
+			{
+				checksum = 0;
+				long start = System.nanoTime();
+				for (int[] pair: pairs)
+				{
+					checksum += similarity(method, users, matrix, values, pair[0], pair[1]);
+				}
+				long elapsed = System.nanoTime() - start;
+				if (round > 0)
+				{
+					best = Math.min(best, elapsed);
+				}
+			}
+			System.out.printf("%-13s %6.1f ns per pair (checksum %.0f)%n", names[method] + ":", (double) best / pairs.size(), checksum);
+		}
+	}
+
+	static double similarity(int method, Map<Long, User> users, RatingMatrix matrix, float[] values, int u, int v)
+	{
+		int[] ids = matrix.rowMovies;
+		int from = matrix.rowStart[u], to = matrix.rowStart[u + 1];
+		int otherFrom = matrix.rowStart[v], otherTo = matrix.rowStart[v + 1];
+		switch (method)
+		{
+		case 0:
+			User user = users.get(matrix.userIds[u]), other = users.get(matrix.userIds[v]);
+			int similarity = 0;
+			for (Rating rating: other.ratedMovies.values())
+			{
+				if (user.ratedMovies.containsKey(rating.movieId))
+				{
+					similarity += user.ratedMovies.get(rating.movieId).rating * rating.rating;
+				}
+			}
+			return similarity;
+		case 1:
+			return RatingVectors.mergeDot(ids, values, from, to, ids, values, otherFrom, otherTo);
+		case 2:
+			return to - from <= otherTo - otherFrom
+					? RatingVectors.gallopDot(ids, values, from, to, ids, values, otherFrom, otherTo)
+					: RatingVectors.gallopDot(ids, values, otherFrom, otherTo, ids, values, from, to);
+		default:
+			return RatingVectors.dot(ids, values, from, to, ids, values, otherFrom, otherTo);
+		}
+	}
+}
@@ -0,0 +1,113 @@
+package utils;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+import models.Movie;
+import models.Rating;
+import models.User;
+
+public class RatingVectorsTest
+{
+
+	/**
+	 * Test that the dot product of two vectors agrees with a direct calculation, whether they are merged or the much
+	 * longer one is galloped through, and for vectors which are ranges of shared arrays
+	 */
+	@Test
+	public void testDot()
+	{
+		//The first vector is [0, 3) and the second, every third id, is [3, 103)
+		int[] ids = new int[103];
+		float[] values = new float[103];
+		ids[0] = 7;
+		values[0] = 1;
+		ids[1] = 21;
+		values[1] = 5;
+		ids[2] = 40;
+		values[2] = 3;
+		for (int i = 3; i < ids.length; i++)
+		{
+			ids[i] = (i - 3) * 3;
+			values[i] = (ids[i] % 11) - 5;
+		}
+
+		double expected = 5 * 5; //Only id 21 is in both, with 21 % 11 - 5
+		assertEquals(expected, RatingVectors.dot(ids, values, 0, 3, ids, values, 3, 103), 0);
+		assertEquals(expected, RatingVectors.dot(ids, values, 3, 103, ids, values, 0, 3), 0);
+		assertEquals(expected, RatingVectors.mergeDot(ids, values, 0, 3, ids, values, 3, 103), 0);
+		assertEquals(expected, RatingVectors.gallopDot(ids, values, 0, 3, ids, values, 3, 103), 0);
+
+		double squares = 0;
+		for (int i = 3; i < ids.length; i++)
+		{
+			squares += values[i] * values[i];
+		}
+		assertEquals(1 + 25 + 9, RatingVectors.dot(ids, values, 0, 3, ids, values, 0, 3), 0);
+		assertEquals(squares, RatingVectors.dot(ids, values, 3, 103, ids, values, 3, 103), 0);
+		assertEquals(0, RatingVectors.dot(ids, values, 0, 0, ids, values, 3, 103), 0);
+	}
+
+	/**
+	 * Test that scoring given candidates through the kernels finds the same neighbours and scores as scoring every
+	 * co-rater through the inverted index, under each similarity measure
+	 */
+	@Test
+	public void testCandidateNeighbours()
+	{
+		Random random = new Random(42);
+		List<Movie> movies = new ArrayList<>();
+		for (long movieId = 1; movieId <= 400; movieId++)
+		{
+			movies.add(new Movie(movieId, "Movie " + movieId, 1995, ""));
+		}
+		List<User> users = new ArrayList<>();
+		for (long userId = 1; userId <= 60; userId++)
+		{
+			User user = new User(userId, "First", "Last", 30, 'F', "other", "user" + userId, "secret");
+			int count = userId % 10 == 0 ? 300 : 5 + random.nextInt(20); //Some rate far more, so they are galloped through
+			for (int i = 0; i < count; i++)
+			{
+				long movieId = 1 + random.nextInt(movies.size());
+				user.addRatedMovies(movieId, new Rating(userId, movieId, random.nextInt(11) - 5));
+			}
+			users.add(user);
+		}
+		RatingMatrix matrix = new RatingMatrix(users, movies);
+
+		int n = matrix.userCount();
+		int[] among = new int[n];
+		for (int v = 0; v < n; v++)
+		{
+			among[v] = v;
+		}
+		int[] neighbours = new int[n], expected = new int[n];
+		double[] weights = new double[n], expectedWeights = new double[n];
+		for (SimilarityMeasure measure: SimilarityMeasure.values())
+		{
+			UserSimilarityScorer scorer = new UserSimilarityScorer(matrix, measure);
+			for (int u = 0; u < n; u++)
+			{
+				int expectedCount = scorer.neighbours(u, n, expected, expectedWeights);
+				Map<Integer, Double> scores = new HashMap<>();
+				for (int i = 0; i < expectedCount; i++)
+				{
+					scores.put(expected[i], expectedWeights[i]);
+				}
+				int count = scorer.neighbours(u, among, n, n, neighbours, weights);
+				assertEquals(measure + " " + u, expectedCount, count);
+				for (int i = 0; i < count; i++)
+				{
+					assertEquals(measure + " " + u, scores.get(neighbours[i]), weights[i], 1e-9);
+				}
+			}
+		}
+	}
+}